@@ -0,0 +1,397 @@
+package com.toptri;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+import com.toptri.desktop.ConversationView;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.FirestoreService;
+import com.toptri.desktop.Lifecycle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless auto-offer engine for sellers who opt in.
+ *
+ * A seller enables it with a rules document autoOfferRules/{sellerId}
+ * (see {@link Rules}). For every enabled seller the engine listens to that
+ * seller's inbox; when a request appears or its buyer writes again, it reads
+ * the conversation view, resolves the latest buyer message against the
+ * seller's own available menus (catalog kept in memory), applies the rules
+ * (unit price cap, total cap, ETA, rating, offers per message, offers per
+ * minute) and calls createOfferWithLines. A seller's events for one request
+ * are handled one at a time, so maxOffersPerMessage is counted on an up to
+ * date view. Offer ids are deterministic, so a repeated event cannot offer
+ * the same menu twice (and stops at that menu), and a menu that would price
+ * the order exactly like an offer already sent is skipped.
+ *
+ * Every decision, offered or not, is appended to autoOfferAudit with the
+ * reason and the time from buyer message to offer. All reads and writes are
+ * billed to "AutoOfferService" in {@link CostLedger}.
+ */
+@Component
+public class AutoOfferService {
+
+  private static final Logger log = LoggerFactory.getLogger(AutoOfferService.class);
+
+  private static final String ORIGIN = "AutoOfferService";
+
+  public static final String RULES = "autoOfferRules";
+  public static final String AUDIT = "autoOfferAudit";
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+
+  @Value("${toptri.autooffer.enabled:false}")
+  private boolean enabled;
+
+  @Value("${toptri.autooffer.threads:4}")
+  private int threads;
+
+  @Value("${toptri.autooffer.catalogRefreshMinutes:1}")
+  private long catalogRefreshMinutes;
+
+  private FirestoreService fs;
+  private ExecutorService workers;
+  private ScheduledExecutorService scheduler;
+  private ListenerRegistration rulesListener;
+
+  // sellerId -> running engine; only touched from the rules listener callback
+  private final Map<String, SellerEngine> engines = new ConcurrentHashMap<>();
+
+  public AutoOfferService(ToptriSimpleFirestoreApp.FirebaseHolder fb) {
+    this.fb = fb;
+  }
+
+  @PostConstruct
+  public void start() throws Exception {
+    if (!enabled) return;
+    fs = new FirestoreService(fb.db(), ORIGIN, fb.lifecycle());
+    fs.preloadMenuCatalog();
+
+    workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+      Thread t = new Thread(r, "toptri-auto-offer");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-auto-offer-catalog");
+      t.setDaemon(true);
+      return t;
+    });
+    // keep the in-memory catalog fresh so matching never waits on a query; must stay
+    // under FirestoreService.MENU_CATALOG_TTL_MS, which also bounds how late menus
+    // added from a desktop show up here
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        fs.preloadMenuCatalog();
+      } catch (Exception e) {
+        log.warn("catalog refresh failed: {}", e.getMessage());
+      }
+    }, catalogRefreshMinutes, catalogRefreshMinutes, TimeUnit.MINUTES);
+
+    rulesListener = fb.db().collection(RULES).addSnapshotListener((snap, err) -> {
+      if (err != null) {
+        log.error("rules listener failed", err);
+        return;
+      }
+      if (snap == null) return;
+      CostLedger.delivered(ORIGIN, "autoOffer.rules", snap);
+      syncEngines(snap.getDocuments());
+    });
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (rulesListener != null) rulesListener.remove();
+    for (SellerEngine e : engines.values()) e.stop();
+    engines.clear();
+    if (scheduler != null) scheduler.shutdownNow();
+    // offers already being matched and written are allowed to commit
+    if (workers != null) Lifecycle.drain(workers, fb.drainTimeout());
+  }
+
+  private void syncEngines(List<QueryDocumentSnapshot> docs) {
+    Map<String, Rules> wanted = new HashMap<>();
+    for (QueryDocumentSnapshot d : docs) {
+      Rules r = Rules.from(d);
+      if (r.enabled) wanted.put(r.sellerId, r);
+    }
+    for (Iterator<Map.Entry<String, SellerEngine>> it = engines.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, SellerEngine> e = it.next();
+      if (!wanted.containsKey(e.getKey())) {
+        e.getValue().stop();
+        it.remove();
+        log.info("stopped {}", e.getKey());
+      }
+    }
+    for (Rules r : wanted.values()) {
+      SellerEngine running = engines.get(r.sellerId);
+      if (running != null) {
+        running.rules = r; // picked up by the next event
+      } else {
+        engines.put(r.sellerId, new SellerEngine(r));
+        log.info("started {}", r.sellerId);
+      }
+    }
+  }
+
+  // ==================== RULES ====================
+
+  /**
+   * autoOfferRules/{sellerId}:
+   *   {enabled, maxUnitPrice, maxGrandTotal, maxEtaMinutes, minRating,
+   *    maxOffersPerMessage, maxOffersPerMinute, contact}
+   * 0 means "no limit" for the caps; maxOffersPerMessage is at most 3,
+   * the same limit the seller window enforces.
+   */
+  public static class Rules {
+    public final String sellerId, contact;
+    public final boolean enabled;
+    public final int maxUnitPrice, maxGrandTotal, maxEtaMinutes, maxOffersPerMessage, maxOffersPerMinute;
+    public final double minRating;
+
+    Rules(String sellerId, boolean enabled, int maxUnitPrice, int maxGrandTotal, int maxEtaMinutes,
+          double minRating, int maxOffersPerMessage, int maxOffersPerMinute, String contact) {
+      this.sellerId = sellerId;
+      this.enabled = enabled;
+      this.maxUnitPrice = maxUnitPrice;
+      this.maxGrandTotal = maxGrandTotal;
+      this.maxEtaMinutes = maxEtaMinutes;
+      this.minRating = minRating;
+      this.maxOffersPerMessage = Math.min(3, Math.max(1, maxOffersPerMessage));
+      this.maxOffersPerMinute = maxOffersPerMinute;
+      this.contact = contact == null ? "" : contact;
+    }
+
+    static Rules from(DocumentSnapshot d) {
+      return new Rules(d.getId(),
+          Boolean.TRUE.equals(d.getBoolean("enabled")),
+          intOf(d, "maxUnitPrice", 0),
+          intOf(d, "maxGrandTotal", 0),
+          intOf(d, "maxEtaMinutes", 0),
+          d.getDouble("minRating") == null ? 0.0 : d.getDouble("minRating"),
+          intOf(d, "maxOffersPerMessage", 1),
+          intOf(d, "maxOffersPerMinute", 30),
+          d.getString("contact"));
+    }
+
+    public Map<String, Object> toMap() {
+      Map<String, Object> m = new HashMap<>();
+      m.put("enabled", enabled);
+      m.put("maxUnitPrice", maxUnitPrice);
+      m.put("maxGrandTotal", maxGrandTotal);
+      m.put("maxEtaMinutes", maxEtaMinutes);
+      m.put("minRating", minRating);
+      m.put("maxOffersPerMessage", maxOffersPerMessage);
+      m.put("maxOffersPerMinute", maxOffersPerMinute);
+      m.put("contact", contact);
+      m.put("updatedAt", Timestamp.now());
+      return m;
+    }
+
+    private static int intOf(DocumentSnapshot d, String field, int def) {
+      Long v = d.getLong(field);
+      return v == null ? def : v.intValue();
+    }
+  }
+
+  // ==================== ENGINE ====================
+
+  private class SellerEngine {
+    final String sellerId;
+    volatile Rules rules;
+    final ListenerRegistration inbox;
+
+    // last inbox updatedAt acted on per request; the inbox refreshes it on every buyer message
+    final Map<String, Timestamp> seen = new ConcurrentHashMap<>();
+    // offer send times of the last minute, for maxOffersPerMinute
+    final ArrayDeque<Long> sent = new ArrayDeque<>();
+    // requests with a handle() running: false = up to date, true = changed meanwhile, run again
+    final Map<String, Boolean> running = new ConcurrentHashMap<>();
+
+    SellerEngine(Rules rules) {
+      this.sellerId = rules.sellerId;
+      this.rules = rules;
+      this.inbox = fs.listenSellerInbox(sellerId, this::onInbox,
+          err -> log.error("inbox listener failed for {}", sellerId, err));
+    }
+
+    void stop() {
+      inbox.remove();
+    }
+
+    void onInbox(List<FirestoreService.InboxEntry> entries) {
+      Set<String> present = new HashSet<>();
+      for (FirestoreService.InboxEntry e : entries) {
+        present.add(e.requestId);
+        Timestamp prev = seen.get(e.requestId);
+        if (e.updatedAt == null || (prev != null && prev.compareTo(e.updatedAt) >= 0)) continue;
+        seen.put(e.requestId, e.updatedAt);
+        schedule(e.requestId);
+      }
+      seen.keySet().retainAll(present); // completed/expired requests leave the inbox
+    }
+
+    // one handle() per request at a time, so two quick events cannot both see no offer yet;
+    // events arriving meanwhile collapse into one more run on the latest view
+    void schedule(String requestId) {
+      boolean[] start = {false};
+      running.compute(requestId, (k, dirty) -> {
+        if (dirty == null) { start[0] = true; return false; }
+        return true;
+      });
+      if (start[0]) workers.execute(() -> drain(requestId));
+    }
+
+    private void drain(String requestId) {
+      do {
+        handle(requestId);
+      } while (running.compute(requestId, (k, dirty) -> Boolean.TRUE.equals(dirty) ? false : null) != null);
+    }
+
+    void handle(String requestId) {
+      Rules r = rules;
+      try {
+        ConversationView.View view = ConversationView.decode(
+            fb.db().collection(ConversationView.COLLECTION).document(requestId).get().get());
+        CostLedger.read(ORIGIN, "autoOffer.view", 1);
+        if (view == null) { audit(requestId, null, "SKIPPED", "no conversation view", null); return; }
+        if (!"OPEN".equalsIgnoreCase(view.status)) return;
+
+        FirestoreService.ChatMessage latest = null;
+        for (FirestoreService.ChatMessage m : view.messages) {
+          if ("BUYER".equalsIgnoreCase(m.senderType)) latest = m;
+        }
+        if (latest == null) return;
+
+        final String messageId = latest.id;
+        long already = view.offers.stream()
+            .filter(o -> o.sellerId.equals(sellerId) && o.buyerMessageId.equals(messageId))
+            .count();
+        int slots = r.maxOffersPerMessage - (int) already;
+        if (slots <= 0) return;
+
+        List<FirestoreService.OrderItem> items = FirestoreService.parseOrderItems(latest.text);
+        Map<String, FirestoreService.MenuItem> resolved = fs.resolveMenus(items, sellerId);
+        List<FirestoreService.MenuItem> candidates = candidates(latest.text, resolved, r);
+        if (candidates.isEmpty()) { audit(requestId, messageId, "SKIPPED", "no menu within rules", null); return; }
+
+        // lines already on offer for this message: another menu pricing the order the same way adds nothing
+        Set<String> offeredLines = new HashSet<>();
+        for (FirestoreService.Offer o : view.offers) {
+          if (o.sellerId.equals(sellerId) && o.buyerMessageId.equals(messageId)) {
+            offeredLines.add(FirestoreService.PricedLines.signature(o.offerLines));
+          }
+        }
+
+        for (FirestoreService.MenuItem menu : candidates) {
+          if (slots <= 0) break;
+          FirestoreService.PricedLines priced =
+              FirestoreService.priceOrderItems(items, resolved, menu.getName(), menu.getPrice());
+          List<FirestoreService.OfferLine> lines = priced.lines;
+          int total = priced.total();
+          if (offeredLines.contains(priced.signature())) {
+            audit(requestId, messageId, "SKIPPED", "same lines and prices as an offer already sent", menu.getName());
+            continue;
+          }
+          if (r.maxGrandTotal > 0 && total > r.maxGrandTotal) {
+            audit(requestId, messageId, "SKIPPED", "total " + total + " over cap " + r.maxGrandTotal, menu.getName());
+            continue;
+          }
+          // reserve before creating so concurrent workers cannot overshoot; give it back if nothing was created
+          long slot = acquire(r);
+          if (slot < 0) {
+            audit(requestId, messageId, "THROTTLED", "over " + r.maxOffersPerMinute + " offers/min", menu.getName());
+            break;
+          }
+          boolean created;
+          try {
+            created = fs.createOfferWithLines(requestId, sellerId, menu.getName(), menu.getVendor(),
+                menu.getEtaMinutes(), menu.getRating(), lines, total, messageId, r.contact);
+          } catch (Exception ex) {
+            release(slot);
+            throw ex;
+          }
+          if (!created) {
+            // the view missed an offer for this message (another node got there first), so the
+            // per-message count read above is stale: stop instead of offering the next menu
+            release(slot);
+            audit(requestId, messageId, "DUPLICATE", "already offered", menu.getName());
+            break;
+          }
+          offeredLines.add(priced.signature());
+          Long latencyMs = latest.createdAt == null ? null
+              : System.currentTimeMillis() - latest.createdAt.toDate().getTime();
+          audit(requestId, messageId, "OFFERED", "total " + total
+                  + (latencyMs == null ? "" : ", " + latencyMs + " ms after message")
+                  + (priced.unpriced.isEmpty() ? "" : ", no menu for " + String.join(", ", priced.unpriced)),
+              menu.getName());
+          slots--;
+        }
+      } catch (Exception ex) {
+        audit(requestId, null, "ERROR", String.valueOf(ex.getMessage()), null);
+      }
+    }
+
+    // this seller's available menus matching the message or one of its items, within the caps
+    List<FirestoreService.MenuItem> candidates(String text, Map<String, FirestoreService.MenuItem> resolved, Rules r)
+        throws Exception {
+      List<FirestoreService.MenuItem> all = new ArrayList<>(fs.getMenusByCategory(fs.mapCategoryFromText(text)));
+      all.addAll(resolved.values());
+
+      Map<String, FirestoreService.MenuItem> byName = new LinkedHashMap<>();
+      for (FirestoreService.MenuItem m : all) {
+        if (!sellerId.equals(m.getSellerId())) continue;
+        if (r.maxUnitPrice > 0 && m.getPrice() > r.maxUnitPrice) continue;
+        if (r.maxEtaMinutes > 0 && m.getEtaMinutes() > r.maxEtaMinutes) continue;
+        if (m.getRating() < r.minRating) continue;
+        byName.putIfAbsent(m.getName(), m);
+      }
+      return new ArrayList<>(byName.values());
+    }
+
+    // a slot of the per-minute budget (its send time), or -1 when the budget is used up
+    long acquire(Rules r) {
+      long now = System.currentTimeMillis();
+      if (r.maxOffersPerMinute <= 0) return now;
+      synchronized (sent) {
+        while (!sent.isEmpty() && now - sent.peekFirst() >= 60_000) sent.pollFirst();
+        if (sent.size() >= r.maxOffersPerMinute) return -1;
+        sent.addLast(now);
+        return now;
+      }
+    }
+
+    // the offer was a duplicate or failed: it does not count against the budget
+    void release(long slot) {
+      synchronized (sent) {
+        sent.removeLastOccurrence(slot);
+      }
+    }
+
+    void audit(String requestId, String messageId, String decision, String reason, String menuName) {
+      Map<String, Object> a = new HashMap<>();
+      a.put("sellerId", sellerId);
+      a.put("requestId", requestId);
+      a.put("buyerMessageId", messageId == null ? "" : messageId);
+      a.put("decision", decision);
+      a.put("reason", reason);
+      a.put("menuName", menuName == null ? "" : menuName);
+      a.put("at", Timestamp.now());
+      // fire and forget: auditing must not slow the offer path
+      ApiFutures.addCallback(fb.db().collection(AUDIT).add(a), new ApiFutureCallback<>() {
+        @Override public void onSuccess(DocumentReference ref) { CostLedger.write(ORIGIN, "autoOffer.audit", 1); }
+        @Override public void onFailure(Throwable t) { log.warn("audit write failed: {}", t.getMessage()); }
+      }, Runnable::run);
+      log.info("{} {} {}{}: {}", sellerId, requestId, decision, menuName == null ? "" : " " + menuName, reason);
+    }
+  }
+}
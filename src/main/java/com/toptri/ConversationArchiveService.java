@@ -0,0 +1,187 @@
+package com.toptri;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+import com.toptri.desktop.ConversationArchive;
+import com.toptri.desktop.ConversationView;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.FirestoreService;
+import com.toptri.desktop.MessageChunks;
+import com.toptri.desktop.Lifecycle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves COMPLETED conversations older than toptri.archive.afterDays out of the
+ * hot requests collection into one packed document each (see {@link ConversationArchive}).
+ *
+ * Runs incrementally: each run walks completed requests in (completedAt, id)
+ * order starting after the checkpoint stored in jobs/conversationArchive, and
+ * advances the checkpoint after every conversation. A conversation is archived
+ * by creating the packed document first and deleting the originals after,
+ * request document last, so a run interrupted half way is finished by the next
+ * one (the create finds the archive already there and the deletes continue).
+ * Reads and committed writes are billed to "ConversationArchiveService" in
+ * {@link CostLedger}.
+ */
+@Component
+public class ConversationArchiveService {
+
+  private static final Logger log = LoggerFactory.getLogger(ConversationArchiveService.class);
+
+  private static final String ORIGIN = "ConversationArchiveService";
+  private static final String CHECKPOINT = "jobs/conversationArchive";
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+
+  @Value("${toptri.archive.enabled:true}")
+  private boolean enabled;
+
+  @Value("${toptri.archive.afterDays:30}")
+  private long afterDays;
+
+  @Value("${toptri.archive.intervalMinutes:60}")
+  private long intervalMinutes;
+
+  @Value("${toptri.archive.requestsPerRun:100}")
+  private int requestsPerRun;
+
+  private ScheduledExecutorService scheduler;
+
+  public ConversationArchiveService(ToptriSimpleFirestoreApp.FirebaseHolder fb) {
+    this.fb = fb;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-archive");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::runOnce, 5, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stop() {
+    // lets a run in progress finish its current batch commit instead of interrupting it
+    if (scheduler != null) Lifecycle.drain(scheduler, fb.drainTimeout());
+  }
+
+  // ==================== RUN ====================
+
+  public void runOnce() {
+    try {
+      Firestore db = fb.db();
+      DocumentReference checkpointRef = db.document(CHECKPOINT);
+      DocumentSnapshot checkpoint = checkpointRef.get().get();
+      CostLedger.read(ORIGIN, "checkpoint.get", 1);
+      Timestamp afterCompletedAt = checkpoint.getTimestamp("completedAt");
+      String afterId = checkpoint.getString("requestId");
+
+      Timestamp cutoff = Timestamp.ofTimeSecondsAndNanos(
+          Timestamp.now().getSeconds() - TimeUnit.DAYS.toSeconds(afterDays), 0);
+
+      Query q = db.collection("requests")
+          .whereEqualTo("status", "COMPLETED")
+          .whereLessThan("completedAt", cutoff)
+          .orderBy("completedAt", Query.Direction.ASCENDING)
+          .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING)
+          .limit(requestsPerRun);
+      if (afterCompletedAt != null && afterId != null) {
+        q = q.startAfter(afterCompletedAt, db.collection("requests").document(afterId));
+      }
+
+      int archived = 0, skipped = 0;
+      QuerySnapshot due = q.get().get();
+      CostLedger.query(ORIGIN, "requests.archivable", due);
+      for (QueryDocumentSnapshot req : due.getDocuments()) {
+        if (archive(req)) archived++;
+        else skipped++;
+        checkpointRef.set(Map.of(
+            "completedAt", req.getTimestamp("completedAt"),
+            "requestId", req.getId(),
+            "updatedAt", Timestamp.now())).get();
+        CostLedger.write(ORIGIN, "checkpoint.set", 1);
+      }
+
+      if (archived + skipped > 0) {
+        log.info("archived {} conversations, {} left hot", archived, skipped);
+      }
+    } catch (Exception e) {
+      log.error("run failed", e);
+    }
+  }
+
+  /** Packs and removes one conversation; false if it is too big to pack and stays hot. */
+  boolean archive(DocumentSnapshot req) throws Exception {
+    Firestore db = fb.db();
+    DocumentReference reqRef = req.getReference();
+
+    List<QueryDocumentSnapshot> chunks = query("chunks.get", reqRef.collection(MessageChunks.COLLECTION)
+        .orderBy("chunkNo", Query.Direction.ASCENDING));
+    List<QueryDocumentSnapshot> tail = query("messages.get", reqRef.collection("messages")
+        .orderBy("createdAt", Query.Direction.ASCENDING));
+    List<QueryDocumentSnapshot> offers = query("offers.get", reqRef.collection("offers"));
+
+    List<FirestoreService.ChatMessage> messages = new ArrayList<>();
+    for (QueryDocumentSnapshot c : chunks) messages.addAll(MessageChunks.decode(c));
+    for (QueryDocumentSnapshot m : tail) messages.add(FirestoreService.ChatMessage.from(m));
+
+    Map<String, Object> packed = ConversationArchive.pack(req, messages, offers);
+    if (!ConversationArchive.fits(req.getId(), packed)) {
+      log.warn("{} too large to pack, keeping it hot", req.getId());
+      return false;
+    }
+
+    DocumentReference archiveRef = db.collection(ConversationArchive.COLLECTION).document(req.getId());
+    try {
+      archiveRef.create(packed).get();
+      CostLedger.write(ORIGIN, "archive.create", 1);
+    } catch (ExecutionException e) {
+      // written by an earlier, interrupted run: just finish the deletes
+      CostLedger.read(ORIGIN, "archive.create", 1);
+      if (!archiveRef.get().get().exists()) throw e;
+    }
+
+    BulkWriter writer = db.bulkWriter();
+    List<ApiFuture<WriteResult>> deletes = new ArrayList<>();
+    for (QueryDocumentSnapshot d : chunks) deletes.add(writer.delete(d.getReference()));
+    for (QueryDocumentSnapshot d : tail) deletes.add(writer.delete(d.getReference()));
+    for (QueryDocumentSnapshot d : offers) deletes.add(writer.delete(d.getReference()));
+    deletes.add(writer.delete(db.collection(ConversationView.COLLECTION).document(req.getId())));
+    writer.close();
+    int deleted = 0;
+    for (ApiFuture<WriteResult> f : deletes) {
+      try {
+        f.get();
+        deleted++;
+      } catch (ExecutionException ignored) {
+        // not billed; the archive already holds the data
+      }
+    }
+    CostLedger.write(ORIGIN, "archive.delete", deleted);
+
+    reqRef.delete().get();
+    CostLedger.write(ORIGIN, "archive.delete", 1);
+    return true;
+  }
+
+  private static List<QueryDocumentSnapshot> query(String site, Query q) throws Exception {
+    QuerySnapshot snap = q.get().get();
+    CostLedger.query(ORIGIN, site, snap);
+    return snap.getDocuments();
+  }
+}
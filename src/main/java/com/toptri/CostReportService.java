@@ -0,0 +1,32 @@
+package com.toptri;
+
+import com.toptri.desktop.CostLedger;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Turns on the periodic {@link CostLedger} report and the per-minute read/write
+ * budget alerts for the backend (REST endpoints, gateway, auto-offer engine).
+ * Current totals are also served at GET /api/cost.
+ */
+@Component
+public class CostReportService {
+
+  @Value("${toptri.cost.reportMinutes:10}")
+  private long reportMinutes;
+
+  @Value("${toptri.cost.topN:10}")
+  private int topN;
+
+  @Value("${toptri.cost.readBudgetPerMinute:0}")
+  private long readBudgetPerMinute;
+
+  @Value("${toptri.cost.writeBudgetPerMinute:0}")
+  private long writeBudgetPerMinute;
+
+  @PostConstruct
+  public void start() {
+    CostLedger.startReporting(reportMinutes, topN, readBudgetPerMinute, writeBudgetPerMinute);
+  }
+}
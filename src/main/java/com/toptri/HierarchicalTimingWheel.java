@@ -0,0 +1,147 @@
+package com.toptri;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: O(1) schedule / cancel for a very large number of
+ * timers, at the cost of tick-sized precision.
+ *
+ * Level 0 has {@code wheelSize} slots of one tick each; every level above covers
+ * {@code wheelSize} times the span of the one below. Timers far in the future sit
+ * in a coarse level and are cascaded down as the wheel turns. Levels are added on
+ * demand, so there is no upper bound on the delay.
+ *
+ * Not driven by its own thread: call {@link #advanceTo(long, Consumer)} from a
+ * ticker. All methods are synchronized.
+ */
+public class HierarchicalTimingWheel<K> {
+
+  private final long tickMs;
+  private final int wheelSize;
+  private final List<List<Set<Timer<K>>>> levels = new ArrayList<>();
+  private final Map<K, Timer<K>> timers = new HashMap<>();
+  private long currentTick;
+
+  private static final class Timer<K> {
+    final K key;
+    final long deadlineTick;
+    Set<Timer<K>> bucket;
+
+    Timer(K key, long deadlineTick) {
+      this.key = key;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  public HierarchicalTimingWheel(long tickMs, int wheelSize, long startMs) {
+    if (tickMs <= 0 || wheelSize < 2) throw new IllegalArgumentException("tickMs > 0 and wheelSize >= 2 required");
+    this.tickMs = tickMs;
+    this.wheelSize = wheelSize;
+    this.currentTick = startMs / tickMs;
+    addLevel();
+  }
+
+  // ==================== TIMERS ====================
+
+  /** (Re)arms the timer for key; an existing timer for the same key is replaced. */
+  public synchronized void schedule(K key, long deadlineMs) {
+    cancel(key);
+    // round up so a timer never fires before its deadline
+    long deadlineTick = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick);
+    Timer<K> t = new Timer<>(key, deadlineTick);
+    timers.put(key, t);
+    place(t);
+  }
+
+  public synchronized boolean cancel(K key) {
+    Timer<K> t = timers.remove(key);
+    if (t == null) return false;
+    t.bucket.remove(t);
+    return true;
+  }
+
+  public synchronized int size() {
+    return timers.size();
+  }
+
+  /**
+   * Turns the wheel up to nowMs, handing every key whose deadline has passed to
+   * onExpire (in deadline-tick order). Returns how many timers fired.
+   */
+  public synchronized int advanceTo(long nowMs, Consumer<K> onExpire) {
+    long target = nowMs / tickMs;
+    int fired = 0;
+    fired += expireSlot(onExpire); // timers scheduled "now" since the last advance
+    while (currentTick < target) {
+      currentTick++;
+      cascade();
+      fired += expireSlot(onExpire);
+    }
+    return fired;
+  }
+
+  // ==================== WHEEL ====================
+
+  private void place(Timer<K> t) {
+    long delta = t.deadlineTick - currentTick;
+    int level = 0;
+    long span = wheelSize; // ticks covered by this level
+    long slotWidth = 1;
+    while (delta >= span) {
+      level++;
+      slotWidth = span;
+      span *= wheelSize;
+    }
+    while (levels.size() <= level) addLevel();
+    int slot = (int) ((t.deadlineTick / slotWidth) % wheelSize);
+    Set<Timer<K>> bucket = levels.get(level).get(slot);
+    bucket.add(t);
+    t.bucket = bucket;
+  }
+
+  // at a level boundary, move the matching coarse bucket down to finer levels
+  private void cascade() {
+    long slotWidth = 1;
+    List<Integer> due = new ArrayList<>();
+    for (int level = 1; level < levels.size(); level++) {
+      slotWidth *= wheelSize;
+      if (currentTick % slotWidth != 0) break;
+      due.add(level);
+    }
+    for (int i = due.size() - 1; i >= 0; i--) {
+      int level = due.get(i);
+      long width = pow(wheelSize, level);
+      Set<Timer<K>> bucket = levels.get(level).get((int) ((currentTick / width) % wheelSize));
+      List<Timer<K>> moving = new ArrayList<>(bucket);
+      bucket.clear();
+      for (Timer<K> t : moving) place(t);
+    }
+  }
+
+  private int expireSlot(Consumer<K> onExpire) {
+    Set<Timer<K>> bucket = levels.get(0).get((int) (currentTick % wheelSize));
+    if (bucket.isEmpty()) return 0;
+    int fired = 0;
+    for (Timer<K> t : new ArrayList<>(bucket)) {
+      if (t.deadlineTick > currentTick) continue; // belongs to a later lap
+      bucket.remove(t);
+      timers.remove(t.key);
+      onExpire.accept(t.key);
+      fired++;
+    }
+    return fired;
+  }
+
+  private void addLevel() {
+    List<Set<Timer<K>>> slots = new ArrayList<>(wheelSize);
+    for (int i = 0; i < wheelSize; i++) slots.add(new LinkedHashSet<>());
+    levels.add(slots);
+  }
+
+  private static long pow(long base, int exp) {
+    long r = 1;
+    for (int i = 0; i < exp; i++) r *= base;
+    return r;
+  }
+}
@@ -0,0 +1,168 @@
+package com.toptri;
+
+import com.google.cloud.firestore.*;
+import com.toptri.desktop.ConversationView;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.FirestoreService;
+import com.toptri.desktop.MessageChunks;
+import com.toptri.desktop.Lifecycle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls settled chat messages into chunk documents (see {@link MessageChunks}).
+ *
+ * Every request counts its not-yet-compacted messages in pendingMessages.
+ * OPEN conversations are compacted once they hold a full chunk on top of the
+ * live tail, and only whole chunks are written. Closed conversations
+ * (COMPLETED / EXPIRED) are compacted completely, so the last chunk may be partial.
+ *
+ * Each chunk is one batch: create the chunk, delete its message documents,
+ * bump chunkCount and decrement pendingMessages. create() fails if another
+ * node already wrote that chunk number, so concurrent runs cannot duplicate.
+ * Afterwards the conversation view is trimmed to its newest messages.
+ * Reads and committed writes are billed to "MessageCompactionService" in
+ * {@link CostLedger}.
+ */
+@Component
+public class MessageCompactionService {
+
+  private static final Logger log = LoggerFactory.getLogger(MessageCompactionService.class);
+
+  private static final String ORIGIN = "MessageCompactionService";
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+
+  @Value("${toptri.compaction.enabled:true}")
+  private boolean enabled;
+
+  @Value("${toptri.compaction.intervalMinutes:10}")
+  private long intervalMinutes;
+
+  @Value("${toptri.compaction.requestsPerRun:50}")
+  private int requestsPerRun;
+
+  private ScheduledExecutorService scheduler;
+
+  public MessageCompactionService(ToptriSimpleFirestoreApp.FirebaseHolder fb) {
+    this.fb = fb;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-compaction");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::runOnce, 1, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stop() {
+    // lets a run in progress finish its current batch commit instead of interrupting it
+    if (scheduler != null) Lifecycle.drain(scheduler, fb.drainTimeout());
+  }
+
+  // ==================== RUN ====================
+
+  public void runOnce() {
+    try {
+      Firestore db = fb.db();
+      int chunks = 0;
+
+      QuerySnapshot open = db.collection("requests")
+          .whereEqualTo("status", "OPEN")
+          .whereGreaterThanOrEqualTo("pendingMessages", MessageChunks.CHUNK_SIZE + MessageChunks.LIVE_TAIL)
+          .limit(requestsPerRun)
+          .get().get();
+      CostLedger.query(ORIGIN, "requests.compactable", open);
+      for (QueryDocumentSnapshot req : open.getDocuments()) chunks += compact(req, false);
+
+      QuerySnapshot closed = db.collection("requests")
+          .whereIn("status", List.of("COMPLETED", "EXPIRED"))
+          .whereGreaterThan("pendingMessages", 0)
+          .limit(requestsPerRun)
+          .get().get();
+      CostLedger.query(ORIGIN, "requests.compactable", closed);
+      for (QueryDocumentSnapshot req : closed.getDocuments()) chunks += compact(req, true);
+
+      if (chunks > 0) log.info("wrote {} chunks", chunks);
+    } catch (Exception e) {
+      log.error("run failed", e);
+    }
+  }
+
+  /** Compacts one conversation; returns the number of chunks written. */
+  int compact(DocumentSnapshot req, boolean closed) throws Exception {
+    Firestore db = fb.db();
+    DocumentReference reqRef = req.getReference();
+
+    QuerySnapshot snap = reqRef.collection("messages")
+        .orderBy("createdAt", Query.Direction.ASCENDING)
+        .get().get();
+    CostLedger.query(ORIGIN, "messages.get", snap);
+    List<QueryDocumentSnapshot> docs = snap.getDocuments();
+
+    int settled = closed ? docs.size() : docs.size() - MessageChunks.LIVE_TAIL;
+    if (!closed) settled -= settled % MessageChunks.CHUNK_SIZE; // whole chunks only
+    if (settled <= 0) return 0;
+
+    Long count = req.getLong("chunkCount");
+    long chunkNo = count == null ? 0 : count;
+    int written = 0;
+
+    for (int from = 0; from < settled; from += MessageChunks.CHUNK_SIZE) {
+      List<QueryDocumentSnapshot> part = docs.subList(from, Math.min(from + MessageChunks.CHUNK_SIZE, settled));
+      List<FirestoreService.ChatMessage> messages = new ArrayList<>(part.size());
+      for (QueryDocumentSnapshot d : part) messages.add(FirestoreService.ChatMessage.from(d));
+
+      WriteBatch batch = db.batch();
+      batch.create(reqRef.collection(MessageChunks.COLLECTION).document(MessageChunks.chunkId(chunkNo)),
+          MessageChunks.encode(chunkNo, messages));
+      for (QueryDocumentSnapshot d : part) batch.delete(d.getReference());
+      batch.update(reqRef,
+          "chunkCount", FieldValue.increment(1),
+          "pendingMessages", FieldValue.increment(-part.size()));
+      int writes = batch.getMutationsSize();
+      batch.commit().get();
+      CostLedger.write(ORIGIN, "chunks.commit", writes);
+
+      chunkNo++;
+      written++;
+    }
+    trimView(db, req.getId());
+    return written;
+  }
+
+  // the conversation view only keeps the newest messages; the rest now live in chunks
+  private void trimView(Firestore db, String requestId) throws Exception {
+    DocumentReference viewRef = db.collection(ConversationView.COLLECTION).document(requestId);
+    DocumentSnapshot view = viewRef.get().get();
+    CostLedger.read(ORIGIN, "view.trim", 1);
+    if (!view.exists()) return;
+    Map<FieldPath, Object> deletes = ConversationView.trim(view);
+    if (deletes.isEmpty()) return;
+
+    Iterator<Map.Entry<FieldPath, Object>> it = deletes.entrySet().iterator();
+    Map.Entry<FieldPath, Object> first = it.next();
+    List<Object> more = new ArrayList<>();
+    while (it.hasNext()) {
+      Map.Entry<FieldPath, Object> e = it.next();
+      more.add(e.getKey());
+      more.add(e.getValue());
+    }
+    viewRef.update(first.getKey(), first.getValue(), more.toArray()).get();
+    CostLedger.write(ORIGIN, "view.trim", 1);
+  }
+}
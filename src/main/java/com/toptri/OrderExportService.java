@@ -0,0 +1,441 @@
+package com.toptri;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+import com.toptri.desktop.ConversationArchive;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.Lifecycle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Incremental export of completed orders for finance.
+ *
+ * Two datasets:
+ *   completedRequests  COMPLETED requests, hot and archived, by completedAt
+ *   orders             the REST orders collection, by createdAt
+ *
+ * Layout under toptri.export.dir:
+ *   {dataset}/date=YYYY-MM-DD/part-{run}-{seq}/{column}.gz   one value per line
+ *   {dataset}/date=YYYY-MM-DD/part-{run}-{seq}/_schema        column \t type
+ *   {dataset}/date=YYYY-MM-DD/part-{run}-{seq}/_meta          rows + last cursor
+ *   {dataset}/_checkpoint                                      last exported (time, id)
+ *
+ * Values are text: timestamps ISO-8601 UTC, null as \N, backslash/newline/tab
+ * escaped. Sources are paged with (time, document id) cursors starting after
+ * the checkpoint, so memory is one page plus one gzip stream per column
+ * whatever the history size. A part is written into a .tmp directory and
+ * renamed when complete; the checkpoint moves only after that. A crashed run
+ * leaves a .tmp directory that the next run deletes, and a part committed
+ * just before a crash is found through its _meta, so rows are exported once.
+ *
+ * completedAt/createdAt are client clocks stamped before the commit, so a row
+ * can become visible after rows with later times were already exported. A
+ * run only exports rows older than toptri.export.lagMinutes; the lag must
+ * cover client clock skew plus commit latency, or such rows are skipped for
+ * good once the checkpoint passes them.
+ *
+ * The completedRequests query (status == COMPLETED, ordered by completedAt
+ * and document id) needs the composite index requests (status ASC,
+ * completedAt ASC, __name__ ASC).
+ *
+ * Page reads are billed in {@link CostLedger} to whoever started the run:
+ * "OrderExportService" for the schedule, the endpoint for a manual run.
+ */
+@Component
+public class OrderExportService {
+
+  private static final Logger log = LoggerFactory.getLogger(OrderExportService.class);
+
+  static final String ORIGIN = "OrderExportService";
+  static final String COMPLETED_REQUESTS = "completedRequests";
+  static final String ORDERS = "orders";
+
+  private static final String CHECKPOINT = "_checkpoint";
+  private static final String META = "_meta";
+  private static final String TMP = ".tmp";
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+
+  @Value("${toptri.export.enabled:false}")
+  private boolean enabled;
+
+  @Value("${toptri.export.dir:export}")
+  private String dir;
+
+  @Value("${toptri.export.intervalMinutes:60}")
+  private long intervalMinutes;
+
+  @Value("${toptri.export.pageSize:500}")
+  private int pageSize;
+
+  @Value("${toptri.export.rowsPerPart:100000}")
+  private int rowsPerPart;
+
+  @Value("${toptri.export.zone:UTC}")
+  private String zone;
+
+  @Value("${toptri.export.lagMinutes:15}")
+  private long lagMinutes;
+
+  private ScheduledExecutorService scheduler;
+
+  public OrderExportService(ToptriSimpleFirestoreApp.FirebaseHolder fb) {
+    this.fb = fb;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-export");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        runOnce(ORIGIN);
+      } catch (Exception e) {
+        log.error("run failed", e);
+      }
+    }, 2, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  @PreDestroy
+  public void stop() {
+    // lets a run in progress finish its current batch commit instead of interrupting it
+    if (scheduler != null) Lifecycle.drain(scheduler, fb.drainTimeout());
+  }
+
+  // ==================== RUN ====================
+
+  /**
+   * Exports everything after the checkpoints, billing reads to origin;
+   * returns rows written per dataset.
+   */
+  public synchronized Map<String, Long> runOnce(String origin) throws Exception {
+    Firestore db = fb.db();
+    Map<String, Long> out = new LinkedHashMap<>();
+    // rows stamped after this may still be committing, see the class comment
+    Timestamp cutoff = Timestamp.ofTimeMicroseconds((System.currentTimeMillis() - lagMinutes * 60_000) * 1_000);
+
+    out.put(COMPLETED_REQUESTS, export(origin, COMPLETED_REQUESTS, "completedAt", cutoff, REQUEST_COLUMNS, List.of(
+        db.collection("requests").whereEqualTo("status", "COMPLETED"),
+        db.collection(ConversationArchive.COLLECTION))));
+
+    out.put(ORDERS, export(origin, ORDERS, "createdAt", cutoff, ORDER_COLUMNS, List.of(
+        db.collection("orders"))));
+
+    log.info("{}", out);
+    return out;
+  }
+
+  private long export(String origin, String dataset, String timeField, Timestamp cutoff, List<Column> columns,
+                      List<Query> sources) throws Exception {
+    Path root = Paths.get(dir, dataset);
+    Files.createDirectories(root);
+    Cursor checkpoint = recover(root);
+
+    List<Source> open = new ArrayList<>();
+    for (Query q : sources) {
+      open.add(new Source(origin, "export." + dataset, q.whereLessThan(timeField, cutoff), timeField, checkpoint));
+    }
+
+    String run = Long.toString(System.currentTimeMillis(), 36);
+    ZoneId zoneId = ZoneId.of(zone);
+    PartWriter part = null;
+    Cursor last = null;
+    long rows = 0;
+    int seq = 0;
+
+    try {
+      DocumentSnapshot d;
+      while ((d = nextOf(open, timeField)) != null) {
+        Cursor c = new Cursor(d.getTimestamp(timeField), d.getId());
+        if (c.equals(last)) continue; // being archived: in requests and in the archive at once
+        String date = LocalDate.ofInstant(c.time.toDate().toInstant(), zoneId).toString();
+
+        if (part != null && (!part.date.equals(date) || part.rows >= rowsPerPart)) {
+          part.commit(last);
+          writeCheckpoint(root, last);
+          part = null;
+        }
+        if (part == null) part = new PartWriter(root, date, "part-" + run + "-" + (seq++), columns);
+
+        part.write(d);
+        last = c;
+        rows++;
+      }
+      if (part != null) {
+        part.commit(last);
+        writeCheckpoint(root, last);
+        part = null;
+      }
+    } finally {
+      if (part != null) part.abort();
+    }
+    return rows;
+  }
+
+  // one k-way merge step over the sources, each paged independently
+  private static DocumentSnapshot nextOf(List<Source> sources, String timeField) throws Exception {
+    Source best = null;
+    for (Source s : sources) {
+      DocumentSnapshot head = s.peek();
+      if (head == null) continue;
+      if (best == null || compare(head, best.peek(), timeField) < 0) best = s;
+    }
+    return best == null ? null : best.next();
+  }
+
+  private static int compare(DocumentSnapshot a, DocumentSnapshot b, String timeField) {
+    int t = a.getTimestamp(timeField).compareTo(b.getTimestamp(timeField));
+    return t != 0 ? t : a.getId().compareTo(b.getId());
+  }
+
+  private class Source {
+    final String origin, site;
+    final Query base;
+    final String timeField;
+    Cursor after;
+    List<QueryDocumentSnapshot> page = List.of();
+    int pos = 0;
+    boolean exhausted = false;
+
+    Source(String origin, String site, Query base, String timeField, Cursor after) {
+      this.origin = origin;
+      this.site = site;
+      this.base = base;
+      this.timeField = timeField;
+      this.after = after;
+    }
+
+    DocumentSnapshot peek() throws Exception {
+      if (pos >= page.size() && !exhausted) fetch();
+      return pos < page.size() ? page.get(pos) : null;
+    }
+
+    DocumentSnapshot next() throws Exception {
+      DocumentSnapshot d = peek();
+      if (d != null) pos++;
+      return d;
+    }
+
+    private void fetch() throws Exception {
+      Query q = base.orderBy(timeField).orderBy(FieldPath.documentId()).limit(pageSize);
+      if (after != null) q = q.startAfter(after.time, after.id);
+      QuerySnapshot snap = q.get().get();
+      CostLedger.query(origin, site, snap);
+      page = snap.getDocuments();
+      pos = 0;
+      if (page.size() < pageSize) exhausted = true;
+      if (!page.isEmpty()) {
+        DocumentSnapshot tail = page.get(page.size() - 1);
+        after = new Cursor(tail.getTimestamp(timeField), tail.getId());
+      }
+    }
+  }
+
+  // ==================== COLUMNS ====================
+
+  private record Column(String name, String type, Function<DocumentSnapshot, Object> value) {}
+
+  // requests carry these at the top level; archived conversations keep the rest under "request"
+  private static Object field(DocumentSnapshot d, String name) {
+    Object v = d.get(name);
+    if (v == null && d.get("request") instanceof Map<?, ?> req) v = req.get(name);
+    return v;
+  }
+
+  private static Column col(String name, String type) {
+    return new Column(name, type, d -> field(d, name));
+  }
+
+  private static final List<Column> REQUEST_COLUMNS = List.of(
+      new Column("requestId", "string", DocumentSnapshot::getId),
+      col("buyerId", "string"),
+      col("buyerRequestNo", "int64"),
+      col("buyerText", "string"),
+      col("selectedOfferId", "string"),
+      col("grandTotal", "int64"),
+      col("buyerName", "string"),
+      col("address", "string"),
+      col("createdAt", "timestamp"),
+      col("completedAt", "timestamp"),
+      new Column("archived", "bool", d -> d.contains("archivedAt")));
+
+  // /api/orders writes item+score, /api/buyer/buy writes menu+buyer fields
+  private static final List<Column> ORDER_COLUMNS = List.of(
+      new Column("orderId", "string", DocumentSnapshot::getId),
+      col("requestId", "string"),
+      col("rowIndex", "int64"),
+      new Column("item", "string", d -> d.get("item") != null ? d.get("item") : d.get("menu")),
+      col("vendor", "string"),
+      col("price", "int64"),
+      col("score", "double"),
+      col("buyerName", "string"),
+      col("buyerAddress", "string"),
+      col("status", "string"),
+      col("createdAt", "timestamp"));
+
+  private static String encode(Object v) {
+    if (v == null) return "\\N";
+    if (v instanceof Timestamp t) return t.toDate().toInstant().toString();
+    String s = v.toString();
+    StringBuilder b = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '\\' -> b.append("\\\\");
+        case '\n' -> b.append("\\n");
+        case '\r' -> b.append("\\r");
+        case '\t' -> b.append("\\t");
+        default -> b.append(c);
+      }
+    }
+    return b.toString();
+  }
+
+  // ==================== PARTS ====================
+
+  private static class PartWriter {
+    final String date;
+    final Path tmp, done;
+    final List<Column> columns;
+    final List<Writer> writers = new ArrayList<>();
+    long rows = 0;
+
+    PartWriter(Path root, String date, String name, List<Column> columns) throws IOException {
+      this.date = date;
+      this.columns = columns;
+      Path partition = root.resolve("date=" + date);
+      this.tmp = partition.resolve(name + TMP);
+      this.done = partition.resolve(name);
+      Files.createDirectories(tmp);
+      for (Column c : columns) {
+        writers.add(new BufferedWriter(new OutputStreamWriter(
+            new GZIPOutputStream(Files.newOutputStream(tmp.resolve(c.name() + ".gz")), 64 * 1024),
+            StandardCharsets.UTF_8)));
+      }
+    }
+
+    void write(DocumentSnapshot d) throws IOException {
+      for (int i = 0; i < columns.size(); i++) {
+        Writer w = writers.get(i);
+        w.write(encode(columns.get(i).value().apply(d)));
+        w.write('\n');
+      }
+      rows++;
+    }
+
+    void commit(Cursor last) throws IOException {
+      for (Writer w : writers) w.close();
+      StringBuilder schema = new StringBuilder();
+      for (Column c : columns) schema.append(c.name()).append('\t').append(c.type()).append('\n');
+      Files.writeString(tmp.resolve("_schema"), schema);
+      Properties meta = last.toProperties();
+      meta.setProperty("rows", Long.toString(rows));
+      try (Writer w = Files.newBufferedWriter(tmp.resolve(META))) { meta.store(w, null); }
+      Files.move(tmp, done, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void abort() {
+      for (Writer w : writers) {
+        try { w.close(); } catch (IOException ignored) {}
+      }
+      deleteTree(tmp);
+    }
+  }
+
+  // ==================== CHECKPOINT ====================
+
+  private record Cursor(Timestamp time, String id) implements Comparable<Cursor> {
+    Properties toProperties() {
+      Properties p = new Properties();
+      p.setProperty("seconds", Long.toString(time.getSeconds()));
+      p.setProperty("nanos", Integer.toString(time.getNanos()));
+      p.setProperty("id", id);
+      return p;
+    }
+
+    static Cursor from(Properties p) {
+      if (p.getProperty("id") == null) return null;
+      return new Cursor(Timestamp.ofTimeSecondsAndNanos(Long.parseLong(p.getProperty("seconds")),
+          Integer.parseInt(p.getProperty("nanos"))), p.getProperty("id"));
+    }
+
+    @Override
+    public int compareTo(Cursor o) {
+      int t = time.compareTo(o.time);
+      return t != 0 ? t : id.compareTo(o.id);
+    }
+  }
+
+  /**
+   * Deletes parts left half-written by a crashed run and returns where to
+   * resume: the checkpoint, or a later part committed right before a crash.
+   */
+  private static Cursor recover(Path root) throws IOException {
+    Cursor checkpoint = Files.exists(root.resolve(CHECKPOINT)) ? Cursor.from(load(root.resolve(CHECKPOINT))) : null;
+    String fromDate = checkpoint == null ? "" : "date=" + checkpoint.time.toDate().toInstant().toString().substring(0, 10);
+
+    Cursor best = checkpoint;
+    try (Stream<Path> partitions = Files.list(root)) {
+      for (Path partition : partitions.filter(Files::isDirectory).toList()) {
+        // parts are only ever committed after the checkpoint's partition (or in it); +-1 day covers the zone offset
+        boolean recent = fromDate.isEmpty()
+            || partition.getFileName().toString().compareTo(dayBefore(fromDate)) >= 0;
+        try (Stream<Path> parts = Files.list(partition)) {
+          for (Path part : parts.toList()) {
+            if (part.getFileName().toString().endsWith(TMP)) { deleteTree(part); continue; }
+            if (!recent || !Files.exists(part.resolve(META))) continue;
+            Cursor c = Cursor.from(load(part.resolve(META)));
+            if (c != null && (best == null || c.compareTo(best) > 0)) best = c;
+          }
+        }
+      }
+    }
+    if (best != null && !best.equals(checkpoint)) writeCheckpoint(root, best);
+    return best;
+  }
+
+  private static String dayBefore(String partitionName) {
+    return "date=" + LocalDate.parse(partitionName.substring(5)).minusDays(1);
+  }
+
+  private static void writeCheckpoint(Path root, Cursor c) throws IOException {
+    Path tmp = root.resolve(CHECKPOINT + TMP);
+    try (Writer w = Files.newBufferedWriter(tmp)) { c.toProperties().store(w, null); }
+    Files.move(tmp, root.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static Properties load(Path file) throws IOException {
+    Properties p = new Properties();
+    try (Reader r = Files.newBufferedReader(file)) { p.load(r); }
+    return p;
+  }
+
+  private static void deleteTree(Path p) {
+    try (Stream<Path> walk = Files.walk(p)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+    } catch (IOException ignored) {
+    }
+  }
+}
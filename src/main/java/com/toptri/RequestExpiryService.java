@@ -0,0 +1,196 @@
+package com.toptri;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+import com.toptri.desktop.ConversationView;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.Lifecycle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Marks OPEN requests EXPIRED once they have been idle (no write to the
+ * request document) for toptri.expiry.idleMinutes, so the open set every
+ * seller and buyer listens to stays bounded.
+ *
+ * One snapshot listener on status == OPEN keeps a timer per request in a
+ * {@link HierarchicalTimingWheel}, due idleMinutes after the document's
+ * updateTime; any write to the request (a message, an offer's offerCount)
+ * re-arms it. Each timer carries the version it was armed for, and due
+ * requests are expired in batches through a BulkWriter with that version's
+ * updateTime as precondition, so a request touched after its timer was armed
+ * is left alone and simply re-armed by the listener.
+ *
+ * Listener deliveries and committed writes are billed to "RequestExpiryService"
+ * in {@link CostLedger}.
+ */
+@Component
+public class RequestExpiryService {
+
+  private static final Logger log = LoggerFactory.getLogger(RequestExpiryService.class);
+
+  private static final String ORIGIN = "RequestExpiryService";
+
+  private static final int WHEEL_SIZE = 64;
+  private static final int MAX_BATCH_OPS = 500;
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+
+  @Value("${toptri.expiry.enabled:true}")
+  private boolean enabled;
+
+  @Value("${toptri.expiry.idleMinutes:30}")
+  private long idleMinutes;
+
+  @Value("${toptri.expiry.tickMillis:1000}")
+  private long tickMillis;
+
+  @Value("${toptri.expiry.batchSize:200}")
+  private int batchSize;
+
+  private HierarchicalTimingWheel<Armed> wheel;
+  private ListenerRegistration openListener;
+  private ScheduledExecutorService ticker;
+
+  // the version the listener last armed per request; the wheel holds the same tokens
+  private final Map<String, Armed> armed = new ConcurrentHashMap<>();
+  private final Queue<Armed> due = new ConcurrentLinkedQueue<>();
+
+  // one request version: its updateTime is the expiry precondition, its sellers the inbox cleanup
+  private record Armed(String id, Timestamp updateTime, List<String> inboxSellerIds) {}
+
+  public RequestExpiryService(ToptriSimpleFirestoreApp.FirebaseHolder fb) {
+    this.fb = fb;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (!enabled) return;
+    wheel = new HierarchicalTimingWheel<>(tickMillis, WHEEL_SIZE, System.currentTimeMillis());
+
+    openListener = fb.db().collection("requests")
+        .whereEqualTo("status", "OPEN")
+        .addSnapshotListener((snap, err) -> {
+          if (err != null) {
+            log.error("listener error", err);
+            return;
+          }
+          if (snap == null) return;
+          CostLedger.delivered(ORIGIN, "requests.open", snap);
+          onOpenRequests(snap);
+        });
+
+    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-expiry");
+      t.setDaemon(true);
+      return t;
+    });
+    ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (openListener != null) openListener.remove();
+    if (ticker != null) Lifecycle.drain(ticker, fb.drainTimeout());
+  }
+
+  // ==================== ARMING ====================
+
+  @SuppressWarnings("unchecked")
+  private void onOpenRequests(QuerySnapshot snap) {
+    long idleMs = TimeUnit.MINUTES.toMillis(idleMinutes);
+    for (DocumentChange change : snap.getDocumentChanges()) {
+      QueryDocumentSnapshot d = change.getDocument();
+      String id = d.getId();
+      if (change.getType() == DocumentChange.Type.REMOVED) {
+        Armed prev = armed.remove(id);
+        if (prev != null) wheel.cancel(prev);
+        continue;
+      }
+      Object sellers = d.get("inboxSellerIds");
+      Armed a = new Armed(id, d.getUpdateTime(),
+          sellers instanceof List ? (List<String>) sellers : Collections.emptyList());
+      Armed prev = armed.put(id, a);
+      if (prev != null) wheel.cancel(prev); // if it fires meanwhile, flushBatch drops it as superseded
+      wheel.schedule(a, d.getUpdateTime().toDate().getTime() + idleMs);
+    }
+  }
+
+  // ==================== EXPIRING ====================
+
+  private void tick() {
+    try {
+      wheel.advanceTo(System.currentTimeMillis(), due::add);
+      while (!due.isEmpty()) flushBatch();
+    } catch (Exception e) {
+      log.error("tick failed", e);
+    }
+  }
+
+  private void flushBatch() throws Exception {
+    Firestore db = fb.db();
+    Map<String, Armed> batch = new LinkedHashMap<>();
+    Armed a;
+    while (batch.size() < batchSize && (a = due.poll()) != null) {
+      // re-armed (or closed) since this timer was set: the newer version has its own timer
+      if (a.equals(armed.get(a.id()))) batch.put(a.id(), a);
+    }
+    if (batch.isEmpty()) return;
+
+    Timestamp now = Timestamp.now();
+    Map<String, Object> patch = Map.of("status", "EXPIRED", "expiredAt", now);
+
+    BulkWriter writer = db.bulkWriter();
+    Map<String, ApiFuture<WriteResult>> results = new LinkedHashMap<>();
+    for (Map.Entry<String, Armed> e : batch.entrySet()) {
+      DocumentReference ref = db.collection("requests").document(e.getKey());
+      results.put(e.getKey(), writer.update(ref, patch, Precondition.updatedAt(e.getValue().updateTime())));
+    }
+    writer.close();
+
+    // mark the conversation views and drop the seller inbox entries of the requests that actually expired
+    WriteBatch cleanup = db.batch();
+    int ops = 0, expired = 0;
+    for (Map.Entry<String, ApiFuture<WriteResult>> r : results.entrySet()) {
+      try {
+        r.getValue().get();
+      } catch (ExecutionException stale) {
+        continue; // touched since the timer fired: the listener has re-armed it
+      }
+      expired++;
+      cleanup.set(db.collection(ConversationView.COLLECTION).document(r.getKey()),
+          Map.of("status", "EXPIRED", "updatedAt", now), SetOptions.merge());
+      if (++ops == MAX_BATCH_OPS) {
+        commitCleanup(cleanup);
+        cleanup = db.batch();
+        ops = 0;
+      }
+      for (String sellerId : batch.get(r.getKey()).inboxSellerIds()) {
+        cleanup.delete(db.collection("sellerInbox").document(sellerId).collection("items").document(r.getKey()));
+        if (++ops == MAX_BATCH_OPS) {
+          commitCleanup(cleanup);
+          cleanup = db.batch();
+          ops = 0;
+        }
+      }
+    }
+    // a write that failed its precondition is not billed
+    CostLedger.write(ORIGIN, "requests.expire", expired);
+    if (ops > 0) commitCleanup(cleanup);
+    log.info("expired {}/{} requests, {} still armed", expired, batch.size(), wheel.size());
+  }
+
+  private static void commitCleanup(WriteBatch cleanup) throws Exception {
+    int writes = cleanup.getMutationsSize();
+    cleanup.commit().get();
+    CostLedger.write(ORIGIN, "expiry.cleanup", writes);
+  }
+}
@@ -0,0 +1,340 @@
+package com.toptri;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.FirestoreService;
+import com.toptri.desktop.GatewayProtocol;
+import com.fasterxml.jackson.databind.JsonNode;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Subscription gateway at /gateway (wire format in {@link GatewayProtocol}).
+ *
+ * Desktops subscribe to a conversation's view, messages or offers, or a seller's inbox
+ * here instead of opening their own Firestore listeners. The gateway keeps
+ * one Firestore listener per topic no matter how many desktops watch it,
+ * caches the last result, and fans every update out to all subscribers; a
+ * late subscriber gets the cached list immediately without a read. The
+ * listener is removed when the last subscriber leaves.
+ *
+ * Every sub must carry a token signed with toptri.gateway.secret (see
+ * {@link GatewayProtocol#token}); a seller only gets their own inbox, and a
+ * conversation is only served to its buyer and the sellers in its
+ * inboxSellerIds. Browsers are limited to toptri.gateway.allowedOrigins
+ * (none by default); the desktop client sends no Origin header.
+ *
+ * A topic whose Firestore listener fails drops its cache, reports the error
+ * to its subscribers and re-listens with a growing back-off while anyone is
+ * still subscribed; they get the full list again once it is back.
+ */
+@Configuration
+@EnableWebSocket
+public class SubscriptionGateway implements WebSocketConfigurer {
+
+  private static final Logger log = LoggerFactory.getLogger(SubscriptionGateway.class);
+
+  private static final int SEND_TIME_LIMIT_MS = 10_000;
+  private static final int SEND_BUFFER_BYTES = 1024 * 1024;
+  private static final long RETRY_MS = 2_000;
+  private static final long MAX_RETRY_MS = 60_000;
+
+  private final ToptriSimpleFirestoreApp.FirebaseHolder fb;
+  private final String secret;
+  private final String[] allowedOrigins;
+  private volatile FirestoreService service;
+
+  private final ScheduledExecutorService retries;
+
+  // topicKey -> topic; all topic state is guarded by the topics map
+  private final Map<String, Topic> topics = new HashMap<>();
+  private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+  public SubscriptionGateway(ToptriSimpleFirestoreApp.FirebaseHolder fb,
+                             @Value("${toptri.gateway.secret:}") String secret,
+                             @Value("${toptri.gateway.allowedOrigins:}") String[] allowedOrigins) {
+    this.fb = fb;
+    this.secret = secret.trim();
+    this.allowedOrigins = allowedOrigins;
+    this.retries = fb.lifecycle().manage(Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "toptri-gateway-retry");
+      t.setDaemon(true);
+      return t;
+    }));
+    if (this.secret.isEmpty()) {
+      log.warn("toptri.gateway.secret is not set: every subscription will be refused");
+    }
+  }
+
+  @Override
+  public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+    registry.addHandler(new Handler(), "/gateway").setAllowedOrigins(allowedOrigins);
+  }
+
+  @PreDestroy
+  public void stop() {
+    synchronized (topics) {
+      for (Topic t : topics.values()) release(t);
+      topics.clear();
+    }
+  }
+
+  // ==================== TOPICS ====================
+
+  private static class Topic {
+    final String key, name, docKey;
+    final Map<Subscriber, Boolean> subscribers = new LinkedHashMap<>();
+    ListenerRegistration registration; // null while waiting to re-listen after a failure
+    String lastItems; // serialized items array of the last update, null until the first one
+    long retryMs = RETRY_MS;
+
+    Topic(String key, String name, String docKey) {
+      this.key = key;
+      this.name = name;
+      this.docKey = docKey;
+    }
+  }
+
+  private record Subscriber(String sessionId, String subId) {}
+
+  private FirestoreService service() {
+    FirestoreService s = service;
+    if (s == null) {
+      synchronized (this) {
+        if (service == null) service = new FirestoreService(fb.db(), "SubscriptionGateway", fb.lifecycle());
+        s = service;
+      }
+    }
+    return s;
+  }
+
+  private void subscribe(WebSocketSession session, String subId, String topicName, String key, String token)
+      throws Exception {
+    String principal = GatewayProtocol.verify(secret, token);
+    if (principal == null) throw new SecurityException("unauthorized");
+    if (!authorized(principal, topicName, key)) {
+      throw new SecurityException(principal + " may not subscribe to " + topicName + "/" + key);
+    }
+
+    String topicKey = GatewayProtocol.topicKey(topicName, key);
+    Subscriber sub = new Subscriber(session.getId(), subId);
+    String cached;
+
+    synchronized (topics) {
+      Topic topic = topics.get(topicKey);
+      if (topic == null) {
+        topic = new Topic(topicKey, topicName, key);
+        arm(topic);
+        topics.put(topicKey, topic);
+        log.info("listening {}", topicKey);
+      }
+      topic.subscribers.put(sub, Boolean.TRUE);
+      cached = topic.lastItems;
+    }
+
+    if (cached != null) send(session, dataFrame(subId, cached));
+  }
+
+  // a seller sees their own inbox; a conversation is visible to its buyer and the sellers it was fanned out to
+  private boolean authorized(String principal, String topicName, String key) throws Exception {
+    if (key.isBlank()) return false;
+    if (topicName.equals(GatewayProtocol.TOPIC_INBOX)) return principal.equals(GatewayProtocol.seller(key));
+    if (!topicName.equals(GatewayProtocol.TOPIC_MESSAGES) && !topicName.equals(GatewayProtocol.TOPIC_OFFERS)
+        && !topicName.equals(GatewayProtocol.TOPIC_VIEW)) return false;
+
+    DocumentSnapshot req = fb.db().collection("requests").document(key).get().get();
+    CostLedger.read("SubscriptionGateway", "gateway.authorize", 1);
+    if (!req.exists()) return false;
+    if (principal.equals(GatewayProtocol.buyer(String.valueOf(req.getString("buyerId")).trim()))) return true;
+    return req.get("inboxSellerIds") instanceof List<?> sellers
+        && sellers.stream().anyMatch(s -> principal.equals(GatewayProtocol.seller(String.valueOf(s))));
+  }
+
+  // caller holds the topics lock
+  private void arm(Topic t) {
+    t.registration = listen(t.name, t.docKey, items -> publish(t, items), err -> fail(t, err));
+  }
+
+  private static void release(Topic t) {
+    if (t.registration != null) t.registration.remove();
+    t.registration = null;
+  }
+
+  private ListenerRegistration listen(String topicName, String key,
+                                      Consumer<List<Map<String, Object>>> onItems, Consumer<Exception> onError) {
+    FirestoreService fs = service();
+    return switch (topicName) {
+      case GatewayProtocol.TOPIC_MESSAGES -> fs.listenMessages(key,
+          list -> onItems.accept(list.stream().map(GatewayProtocol::encode).toList()), onError);
+      case GatewayProtocol.TOPIC_OFFERS -> fs.listenAllOffers(key,
+          list -> onItems.accept(list.stream().map(GatewayProtocol::encode).toList()), onError);
+      case GatewayProtocol.TOPIC_INBOX -> fs.listenSellerInbox(key,
+          list -> onItems.accept(list.stream().map(GatewayProtocol::encode).toList()), onError);
+      case GatewayProtocol.TOPIC_VIEW -> fs.listenConversationView(key,
+          view -> onItems.accept(view == null ? List.of() : List.of(GatewayProtocol.encode(view))), onError);
+      default -> throw new IllegalArgumentException("unknown topic " + topicName);
+    };
+  }
+
+  private void unsubscribe(String sessionId, String subId) {
+    synchronized (topics) {
+      Subscriber sub = new Subscriber(sessionId, subId);
+      for (Iterator<Topic> it = topics.values().iterator(); it.hasNext(); ) {
+        Topic t = it.next();
+        if (t.subscribers.remove(sub) != null && t.subscribers.isEmpty()) {
+          release(t);
+          it.remove();
+          log.info("released {}", t.key);
+        }
+      }
+    }
+  }
+
+  private void dropSession(String sessionId) {
+    synchronized (topics) {
+      for (Iterator<Topic> it = topics.values().iterator(); it.hasNext(); ) {
+        Topic t = it.next();
+        t.subscribers.keySet().removeIf(s -> s.sessionId().equals(sessionId));
+        if (t.subscribers.isEmpty()) {
+          release(t);
+          it.remove();
+          log.info("released {}", t.key);
+        }
+      }
+    }
+  }
+
+  // ==================== FAN-OUT ====================
+
+  private void publish(Topic topic, List<Map<String, Object>> items) {
+    String json;
+    try {
+      json = GatewayProtocol.JSON.writeValueAsString(items);
+    } catch (Exception e) {
+      log.error("encode failed for {}", topic.key, e);
+      return;
+    }
+    List<Subscriber> targets;
+    synchronized (topics) {
+      topic.lastItems = json;
+      topic.retryMs = RETRY_MS;
+      targets = new ArrayList<>(topic.subscribers.keySet());
+    }
+    for (Subscriber s : targets) {
+      WebSocketSession session = sessions.get(s.sessionId());
+      if (session != null) send(session, dataFrame(s.subId(), json));
+    }
+  }
+
+  private void fail(Topic topic, Exception err) {
+    List<Subscriber> targets;
+    long delay;
+    synchronized (topics) {
+      if (topics.get(topic.key) != topic) return; // released meanwhile
+      // a failed Firestore listener never fires again: drop it and the now stale cache
+      release(topic);
+      topic.lastItems = null;
+      delay = topic.retryMs;
+      topic.retryMs = Math.min(topic.retryMs * 2, MAX_RETRY_MS);
+      targets = new ArrayList<>(topic.subscribers.keySet());
+    }
+    log.warn("listener failed for {}, retrying in {} ms: {}", topic.key, delay, err.getMessage());
+    for (Subscriber s : targets) {
+      WebSocketSession session = sessions.get(s.sessionId());
+      if (session != null) send(session, errorFrame(s.subId(), String.valueOf(err.getMessage())));
+    }
+    retries.schedule(() -> rearm(topic), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void rearm(Topic topic) {
+    try {
+      synchronized (topics) {
+        if (topics.get(topic.key) != topic || topic.registration != null) return;
+        arm(topic);
+      }
+    } catch (Exception e) {
+      fail(topic, e);
+    }
+  }
+
+  private static String dataFrame(String subId, String itemsJson) {
+    // items are already serialized once per update, so only the envelope is built per subscriber
+    try {
+      return "{\"op\":\"data\",\"id\":" + GatewayProtocol.JSON.writeValueAsString(subId)
+          + ",\"items\":" + itemsJson + "}";
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String errorFrame(String subId, String message) {
+    try {
+      return GatewayProtocol.JSON.writeValueAsString(Map.of("op", "error", "id", subId, "message", message));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void send(WebSocketSession session, String text) {
+    try {
+      if (session.isOpen()) session.sendMessage(new TextMessage(text));
+    } catch (Exception e) {
+      log.warn("send to {} failed: {}", session.getId(), e.getMessage());
+    }
+  }
+
+  // ==================== HANDLER ====================
+
+  private class Handler extends TextWebSocketHandler {
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+      // a slow desktop gets disconnected instead of blocking the fan-out for everyone
+      sessions.put(session.getId(),
+          new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT_MS, SEND_BUFFER_BYTES));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+      JsonNode frame = GatewayProtocol.JSON.readTree(message.getPayload());
+      String op = frame.path("op").asText();
+      String subId = frame.path("id").asText();
+      WebSocketSession out = sessions.getOrDefault(session.getId(), session);
+      try {
+        switch (op) {
+          case "sub" -> subscribe(out, subId, frame.path("topic").asText(), frame.path("key").asText(),
+              frame.path("token").asText(null));
+          case "unsub" -> unsubscribe(session.getId(), subId);
+          default -> send(out, errorFrame(subId, "unknown op " + op));
+        }
+      } catch (Exception e) {
+        send(out, errorFrame(subId, String.valueOf(e.getMessage())));
+      }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+      sessions.remove(session.getId());
+      dropSession(session.getId());
+    }
+  }
+}
@@ -6,16 +6,23 @@ import com.google.cloud.firestore.*;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.cloud.FirestoreClient;
+import com.toptri.desktop.CostLedger;
+import com.toptri.desktop.GatewayProtocol;
+import com.toptri.desktop.Lifecycle;
+import com.toptri.desktop.TimeShards;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 
@@ -32,7 +39,12 @@ public class ToptriSimpleFirestoreApp {
     @Value("${firebase.serviceAccountPath}")
     private Resource serviceAccount;
 
+    // budget for in-flight work on shutdown: each job's current run, then the Firestore client
+    @Value("${toptri.shutdown.drainSeconds:10}")
+    private long drainSeconds;
+
     private Firestore db;
+    private final Lifecycle lifecycle = new Lifecycle("backend");
 
     @PostConstruct
     public void init() throws IOException {
@@ -40,12 +52,23 @@ public class ToptriSimpleFirestoreApp {
         FirebaseOptions options = FirebaseOptions.builder()
             .setCredentials(GoogleCredentials.fromStream(serviceAccount.getInputStream()))
             .build();
-        FirebaseApp.initializeApp(options);
+        // deleting the app closes the Firestore client and its gRPC channels
+        lifecycle.onShutdown(FirebaseApp.initializeApp(options)::delete);
       }
       db = FirestoreClient.getFirestore();
     }
 
+    // runs after every service that depends on this holder has stopped
+    @PreDestroy
+    public void shutdown() {
+      lifecycle.shutdown(drainTimeout());
+    }
+
     public Firestore db() { return db; }
+
+    public Lifecycle lifecycle() { return lifecycle; }
+
+    public Duration drainTimeout() { return Duration.ofSeconds(Math.max(drainSeconds, 0)); }
   }
 
   // ==================== DTOs ====================
@@ -82,6 +105,19 @@ public static class BuyerBuyDto {
     public Double score;    // optional
   }
 
+  // Seller PUT /api/seller/auto-offer (rules of the headless auto-offer engine)
+  public static class AutoOfferRulesDto {
+    public String sellerId;
+    public Boolean enabled;
+    public Integer maxUnitPrice;        // 0 = no cap
+    public Integer maxGrandTotal;       // 0 = no cap
+    public Integer maxEtaMinutes;       // 0 = no cap
+    public Double minRating;            // optional
+    public Integer maxOffersPerMessage; // 1..3
+    public Integer maxOffersPerMinute;  // 0 = unthrottled
+    public String contact;              // optional, shown on the offer
+  }
+
   // ==================== HELPERS ====================
   private static String norm(String s) {
     return (s == null) ? "" : s.trim().toLowerCase();
@@ -93,9 +129,28 @@ public static class BuyerBuyDto {
   @CrossOrigin
   public static class ApiController {
     private final FirebaseHolder fb;
+    private final OrderExportService exporter;
+
+    // signs the per-seller tokens accepted by the seller endpoints (same secret as the gateway)
+    @Value("${toptri.gateway.secret:}")
+    private String secret;
 
-    public ApiController(FirebaseHolder fb) {
+    public ApiController(FirebaseHolder fb, OrderExportService exporter) {
       this.fb = fb;
+      this.exporter = exporter;
+    }
+
+    // "Authorization: Bearer <token>" signed for seller:{sellerId}, see GatewayProtocol.token
+    private boolean isSeller(String authorization, String sellerId) {
+      if (authorization == null || !authorization.startsWith("Bearer ")) return false;
+      String principal = GatewayProtocol.verify(secret.trim(), authorization.substring("Bearer ".length()).trim());
+      return GatewayProtocol.seller(sellerId).equals(principal);
+    }
+
+    // document reads/writes of an endpoint, billed to "METHOD /api/path" in CostLedger
+    private static void cost(String endpoint, String site, long reads, long writes) {
+      CostLedger.read(endpoint, site, reads);
+      CostLedger.write(endpoint, site, writes);
     }
     public static class OrderDto {
   public String requestId;
@@ -125,11 +180,13 @@ public static class BuyerBuyDto {
       doc.put("category", norm(text));   // simple: category = text
       doc.put("status", "NEW");          // NEW | CLAIMED
       doc.put("createdAt", Timestamp.now());
+      doc.put(TimeShards.FIELD, TimeShards.shardOf(rid));
 
       fb.db().collection("requests")
           .document(rid)
           .set(doc)
           .get();
+      cost("POST /api/requests", "requests.set", 0, 1);
 
       return ResponseEntity.ok().build();
     }
@@ -140,17 +197,14 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
   Firestore db = fb.db();
 
   Map<String, Object> out = db.runTransaction(tx -> {
-    Query q = db.collection("requests")
-        .whereEqualTo("status", "NEW")
-        // match index kamu yg ASC
-        .orderBy("createdAt", Query.Direction.ASCENDING)
-        .limit(20);
+    // index (status, timeShard, createdAt ASC): one query per shard, merged by createdAt
+    List<QueryDocumentSnapshot> docs = TimeShards.get(tx,
+        db.collection("requests").whereEqualTo("status", "NEW"),
+        "createdAt", Query.Direction.ASCENDING, 20);
+    // lower bound: every shard query costs at least one read
+    cost("GET /api/requests/latest", "requests.claim", Math.max(docs.size(), TimeShards.SHARDS), docs.isEmpty() ? 0 : 1);
+    if (docs.isEmpty()) return null;
 
-    QuerySnapshot snap = tx.get(q).get();
-    if (snap.isEmpty()) return null;
-
-    // IMPORTANT: getDocuments() -> List<QueryDocumentSnapshot>
-    List<QueryDocumentSnapshot> docs = snap.getDocuments();
     QueryDocumentSnapshot doc = docs.get(docs.size() - 1); // latest (karena ASC)
 
     tx.update(doc.getReference(), "status", "CLAIMED");
@@ -177,6 +231,7 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
           .document(rid)
           .collection("rows")
           .get().get();
+      cost("GET /api/buyer/rows", "rows.get", Math.max(1, snap.size()), 0);
 
       List<Map<String, Object>> rows = new ArrayList<>();
       for (QueryDocumentSnapshot d : snap.getDocuments()) {
@@ -208,6 +263,7 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
           .collection("requests").document(rid)
           .collection("rows")
           .get().get();
+      cost("POST /api/seller/pick", "rows.get", Math.max(1, rowsSnap.size()), 0);
 
       boolean[] used = new boolean[3];
       for (QueryDocumentSnapshot d : rowsSnap.getDocuments()) {
@@ -242,6 +298,7 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
           .document(String.valueOf(slot))
           .set(rowDoc)
           .get();
+      cost("POST /api/seller/pick", "rows.set", 0, 1);
 
       return ResponseEntity.ok(Map.of("slot", slot, "menuName", dto.menuName.trim()));
     }
@@ -278,6 +335,7 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
           .document(String.valueOf(dto.rowIndex))
           .set(rowDoc)
           .get();
+      cost("POST /api/seller/row", "rows.set", 0, 1);
 
       return ResponseEntity.ok().build();
     }
@@ -292,6 +350,7 @@ public ResponseEntity<Map<String, Object>> claimLatestRequest() throws Exception
           .whereEqualTo("category", norm(category))
           .whereEqualTo("available", true)
           .get().get();
+      cost("GET /api/menus", "menus.byCategory", Math.max(1, snap.size()), 0);
 
       List<Map<String, Object>> out = new ArrayList<>();
       for (QueryDocumentSnapshot d : snap.getDocuments()) {
@@ -322,10 +381,86 @@ public ResponseEntity<Void> createOrder(@RequestBody OrderDto dto)
 
   String orderId = "order_" + UUID.randomUUID();
   fb.db().collection("orders").document(orderId).set(doc).get();
+  cost("POST /api/orders", "orders.set", 0, 1);
 
   return ResponseEntity.ok().build();
 }
 
+    // -------- Seller: auto-offer rules + audit trail --------
+    @PutMapping("/seller/auto-offer")
+    public ResponseEntity<Void> saveAutoOfferRules(@RequestHeader(value = "Authorization", required = false) String authorization,
+                                                   @RequestBody AutoOfferRulesDto dto)
+        throws ExecutionException, InterruptedException {
+
+      if (dto == null || dto.sellerId == null || dto.sellerId.isBlank()) {
+        return ResponseEntity.badRequest().build();
+      }
+      if (!isSeller(authorization, dto.sellerId.trim())) {
+        return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+      }
+
+      AutoOfferService.Rules rules = new AutoOfferService.Rules(dto.sellerId.trim(),
+          Boolean.TRUE.equals(dto.enabled),
+          dto.maxUnitPrice == null ? 0 : dto.maxUnitPrice,
+          dto.maxGrandTotal == null ? 0 : dto.maxGrandTotal,
+          dto.maxEtaMinutes == null ? 0 : dto.maxEtaMinutes,
+          dto.minRating == null ? 0.0 : dto.minRating,
+          dto.maxOffersPerMessage == null ? 1 : dto.maxOffersPerMessage,
+          dto.maxOffersPerMinute == null ? 30 : dto.maxOffersPerMinute,
+          dto.contact);
+
+      fb.db().collection(AutoOfferService.RULES)
+          .document(rules.sellerId)
+          .set(rules.toMap())
+          .get();
+      cost("PUT /api/seller/auto-offer", "autoOfferRules.set", 0, 1);
+
+      return ResponseEntity.ok().build();
+    }
+
+    @GetMapping("/seller/auto-offer/audit")
+    public ResponseEntity<List<Map<String, Object>>> autoOfferAudit(
+        @RequestHeader(value = "Authorization", required = false) String authorization,
+        @RequestParam String sellerId,
+        @RequestParam(defaultValue = "50") int limit)
+        throws ExecutionException, InterruptedException {
+
+      if (!isSeller(authorization, sellerId.trim())) {
+        return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+      }
+
+      QuerySnapshot snap = fb.db().collection(AutoOfferService.AUDIT)
+          .whereEqualTo("sellerId", sellerId.trim())
+          .orderBy("at", Query.Direction.DESCENDING)
+          .limit(Math.min(Math.max(limit, 1), 500))
+          .get().get();
+      cost("GET /api/seller/auto-offer/audit", "autoOfferAudit.query", Math.max(1, snap.size()), 0);
+
+      List<Map<String, Object>> out = new ArrayList<>();
+      for (QueryDocumentSnapshot d : snap.getDocuments()) {
+        Map<String, Object> m = new HashMap<>(d.getData());
+        m.put("id", d.getId());
+        out.add(m);
+      }
+      return ResponseEntity.ok(out);
+    }
+
+    // -------- Ops: billed document reads/writes per endpoint/job and call site --------
+    @GetMapping("/cost")
+    public List<Map<String, Object>> cost(@RequestParam(defaultValue = "20") int top) {
+      List<Map<String, Object>> out = new ArrayList<>();
+      for (CostLedger.Entry e : CostLedger.top(null, Math.min(Math.max(top, 1), 500))) {
+        out.add(Map.of("origin", e.origin, "site", e.site, "reads", e.reads(), "writes", e.writes()));
+      }
+      return out;
+    }
+
+    // -------- Finance: incremental export of completed orders --------
+    @PostMapping("/export/run")
+    public Map<String, Long> runExport() throws Exception {
+      return exporter.runOnce("POST /api/export/run");
+    }
+
 @PostMapping("/buyer/buy")
 public ResponseEntity<?> buy(@RequestBody BuyerBuyDto dto) throws Exception {
   if (dto == null || dto.requestId == null || dto.requestId.isBlank()) {
@@ -343,6 +478,7 @@ public ResponseEntity<?> buy(@RequestBody BuyerBuyDto dto) throws Exception {
     Map<String, Object> result = db.runTransaction(tx -> {
       DocumentReference reqRef = db.collection("requests").document(rid);
       DocumentSnapshot reqDoc = tx.get(reqRef).get();
+      cost("POST /api/buyer/buy", "buy.tx", 1, 0);
       if (!reqDoc.exists()) {
         // 404 -> dilempar sebagai IllegalStateException biar ketangkep di catch bawah
         throw new IllegalStateException("REQUEST_NOT_FOUND");
@@ -356,6 +492,7 @@ public ResponseEntity<?> buy(@RequestBody BuyerBuyDto dto) throws Exception {
 
       DocumentReference rowRef = reqRef.collection("rows").document(String.valueOf(idx));
       DocumentSnapshot rowDoc = tx.get(rowRef).get();
+      cost("POST /api/buyer/buy", "buy.tx", 1, 0);
       if (!rowDoc.exists()) {
         throw new IllegalStateException("ROW_NOT_FOUND");
       }
@@ -397,6 +534,8 @@ public ResponseEntity<?> buy(@RequestBody BuyerBuyDto dto) throws Exception {
 
       return order;
     }).get();
+    // reads are billed on every attempt, the three writes only once the commit succeeded
+    cost("POST /api/buyer/buy", "buy.tx", 0, 3);
 
     return ResponseEntity.ok(result);
 
@@ -0,0 +1,152 @@
+package com.toptri.desktop;
+
+import com.google.cloud.firestore.*;
+
+import java.util.*;
+
+/**
+ * One-off backfills of denormalized documents for data written before they existed.
+ *
+ *   BackfillTool buyerSummary
+ *       rebuilds buyerSummary/{buyerId} (count, spend, recent orders) from every
+ *       COMPLETED request and archived conversation, and marks it complete so the
+ *       buyer window trusts its count instead of paging the history
+ *
+ *   BackfillTool sellerInbox
+ *       fans every OPEN request created before the seller inbox out to its
+ *       matching sellers (inboxSellerIds + sellerInbox/{sellerId}/items entries),
+ *       so it shows up in their request lists again
+ *
+ *   BackfillTool pendingMessages
+ *       sets pendingMessages to the number of message documents on every request
+ *       that has never been compacted, so conversations from before the counter
+ *       (which a later send would otherwise leave at a small increment) are
+ *       picked up by MessageCompactionService
+ *
+ * Safe to re-run and to run against the live database: every summary is
+ * written in a transaction that keeps orders completed while the scan ran,
+ * and requests that already have a fan-out are skipped.
+ */
+public class BackfillTool {
+
+    private static final int PAGE = 500;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "";
+        FirestoreService fs = new FirestoreService().forOrigin("BackfillTool");
+        Firestore db = fs.db();
+
+        switch (mode) {
+            case "buyerSummary" -> System.out.println("[backfill] " + buyerSummaries(db) + " buyer summaries rebuilt");
+            case "sellerInbox" -> System.out.println("[backfill] " + sellerInboxes(fs) + " open requests fanned out");
+            case "pendingMessages" -> System.out.println("[backfill] " + pendingMessages(db) + " message counters corrected");
+            default -> System.out.println("usage: BackfillTool buyerSummary | sellerInbox | pendingMessages");
+        }
+    }
+
+    // ============================================================
+    // SELLER INBOX
+    // ============================================================
+
+    static int sellerInboxes(FirestoreService fs) throws Exception {
+        int requests = 0;
+        long entries = 0;
+        DocumentSnapshot cursor = null;
+        while (true) {
+            Query q = fs.db().collection("requests").whereEqualTo("status", "OPEN")
+                    .orderBy(FieldPath.documentId()).limit(PAGE);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> page = q.get().get().getDocuments();
+            if (page.isEmpty()) break;
+            for (QueryDocumentSnapshot d : page) {
+                int n = fs.backfillInbox(d);
+                if (n > 0) { requests++; entries += n; }
+            }
+            System.out.println("[backfill] " + requests + " requests, " + entries + " inbox entries");
+            cursor = page.get(page.size() - 1);
+            if (page.size() < PAGE) break;
+        }
+        return requests;
+    }
+
+    // ============================================================
+    // PENDING MESSAGES
+    // ============================================================
+
+    static int pendingMessages(Firestore db) throws Exception {
+        int corrected = 0, scanned = 0;
+        DocumentSnapshot cursor = null;
+        while (true) {
+            Query q = db.collection("requests").orderBy(FieldPath.documentId()).limit(PAGE);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> page = q.get().get().getDocuments();
+            if (page.isEmpty()) break;
+            for (QueryDocumentSnapshot d : page) {
+                if (d.contains("chunkCount")) continue; // compacted at least once: counted since creation
+                DocumentReference ref = d.getReference();
+                // messages are written in the same batch as the request's increment, so counting
+                // inside a transaction on the request cannot miss or double-count a concurrent send
+                boolean changed = db.runTransaction(tx -> {
+                    DocumentSnapshot req = tx.get(ref).get();
+                    long count = tx.get(ref.collection("messages").count()).get().getCount();
+                    Long pending = req.getLong("pendingMessages");
+                    if (pending != null && pending == count) return false;
+                    tx.update(ref, "pendingMessages", count);
+                    return true;
+                }).get();
+                if (changed) corrected++;
+            }
+            scanned += page.size();
+            System.out.println("[backfill] " + scanned + " requests scanned, " + corrected + " corrected");
+            cursor = page.get(page.size() - 1);
+            if (page.size() < PAGE) break;
+        }
+        return corrected;
+    }
+
+    // ============================================================
+    // BUYER SUMMARY
+    // ============================================================
+
+    static int buyerSummaries(Firestore db) throws Exception {
+        // buyerId -> requestId -> entry; a conversation is briefly in both while it is archived
+        Map<String, Map<String, FirestoreService.HistoryEntry>> byBuyer = new HashMap<>();
+        scan(db.collection("requests").whereEqualTo("status", "COMPLETED"), byBuyer);
+        scan(db.collection(ConversationArchive.COLLECTION), byBuyer);
+
+        int written = 0;
+        for (Map.Entry<String, Map<String, FirestoreService.HistoryEntry>> e : byBuyer.entrySet()) {
+            DocumentReference ref = db.collection("buyerSummary").document(e.getKey());
+            db.runTransaction(tx -> {
+                FirestoreService.BuyerSummary current = FirestoreService.BuyerSummary.from(tx.get(ref).get());
+                if (current.complete) return null;
+                Map<String, FirestoreService.HistoryEntry> all = new HashMap<>(e.getValue());
+                for (FirestoreService.HistoryEntry h : current.recentOrders) all.putIfAbsent(h.requestId, h);
+                tx.set(ref, FirestoreService.BuyerSummary.rebuild(e.getKey(), all.values()));
+                return null;
+            }).get();
+            if (++written % 100 == 0) System.out.println("[backfill] " + written + " / " + byBuyer.size());
+        }
+        return written;
+    }
+
+    private static void scan(Query base, Map<String, Map<String, FirestoreService.HistoryEntry>> byBuyer) throws Exception {
+        DocumentSnapshot cursor = null;
+        while (true) {
+            Query q = base.orderBy(FieldPath.documentId()).limit(PAGE);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> page = q.get().get().getDocuments();
+            if (page.isEmpty()) break;
+            for (QueryDocumentSnapshot d : page) {
+                String buyerId = d.getString("buyerId");
+                if (buyerId == null || buyerId.isBlank()) continue;
+                FirestoreService.HistoryEntry h = FirestoreService.HistoryEntry.fromRequest(d);
+                if (h.requestId.isBlank()) h = new FirestoreService.HistoryEntry(d.getId(), h.buyerRequestNo,
+                        h.preview, h.grandTotal, h.completedAt);
+                byBuyer.computeIfAbsent(buyerId.trim(), k -> new HashMap<>()).putIfAbsent(h.requestId, h);
+            }
+            cursor = page.get(page.size() - 1);
+            if (page.size() < PAGE) break;
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package com.toptri.desktop;
 
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.ListenerRegistration;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -13,7 +13,6 @@ import javafx.stage.Stage;
 
 import java.util.*;
 import java.util.prefs.Preferences;
-import java.util.stream.Collectors;
 
 public class BuyerWindow {
 
@@ -23,9 +22,9 @@ public class BuyerWindow {
     private String currentRequestId = null;
     private String currentRequestStatus = "OPEN";
 
-    private ListenerRegistration messagesListener;
-    private ListenerRegistration offersAllListener;
+    private final ConversationPool conversations;
     private ListenerRegistration myReqListener;
+    private ListenerRegistration summaryListener;
 
     private final Label ridValue = new Label("-");
     private final TextField input = new TextField();
@@ -36,14 +35,26 @@ public class BuyerWindow {
     private final ScrollPane chatScroll = new ScrollPane(chatBox);
 
     private final List<Message> messages = new ArrayList<>();
-    private final Map<String, List<Offer>> offersByBuyerMessageId = new HashMap<>();
+    private final Map<String, List<FirestoreService.Offer>> offersByBuyerMessageId = new HashMap<>();
     private String latestBuyerMessageId = null;
 
+    // local echo: sent messages shown at once, dropped when the listener delivers the same id
+    private final Map<String, PendingMessage> pendingMessages = new LinkedHashMap<>();
+
     private final Map<String, String> requestStatusById = new HashMap<>();
 
     // ✅ NEW: Order history panel
     private final VBox historyBox = new VBox(8);
 
+    // history = summary.recentOrders (live) + older pages loaded on demand
+    private static final int HISTORY_PAGE_SIZE = 20;
+    private final Label historySummaryLabel = UiKit.small("");
+    private final Button loadMoreHistoryBtn = new Button("Load more");
+    private FirestoreService.BuyerSummary summary = null;
+    private final List<FirestoreService.HistoryEntry> olderHistory = new ArrayList<>();
+    private boolean historyExhausted = false;
+    private boolean historyLoading = false;
+
     private Button sendBtn;
     private Button newBtn;
 
@@ -51,7 +62,8 @@ public class BuyerWindow {
     private static final Preferences PREFS = Preferences.userNodeForPackage(BuyerWindow.class);
 
     public BuyerWindow(FirestoreService fs) {
-        this.fs = fs;
+        this.fs = fs.forOrigin("BuyerWindow", GatewayProtocol.buyer(buyerId));
+        this.conversations = new ConversationPool(this.fs, Platform::runLater);
     }
 
     public static void open(FirestoreService fs) {
@@ -87,7 +99,7 @@ public class BuyerWindow {
         ridRow.getChildren().addAll(UiKit.small("Request ID:"), ridValue);
 
         chatScroll.setFitToWidth(true);
-        chatScroll.setStyle("-fx-background-color: transparent;");
+        chatScroll.getStyleClass().add("transparent-scroll");
         chatBox.setPadding(new Insets(10));
         chatBox.setFillWidth(true);
         VBox.setVgrow(chatScroll, Priority.ALWAYS);
@@ -99,16 +111,22 @@ public class BuyerWindow {
 
         // ── ✅ NEW: Order History card ──
         Label historyTitle = new Label("Order History");
-        historyTitle.setStyle("-fx-font-weight: 800; -fx-font-size: 15;");
+        historyTitle.getStyleClass().add("section-title");
 
         ScrollPane historyScroll = new ScrollPane(historyBox);
         historyScroll.setFitToWidth(true);
-        historyScroll.setStyle("-fx-background-color: transparent;");
+        historyScroll.getStyleClass().add("transparent-scroll");
         historyScroll.setPrefHeight(170);
         historyBox.setPadding(new Insets(4));
         historyBox.setFillWidth(true);
 
-        VBox historyInner = new VBox(8, historyTitle, UiKit.divider(), historyScroll);
+        loadMoreHistoryBtn.setOnAction(e -> loadMoreHistory());
+        loadMoreHistoryBtn.setVisible(false);
+
+        HBox historyHeader = new HBox(10, historyTitle, historySummaryLabel);
+        historyHeader.setAlignment(Pos.CENTER_LEFT);
+
+        VBox historyInner = new VBox(8, historyHeader, UiKit.divider(), historyScroll, loadMoreHistoryBtn);
         historyInner.setPadding(new Insets(10));
         Region historyCardWrap = UiKit.cardContainer(historyInner);
 
@@ -118,25 +136,24 @@ public class BuyerWindow {
         // ── Left: My Requests ──
         myReqList.setPrefWidth(340);
         myReqList.setCellFactory(lv -> new ListCell<>() {
+            { getStyleClass().add("request-cell"); } // :completed rules in toptri.css
+
             @Override
             protected void updateItem(RequestItem it, boolean empty) {
                 super.updateItem(it, empty);
-                if (empty || it == null) { setGraphic(null); return; }
+                if (empty || it == null) { setGraphic(null); pseudoClassStateChanged(UiKit.COMPLETED, false); return; }
 
                 VBox v = new VBox(2);
                 boolean completed = "COMPLETED".equalsIgnoreCase(it.status);
                 String label = "Buyer " + it.buyerRequestNo + (completed ? " (COMPLETED)" : "");
 
-                Label t = new Label(label);
-                t.setStyle("-fx-font-weight: 800;" + (completed ? " -fx-opacity: 0.70;" : ""));
-
+                Label t = UiKit.styled(new Label(label), "title");
                 Label s = UiKit.small(it.requestId);
-                Label p = UiKit.small(it.previewText);
-                p.setStyle(p.getStyle() + "; -fx-opacity: 0.55;");
+                Label p = UiKit.styled(UiKit.small(it.previewText), "muted");
 
                 v.getChildren().addAll(t, s, p);
                 setGraphic(v);
-                setOpacity(completed ? 0.85 : 1.0);
+                pseudoClassStateChanged(UiKit.COMPLETED, completed);
             }
         });
 
@@ -163,11 +180,14 @@ public class BuyerWindow {
         input.setOnAction(e -> onSend());
 
         stage.setTitle("Toptri Chat - Buyer");
-        stage.setScene(new Scene(root, 1060, 820));
+        Scene scene = new Scene(root, 1060, 820);
+        UiKit.applyTheme(scene);
+        stage.setScene(scene);
         stage.show();
-        stage.setOnCloseRequest(e -> cleanup());
+        stage.setOnHidden(e -> cleanup());
 
         attachMyRequestsListener();
+        attachSummaryListener();
     }
 
     // ============================================================
@@ -178,12 +198,23 @@ public class BuyerWindow {
         return currentRequestId != null && "COMPLETED".equalsIgnoreCase(currentRequestStatus);
     }
 
+    // expired by the backend after sitting idle
+    private boolean isCurrentExpired() {
+        return currentRequestId != null && "EXPIRED".equalsIgnoreCase(currentRequestStatus);
+    }
+
+    private boolean isCurrentClosed() {
+        return isCurrentCompleted() || isCurrentExpired();
+    }
+
     private void updateSendButtonState() {
-        boolean disable = isCurrentCompleted();
+        boolean disable = isCurrentClosed();
         sendBtn.setDisable(disable);
         if (disable) {
             input.setDisable(true);
-            input.setPromptText("Request completed ✅ — start New Request to chat again");
+            input.setPromptText(isCurrentExpired()
+                    ? "Request expired ⌛ — start New Request to chat again"
+                    : "Request completed ✅ — start New Request to chat again");
         } else {
             input.setDisable(false);
             input.setPromptText("e.g. '2 nasi padang 3 es teh' or just 'drink'");
@@ -195,13 +226,13 @@ public class BuyerWindow {
     // ============================================================
 
     private void onSend() {
-        if (isCurrentCompleted()) return;
+        if (isCurrentClosed()) return;
         String text = input.getText().trim();
         if (text.isBlank()) return;
         input.clear();
 
         if (currentRequestId == null) {
-            currentRequestId = makeRequestId();
+            currentRequestId = IdService.requestId();
             currentRequestStatus = "OPEN";
             ridValue.setText(currentRequestId);
             messages.clear();
@@ -210,46 +241,50 @@ public class BuyerWindow {
             renderChat();
             updateSendButtonState();
 
-            final String firstText = text;
-            final long buyerRequestNo = nextBuyerRequestNo();
-
-            new Thread(() -> {
-                try {
-                    fs.createConversation(currentRequestId, buyerId, firstText, buyerRequestNo);
-                    attachMessagesListener(currentRequestId);
-                    attachAllOffersListener(currentRequestId);
-                } catch (Exception ex) {
-                    showError("Failed to start chat", ex.getMessage());
-                }
-            }).start();
+            PendingMessage first = new PendingMessage(IdService.messageId(), currentRequestId, text,
+                    true, IdService.nextBuyerRequestNo(buyerId));
+            pendingMessages.put(first.id, first);
+            deliver(first);
             return;
         }
 
-        final String reqIdFinal = currentRequestId;
-        final String textFinal = text;
-        new Thread(() -> {
+        PendingMessage p = new PendingMessage(IdService.messageId(), currentRequestId, text, false, 0);
+        pendingMessages.put(p.id, p);
+        deliver(p);
+    }
+
+    // writes a pending message; the same id is reused on retry, so a retry never duplicates
+    private void deliver(PendingMessage p) {
+        p.failed = false;
+        renderChat();
+        Platform.runLater(() -> chatScroll.setVvalue(1.0));
+
+        fs.lifecycle().run(() -> {
             try {
-                fs.sendBuyerMessage(reqIdFinal, buyerId, textFinal);
+                if (p.startsConversation) {
+                    fs.createConversation(p.requestId, buyerId, p.text, p.buyerRequestNo, p.id);
+                    Platform.runLater(() -> {
+                        if (!p.requestId.equals(currentRequestId)) return;
+                        attachConversationListener(p.requestId);
+                    });
+                } else {
+                    fs.sendBuyerMessage(p.requestId, buyerId, p.text, p.id);
+                }
             } catch (Exception ex) {
-                showError("Send failed", ex.getMessage());
+                Platform.runLater(() -> {
+                    p.failed = true;
+                    renderChat();
+                });
             }
-        }).start();
+        });
     }
 
     // ============================================================
     // CONVERSATION LIFECYCLE
     // ============================================================
 
-    private long nextBuyerRequestNo() {
-        long last = PREFS.getLong("buyerRequestNoCounter", 0L);
-        long next = last + 1;
-        PREFS.putLong("buyerRequestNoCounter", next);
-        return next;
-    }
-
     private void startNewConversation() {
-        if (messagesListener != null) messagesListener.remove();
-        if (offersAllListener != null) offersAllListener.remove();
+        detachConversationListeners();
         currentRequestId = null;
         currentRequestStatus = "OPEN";
         ridValue.setText("-");
@@ -261,8 +296,7 @@ public class BuyerWindow {
     }
 
     private void openConversation(String requestId, String status) {
-        if (messagesListener != null) messagesListener.remove();
-        if (offersAllListener != null) offersAllListener.remove();
+        detachConversationListeners();
         currentRequestId = requestId;
         currentRequestStatus = (status == null || status.isBlank()) ? "OPEN" : status;
         ridValue.setText(requestId);
@@ -271,31 +305,79 @@ public class BuyerWindow {
         latestBuyerMessageId = null;
         renderChat();
         updateSendButtonState();
-        attachMessagesListener(requestId);
-        attachAllOffersListener(requestId);
+        if (isCurrentCompleted()) {
+            openCompletedConversation(requestId);
+            return;
+        }
+        attachConversationListener(requestId);
+    }
+
+    // old completed chats may have been moved to the archive: one read, no listeners
+    private void openCompletedConversation(String requestId) {
+        fs.lifecycle().run(() -> {
+            try {
+                ConversationArchive.Archived archived = fs.getArchivedConversation(requestId);
+                Platform.runLater(() -> {
+                    if (!requestId.equals(currentRequestId)) return;
+                    if (archived == null) {
+                        attachConversationListener(requestId);
+                        return;
+                    }
+                    onMessagesUpdate(archived.messages);
+                    onAllOffersUpdate(archived.offers);
+                });
+            } catch (Exception ex) {
+                showError("Failed to open archived chat", ex.getMessage());
+            }
+        });
     }
 
     // ============================================================
     // LISTENERS
     // ============================================================
 
-    private void attachMessagesListener(String requestId) {
-        if (messagesListener != null) messagesListener.remove();
-        messagesListener = fs.listenMessages(
+    // warm subscriptions: switching back to a recent conversation renders from memory
+    private void attachConversationListener(String requestId) {
+        conversations.open(
                 requestId,
-                snap -> Platform.runLater(() -> onMessagesUpdate(snap)),
-                err -> Platform.runLater(() -> showError("Messages listener error", err.getMessage()))
+                this::onConversationUpdate,
+                err -> showError("Conversation listener error", err.getMessage())
         );
     }
 
-    private void onMessagesUpdate(QuerySnapshot snap) {
+    private void detachConversationListeners() {
+        conversations.deactivate();
+    }
+
+    // one update carries messages, offers and status: apply all, render once
+    private void onConversationUpdate(ConversationPool.Conversation c) {
+        if (!c.requestId.equals(currentRequestId)) return;
+        if (c.status != null && !c.status.equalsIgnoreCase(currentRequestStatus)) {
+            currentRequestStatus = c.status;
+            updateSendButtonState();
+        }
+        applyMessages(c.messages);
+        applyOffers(c.offers);
+        renderChat();
+        traceRenderedOffers(c.offers);
+        Platform.runLater(() -> chatScroll.setVvalue(1.0));
+    }
+
+    private void onMessagesUpdate(List<FirestoreService.ChatMessage> chat) {
+        applyMessages(chat);
+        renderChat();
+        Platform.runLater(() -> chatScroll.setVvalue(1.0));
+    }
+
+    private void applyMessages(List<FirestoreService.ChatMessage> chat) {
         messages.clear();
         latestBuyerMessageId = null;
-        for (QueryDocumentSnapshot d : snap.getDocuments()) {
-            String id = d.getId();
-            String senderType = safe(d.getString("senderType"));
-            String senderId = safe(d.getString("senderId"));
-            String text = safe(d.getString("text"));
+        for (FirestoreService.ChatMessage cm : chat) {
+            pendingMessages.remove(cm.id); // server copy arrived
+            String id = cm.id;
+            String senderType = cm.senderType;
+            String senderId = cm.senderId;
+            String text = cm.text;
             // ✅ NEW: parse multi-item order from text
             List<FirestoreService.OrderItem> orderItems = FirestoreService.parseOrderItems(text);
             messages.add(new Message(id, senderType, senderId, text, orderItems));
@@ -303,73 +385,39 @@ public class BuyerWindow {
                 latestBuyerMessageId = id;
             }
         }
+    }
+
+    private void onAllOffersUpdate(List<FirestoreService.Offer> offers) {
+        applyOffers(offers);
         renderChat();
+        traceRenderedOffers(offers);
         Platform.runLater(() -> chatScroll.setVvalue(1.0));
     }
 
-    private void attachAllOffersListener(String requestId) {
-        if (offersAllListener != null) offersAllListener.remove();
-        offersAllListener = fs.listenAllOffers(
-                requestId,
-                snap -> Platform.runLater(() -> onAllOffersUpdate(snap)),
-                err -> Platform.runLater(() -> showError("Offers listener error", err.getMessage()))
-        );
+    private void applyOffers(List<FirestoreService.Offer> offers) {
+        offersByBuyerMessageId.clear();
+        for (FirestoreService.Offer offer : offers) {
+            if (offer.buyerMessageId.isBlank()) continue;
+            offersByBuyerMessageId.computeIfAbsent(offer.buyerMessageId, k -> new ArrayList<>()).add(offer);
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private void onAllOffersUpdate(QuerySnapshot snap) {
-        offersByBuyerMessageId.clear();
-        for (QueryDocumentSnapshot d : snap.getDocuments()) {
-            String buyerMsgId = safe(d.getString("buyerMessageId"));
-            if (buyerMsgId.isBlank()) continue;
-
-            String id = d.getId();
-            String sellerId = safe(d.getString("sellerId"));
-            String sellerContact = safe(d.getString("sellerContact")); // ✅ NEW
-            String vendor = safe(d.getString("vendor"));
-
-            int etaMinutes = 0;
-            Long eta = d.getLong("etaMinutes");
-            if (eta != null) etaMinutes = eta.intValue();
-
-            double rating = 0.0;
-            Double r = d.getDouble("rating");
-            if (r != null) rating = r;
-
-            // ✅ NEW: read multi-item offer lines
-            List<Map<String, Object>> rawLines = (List<Map<String, Object>>) d.get("offerLines");
-            List<OfferLine> offerLines = new ArrayList<>();
-            int grandTotal = 0;
-
-            if (rawLines != null && !rawLines.isEmpty()) {
-                for (Map<String, Object> line : rawLines) {
-                    String name = safe((String) line.get("menuName"));
-                    int qty = line.get("qty") instanceof Long ? ((Long) line.get("qty")).intValue() : 1;
-                    int price = line.get("price") instanceof Long ? ((Long) line.get("price")).intValue() : 0;
-                    offerLines.add(new OfferLine(name, qty, price));
-                    grandTotal += qty * price;
-                }
-            } else {
-                // legacy single-item fallback
-                String menuName = safe(d.getString("menuName"));
-                int price = 0;
-                Long p = d.getLong("price");
-                if (p != null) price = p.intValue();
-                int qty = 1;
-                Long q = d.getLong("quantity");
-                if (q != null && q > 0) qty = q.intValue();
-                offerLines.add(new OfferLine(menuName, qty, price));
-                grandTotal = qty * price;
+    // buyer.render ends when the cards are laid out, i.e. on the next layout pulse after renderChat
+    private void traceRenderedOffers(List<FirestoreService.Offer> offers) {
+        Scene scene = chatBox.getScene();
+        if (!Tracing.enabled() || scene == null || offers.isEmpty()) return;
+        String requestId = currentRequestId;
+        List<FirestoreService.Offer> shown = new ArrayList<>(offers);
+        Runnable[] once = new Runnable[1];
+        once[0] = () -> {
+            scene.removePostLayoutPulseListener(once[0]);
+            for (FirestoreService.Offer o : shown) {
+                Tracing.received(Tracing.BUYER_RENDER, o.id, o.buyerMessageId, o.createdAt,
+                        Map.of("toptri.requestId", requestId == null ? "" : requestId,
+                                "toptri.sellerId", o.sellerId, "toptri.offerId", o.id));
             }
-
-            Long storedTotal = d.getLong("grandTotal");
-            if (storedTotal != null && storedTotal > 0) grandTotal = storedTotal.intValue();
-
-            Offer offer = new Offer(id, sellerId, offerLines, grandTotal, vendor, etaMinutes, rating, sellerContact);
-            offersByBuyerMessageId.computeIfAbsent(buyerMsgId, k -> new ArrayList<>()).add(offer);
-        }
-        renderChat();
-        Platform.runLater(() -> chatScroll.setVvalue(1.0));
+        };
+        scene.addPostLayoutPulseListener(once[0]);
     }
 
     // ============================================================
@@ -389,13 +437,20 @@ public class BuyerWindow {
             return;
         }
 
-        boolean completed = isCurrentCompleted();
+        boolean completed = isCurrentClosed();
         if (completed) {
-            chatBox.getChildren().add(UiKit.bubbleWait("✅ Request COMPLETED. Start a New Request to chat again."));
+            chatBox.getChildren().add(UiKit.bubbleWait(isCurrentExpired()
+                    ? "⌛ Request EXPIRED (no activity). Start a New Request to chat again."
+                    : "✅ Request COMPLETED. Start a New Request to chat again."));
             chatBox.getChildren().add(UiKit.divider());
         }
 
-        if (messages.isEmpty()) {
+        List<PendingMessage> pending = new ArrayList<>();
+        for (PendingMessage p : pendingMessages.values()) {
+            if (p.requestId.equals(currentRequestId)) pending.add(p);
+        }
+
+        if (messages.isEmpty() && pending.isEmpty()) {
             chatBox.getChildren().add(UiKit.bubbleWait("⏳ Loading conversation..."));
             return;
         }
@@ -406,10 +461,10 @@ public class BuyerWindow {
                 // ✅ NEW: show multi-item breakdown in bubble
                 chatBox.getChildren().add(UiKit.bubbleRight(buildBuyerBubbleText(m)));
 
-                List<Offer> offs = offersByBuyerMessageId.getOrDefault(m.id, Collections.emptyList());
+                List<FirestoreService.Offer> offs = offersByBuyerMessageId.getOrDefault(m.id, Collections.emptyList());
                 if (!offs.isEmpty()) {
-                    for (Offer o : offs) {
-                        final Offer offerRef = o;
+                    for (FirestoreService.Offer o : offs) {
+                        final FirestoreService.Offer offerRef = o;
                         Region card = buildOfferCard(o, completed, () -> {
                             if (!completed) onBuy(offerRef);
                         });
@@ -425,6 +480,21 @@ public class BuyerWindow {
                 chatBox.getChildren().add(UiKit.bubbleWait(m.text));
             }
         }
+
+        for (PendingMessage p : pending) chatBox.getChildren().add(buildPendingBubble(p));
+    }
+
+    // not yet confirmed by the server: faded while sending, click to retry once failed
+    private Region buildPendingBubble(PendingMessage p) {
+        if (!p.failed) {
+            Region bubble = UiKit.bubbleRight(p.text + "\n🕓 sending…");
+            bubble.pseudoClassStateChanged(UiKit.PENDING, true);
+            return bubble;
+        }
+        Region bubble = UiKit.bubbleRight(p.text + "\n⚠ Not sent — click to retry");
+        bubble.pseudoClassStateChanged(UiKit.FAILED, true);
+        bubble.setOnMouseClicked(e -> deliver(p));
+        return bubble;
     }
 
     // ✅ NEW: multi-item buyer bubble text
@@ -438,40 +508,30 @@ public class BuyerWindow {
     }
 
     // ✅ NEW: offer card with per-line items, grand total, seller contact
-    private Region buildOfferCard(Offer o, boolean completed, Runnable onBuy) {
-        VBox box = new VBox(6);
-        box.setPadding(new Insets(14));
-        box.setStyle("-fx-background-color: " + UiKit.OFFER_BG + "; -fx-background-radius: 18;");
+    private Region buildOfferCard(FirestoreService.Offer o, boolean completed, Runnable onBuy) {
+        VBox box = UiKit.styled(new VBox(), "offer-card");
 
         // seller + contact
         String sellerLabel = o.sellerId.isBlank() ? "Seller" : o.sellerId;
-        Label sellerLbl = new Label(sellerLabel);
-        sellerLbl.setStyle("-fx-font-weight: 800; -fx-font-size: 13;");
-        box.getChildren().add(sellerLbl);
+        box.getChildren().add(UiKit.styled(new Label(sellerLabel), "offer-seller"));
 
         // ✅ NEW: seller contact
         if (!o.sellerContact.isBlank()) {
-            Label contactLbl = new Label("📞 " + o.sellerContact);
-            contactLbl.setStyle("-fx-font-size: 12; -fx-text-fill: #5F5BFF; -fx-font-weight: 600;");
-            box.getChildren().add(contactLbl);
+            box.getChildren().add(UiKit.styled(new Label("📞 " + o.sellerContact), "offer-contact"));
         }
 
         box.getChildren().add(UiKit.divider());
 
         // ✅ NEW: per-line items (multi-item format: name qty×price = subtotal)
-        for (OfferLine line : o.offerLines) {
+        for (FirestoreService.OfferLine line : o.offerLines) {
             int lineTotal = line.qty * line.price;
             String lineText = line.name + "   " + line.qty + "×" + UiKit.rupiah(line.price)
                     + "  =  " + UiKit.rupiah(lineTotal);
-            Label lineLbl = new Label(lineText);
-            lineLbl.setStyle("-fx-font-size: 13;");
-            box.getChildren().add(lineLbl);
+            box.getChildren().add(UiKit.styled(new Label(lineText), "offer-line"));
         }
 
         // ✅ NEW: grand total
-        Label totalLbl = new Label("Total:  " + UiKit.rupiah(o.grandTotal));
-        totalLbl.setStyle("-fx-font-weight: 800; -fx-font-size: 16; -fx-padding: 4 0 0 0;");
-        box.getChildren().add(totalLbl);
+        box.getChildren().add(UiKit.styled(new Label("Total:  " + UiKit.rupiah(o.grandTotal)), "offer-total"));
 
         // meta (vendor, eta, rating)
         List<String> metaParts = new ArrayList<>();
@@ -483,19 +543,12 @@ public class BuyerWindow {
         }
 
         // buy button showing total
-        Button buyBtn = new Button("Buy  " + UiKit.rupiah(o.grandTotal));
+        Button buyBtn = UiKit.styled(new Button("Buy  " + UiKit.rupiah(o.grandTotal)), "buy-button");
         buyBtn.setOnAction(e -> onBuy.run());
-        buyBtn.setStyle(
-                "-fx-background-color: " + UiKit.GREEN_BTN + ";" +
-                "-fx-text-fill: white;" +
-                "-fx-font-weight: 800;" +
-                "-fx-padding: 8 18;" +
-                "-fx-background-radius: 14;"
-        );
         box.getChildren().add(buyBtn);
 
         if (completed) {
-            box.setOpacity(0.65);
+            box.pseudoClassStateChanged(UiKit.COMPLETED, true);
             box.setDisable(true);
         }
 
@@ -509,36 +562,90 @@ public class BuyerWindow {
     // ✅ NEW: ORDER HISTORY
     // ============================================================
 
-    private void renderHistory(List<RequestItem> allItems) {
+    private void attachSummaryListener() {
+        if (summaryListener != null) summaryListener.remove();
+        summaryListener = fs.listenBuyerSummary(
+                buyerId,
+                sum -> Platform.runLater(() -> {
+                    summary = sum;
+                    // recentOrders shifted, so previously paged entries may overlap or leave a gap
+                    olderHistory.clear();
+                    // an incomplete summary (not backfilled) only knows orders completed since it was created
+                    historyExhausted = sum.complete && sum.orderCount <= sum.recentOrders.size();
+                    renderHistory();
+                    if (!sum.complete && sum.recentOrders.isEmpty()) loadMoreHistory();
+                }),
+                err -> Platform.runLater(() -> showError("History listener error", err.getMessage()))
+        );
+    }
+
+    private void loadMoreHistory() {
+        if (summary == null || historyExhausted || historyLoading) return;
+        List<FirestoreService.HistoryEntry> shown = new ArrayList<>(summary.recentOrders);
+        shown.addAll(olderHistory);
+        Timestamp cursor = shown.isEmpty() ? null : shown.get(shown.size() - 1).completedAt;
+
+        historyLoading = true;
+        loadMoreHistoryBtn.setDisable(true);
+        fs.lifecycle().run(() -> {
+            try {
+                List<FirestoreService.HistoryEntry> page =
+                        fs.getCompletedRequestsPage(buyerId, cursor, HISTORY_PAGE_SIZE);
+                Platform.runLater(() -> {
+                    historyLoading = false;
+                    Set<String> shownIds = new HashSet<>();
+                    for (FirestoreService.HistoryEntry e : shown) shownIds.add(e.requestId);
+                    for (FirestoreService.HistoryEntry e : page) if (shownIds.add(e.requestId)) olderHistory.add(e);
+                    if (page.size() < HISTORY_PAGE_SIZE) historyExhausted = true;
+                    loadMoreHistoryBtn.setDisable(false);
+                    renderHistory();
+                });
+            } catch (Exception ex) {
+                Platform.runLater(() -> {
+                    historyLoading = false;
+                    loadMoreHistoryBtn.setDisable(false);
+                });
+                showError("Load history failed", ex.getMessage());
+            }
+        });
+    }
+
+    private void renderHistory() {
         historyBox.getChildren().clear();
-        List<RequestItem> completed = allItems.stream()
-                .filter(it -> "COMPLETED".equalsIgnoreCase(it.status))
-                .collect(Collectors.toList());
+        if (summary == null) return;
+
+        // totals of an incomplete summary would undercount older orders
+        historySummaryLabel.setText(summary.complete
+                ? summary.orderCount + " orders • " + UiKit.rupiah((int) summary.totalSpend) : "");
+        loadMoreHistoryBtn.setVisible(!historyExhausted);
 
-        if (completed.isEmpty()) {
-            historyBox.getChildren().add(UiKit.small("No completed orders yet."));
+        List<FirestoreService.HistoryEntry> all = new ArrayList<>(summary.recentOrders);
+        all.addAll(olderHistory);
+
+        if (all.isEmpty()) {
+            historyBox.getChildren().add(UiKit.small(historyExhausted ? "No completed orders yet." : "Loading…"));
             return;
         }
 
-        for (RequestItem it : completed) {
-            HBox row = new HBox(12);
-            row.setAlignment(Pos.CENTER_LEFT);
-            row.setPadding(new Insets(7, 12, 7, 12));
-            row.setStyle("-fx-background-color: " + UiKit.OFFER_BG + "; -fx-background-radius: 10;");
-
-            Label num = new Label("Order #" + it.buyerRequestNo);
-            num.setStyle("-fx-font-weight: 800; -fx-font-size: 12;");
+        for (FirestoreService.HistoryEntry it : all) {
+            HBox row = UiKit.styled(new HBox(), "history-row");
+            Label num = UiKit.styled(new Label("Order #" + it.buyerRequestNo), "history-number");
 
-            String preview = it.previewText.length() > 32
-                    ? it.previewText.substring(0, 32) + "…"
-                    : it.previewText;
+            String preview = it.preview.length() > 32
+                    ? it.preview.substring(0, 32) + "…"
+                    : it.preview;
             Label prev = UiKit.small("  " + preview);
             HBox.setHgrow(prev, Priority.ALWAYS);
 
-            Label badge = new Label("✅ DONE");
-            badge.setStyle("-fx-text-fill: " + UiKit.GREEN_BTN + "; -fx-font-weight: 800; -fx-font-size: 11;");
+            Label total = UiKit.small(UiKit.rupiah(it.grandTotal));
+
+            Label badge = UiKit.styled(new Label("✅ DONE"), "done-badge");
 
-            row.getChildren().addAll(num, prev, badge);
+            row.getChildren().addAll(num, prev, total, badge);
+            row.setOnMouseClicked(e -> {
+                myReqList.getSelectionModel().clearSelection();
+                openConversation(it.requestId, "COMPLETED");
+            });
             historyBox.getChildren().add(row);
         }
     }
@@ -547,9 +654,9 @@ public class BuyerWindow {
     // BUY
     // ============================================================
 
-    private void onBuy(Offer offer) {
+    private void onBuy(FirestoreService.Offer offer) {
         if (currentRequestId == null || currentRequestId.isBlank()) return;
-        if (isCurrentCompleted()) return;
+        if (isCurrentClosed()) return;
 
         // ✅ NEW: pre-fill name & address from saved Preferences
         String savedName = PREFS.get("buyerName", "");
@@ -574,7 +681,7 @@ public class BuyerWindow {
         final String nameFinal = name;
         final String addrFinal = address;
 
-        new Thread(() -> {
+        fs.lifecycle().run(() -> {
             try {
                 fs.completeRequestWithQuantity(reqIdFinal, offerIdFinal, nameFinal, addrFinal, offer.grandTotal);
 
@@ -586,7 +693,7 @@ public class BuyerWindow {
 
                     // ✅ NEW: itemized confirmation dialog
                     StringBuilder sb = new StringBuilder();
-                    for (OfferLine line : offer.offerLines) {
+                    for (FirestoreService.OfferLine line : offer.offerLines) {
                         sb.append(line.name)
                           .append("   ").append(line.qty).append("×").append(UiKit.rupiah(line.price))
                           .append("  =  ").append(UiKit.rupiah(line.qty * line.price)).append("\n");
@@ -605,7 +712,7 @@ public class BuyerWindow {
             } catch (Exception ex) {
                 showError("Complete failed", ex.getMessage());
             }
-        }).start();
+        });
     }
 
     // ============================================================
@@ -614,10 +721,11 @@ public class BuyerWindow {
 
     private void attachMyRequestsListener() {
         if (myReqListener != null) myReqListener.remove();
-        myReqListener = fs.listenBuyerRequests(
+        myReqListener = fs.listenBuyerOpenRequests(
                 buyerId,
                 snap -> Platform.runLater(() -> {
                     List<RequestItem> items = new ArrayList<>();
+                    boolean currentWasOpen = currentRequestId != null && requestStatusById.containsKey(currentRequestId);
                     requestStatusById.clear();
 
                     for (QueryDocumentSnapshot d : snap.getDocuments()) {
@@ -636,12 +744,10 @@ public class BuyerWindow {
 
                     items.sort(Comparator.comparingLong(a -> a.buyerRequestNo));
                     myReqList.getItems().setAll(items);
-                    renderHistory(items); // ✅ NEW
 
-                    if (currentRequestId != null) {
-                        currentRequestStatus = requestStatusById.getOrDefault(currentRequestId, currentRequestStatus);
-                        updateSendButtonState();
-                        renderChat();
+                    // current request left the open set (completed elsewhere): look up its new status once
+                    if (currentWasOpen && !requestStatusById.containsKey(currentRequestId)) {
+                        refreshCurrentStatus(currentRequestId);
                     }
                     if (currentRequestId == null && !items.isEmpty()) {
                         updateSendButtonState();
@@ -651,6 +757,22 @@ public class BuyerWindow {
         );
     }
 
+    private void refreshCurrentStatus(String requestId) {
+        fs.lifecycle().run(() -> {
+            try {
+                String st = fs.getRequestStatus(requestId);
+                Platform.runLater(() -> {
+                    if (!requestId.equals(currentRequestId)) return;
+                    currentRequestStatus = st;
+                    updateSendButtonState();
+                    renderChat();
+                });
+            } catch (Exception ex) {
+                showError("Status refresh failed", ex.getMessage());
+            }
+        });
+    }
+
     // ============================================================
     // UTILS
     // ============================================================
@@ -666,14 +788,9 @@ public class BuyerWindow {
     }
 
     private void cleanup() {
-        if (messagesListener != null) messagesListener.remove();
-        if (offersAllListener != null) offersAllListener.remove();
+        conversations.close();
         if (myReqListener != null) myReqListener.remove();
-    }
-
-    private String makeRequestId() {
-        return "req_" + Integer.toHexString(new Random().nextInt()).replace("-", "")
-                + "_" + System.currentTimeMillis();
+        if (summaryListener != null) summaryListener.remove();
     }
 
     private String safe(String s) { return s == null ? "" : s; }
@@ -703,6 +820,20 @@ public class BuyerWindow {
         }
     }
 
+    private static class PendingMessage {
+        final String id, requestId, text;
+        final boolean startsConversation;
+        final long buyerRequestNo;
+        boolean failed = false;
+        PendingMessage(String id, String requestId, String text, boolean startsConversation, long buyerRequestNo) {
+            this.id = id;
+            this.requestId = requestId;
+            this.text = text;
+            this.startsConversation = startsConversation;
+            this.buyerRequestNo = buyerRequestNo;
+        }
+    }
+
     private static class Message {
         final String id, senderType, senderId, text;
         final List<FirestoreService.OrderItem> orderItems;
@@ -714,35 +845,4 @@ public class BuyerWindow {
             this.orderItems = orderItems == null ? new ArrayList<>() : orderItems;
         }
     }
-
-    // ✅ NEW: one line in a multi-item offer
-    static class OfferLine {
-        final String name;
-        final int qty, price;
-        OfferLine(String name, int qty, int price) {
-            this.name = name == null ? "" : name;
-            this.qty = Math.max(qty, 1);
-            this.price = price;
-        }
-    }
-
-    // ✅ NEW: offer with multiple lines + grand total + seller contact
-    private static class Offer {
-        final String id, sellerId, vendor, sellerContact;
-        final List<OfferLine> offerLines;
-        final int grandTotal, etaMinutes;
-        final double rating;
-
-        Offer(String id, String sellerId, List<OfferLine> offerLines, int grandTotal,
-              String vendor, int etaMinutes, double rating, String sellerContact) {
-            this.id = id;
-            this.sellerId = sellerId == null ? "" : sellerId;
-            this.offerLines = offerLines == null ? new ArrayList<>() : offerLines;
-            this.grandTotal = grandTotal;
-            this.vendor = vendor == null ? "" : vendor;
-            this.etaMinutes = etaMinutes;
-            this.rating = rating;
-            this.sellerContact = sellerContact == null ? "" : sellerContact;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package com.toptri.desktop;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+import java.util.*;
+
+/**
+ * Cold storage for old COMPLETED conversations.
+ *
+ * The backend archive job packs a request, its whole chat (chunks + tail) and
+ * its offers into one archivedConversations/{requestId} document and then
+ * deletes the originals, so the hot requests collection and its indexes only
+ * hold recent conversations. The buyer's history reads the archive on demand.
+ *
+ * Layout: the request fields the history needs (requestId, buyerId, status,
+ * buyerRequestNo, buyerText, grandTotal, completedAt) at top level, plus
+ *   request  = every other request field, as stored
+ *   messages = [{i, s, u, t, c}]  (same packing as {@link MessageChunks})
+ *   offers   = [{id, ...v2 fields}]  (same encoding as {@link OfferCodec})
+ *   archivedAt
+ */
+public final class ConversationArchive {
+
+    public static final String COLLECTION = "archivedConversations";
+
+    // stay well under Firestore's 1 MiB document limit; bigger conversations stay hot
+    public static final long MAX_PACKED_BYTES = 900 * 1024;
+
+    private static final List<String> TOP_LEVEL = List.of(
+            "requestId", "buyerId", "status", "buyerRequestNo", "buyerText", "grandTotal", "completedAt");
+
+    private ConversationArchive() {}
+
+    public static Map<String, Object> pack(DocumentSnapshot req,
+                                           List<FirestoreService.ChatMessage> messages,
+                                           List<QueryDocumentSnapshot> offers) {
+        Map<String, Object> rest = new HashMap<>(req.getData() == null ? Map.of() : req.getData());
+        Map<String, Object> doc = new HashMap<>();
+        for (String f : TOP_LEVEL) {
+            Object v = rest.remove(f);
+            if (v != null) doc.put(f, v);
+        }
+        doc.putIfAbsent("requestId", req.getId());
+
+        List<Map<String, Object>> packedMessages = new ArrayList<>(messages.size());
+        for (FirestoreService.ChatMessage m : messages) packedMessages.add(MessageChunks.encodeMessage(m));
+
+        List<Map<String, Object>> packedOffers = new ArrayList<>(offers.size());
+        for (QueryDocumentSnapshot o : offers) {
+            Map<String, Object> data = o.getData();
+            if (!Long.valueOf(OfferCodec.VERSION).equals(data.get(OfferCodec.F_VERSION))) {
+                // not migrated yet: normalise on the way into the archive
+                FirestoreService.Offer legacy = OfferCodec.decodeLegacy(o.getId(), data, o.getCreateTime());
+                data = OfferCodec.encode(legacy.sellerId, OfferCodec.menuName(data), legacy.vendor, legacy.etaMinutes, legacy.rating,
+                        legacy.offerLines, legacy.grandTotal, legacy.buyerMessageId, legacy.sellerContact,
+                        legacy.createdAt);
+            }
+            Map<String, Object> packed = new HashMap<>(data);
+            packed.put("id", o.getId());
+            packedOffers.add(packed);
+        }
+
+        doc.put("request", rest);
+        doc.put("messages", packedMessages);
+        doc.put("offers", packedOffers);
+        doc.put("archivedAt", Timestamp.now());
+        return doc;
+    }
+
+    public static boolean fits(String requestId, Map<String, Object> packed) {
+        return OfferSchemaMigrator.documentSize(COLLECTION + "/" + requestId, packed) <= MAX_PACKED_BYTES;
+    }
+
+    // ============================================================
+    // READ
+    // ============================================================
+
+    public static class Archived {
+        public final String requestId, status;
+        public final List<FirestoreService.ChatMessage> messages;
+        public final List<FirestoreService.Offer> offers;
+
+        Archived(String requestId, String status,
+                 List<FirestoreService.ChatMessage> messages, List<FirestoreService.Offer> offers) {
+            this.requestId = requestId;
+            this.status = status;
+            this.messages = messages;
+            this.offers = offers;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Archived unpack(DocumentSnapshot d) {
+        List<FirestoreService.ChatMessage> messages = new ArrayList<>();
+        Object rawMessages = d.get("messages");
+        if (rawMessages instanceof List) {
+            for (Object o : (List<Object>) rawMessages) {
+                if (o instanceof Map) messages.add(MessageChunks.decodeMessage((Map<String, Object>) o));
+            }
+        }
+
+        List<FirestoreService.Offer> offers = new ArrayList<>();
+        Object rawOffers = d.get("offers");
+        if (rawOffers instanceof List) {
+            for (Object o : (List<Object>) rawOffers) {
+                if (!(o instanceof Map)) continue;
+                Map<String, Object> m = (Map<String, Object>) o;
+                offers.add(OfferCodec.decode((String) m.get("id"), m));
+            }
+        }
+
+        String status = d.getString("status");
+        return new Archived(d.getId(), status == null ? "COMPLETED" : status, messages, offers);
+    }
+}
@@ -0,0 +1,249 @@
+package com.toptri.desktop;
+
+import com.google.cloud.firestore.ListenerRegistration;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Warm conversation subscriptions, shared by a window across request switches.
+ *
+ * Every conversation opened stays subscribed (conversation view, or messages +
+ * offers for conversations without one) and keeps its decoded messages and
+ * offers in memory, so switching back to it renders at once instead of
+ * re-downloading. Entries are evicted least-recently-opened first once there
+ * are more than maxConversations or their estimated size exceeds maxBytes;
+ * the conversation on screen is never evicted.
+ *
+ * Not thread-safe: every method must be called on the ui executor, and all
+ * callbacks run there.
+ */
+public class ConversationPool {
+
+    public static final int DEFAULT_MAX_CONVERSATIONS = 8;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    public static class Conversation {
+        public final String requestId;
+        public List<FirestoreService.ChatMessage> messages; // oldest first; null until the first snapshot
+        public List<FirestoreService.Offer> offers;         // oldest first; null until the first snapshot
+        public String status;                               // from the view; null for conversations without one
+
+        private ListenerRegistration viewReg, messagesReg, offersReg;
+        private ConversationView.View lastView;
+        private List<FirestoreService.ChatMessage> earlier; // full history, read once when the view is trimmed
+        private boolean loadingEarlier, closed;
+        private long bytes;
+
+        Conversation(String requestId) { this.requestId = requestId; }
+
+        public boolean isLoaded() { return messages != null && offers != null; }
+
+        private void close() {
+            closed = true;
+            if (viewReg != null) viewReg.remove();
+            if (messagesReg != null) messagesReg.remove();
+            if (offersReg != null) offersReg.remove();
+        }
+    }
+
+    private final FirestoreService fs;
+    private final Executor ui;
+    private final int maxConversations;
+    private final long maxBytes;
+
+    // access order: iteration starts at the least recently opened
+    private final LinkedHashMap<String, Conversation> warm = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private Conversation active;
+    private Consumer<Conversation> onChange;
+    private Consumer<Exception> onError;
+
+    public ConversationPool(FirestoreService fs, Executor ui) {
+        this(fs, ui, DEFAULT_MAX_CONVERSATIONS, DEFAULT_MAX_BYTES);
+    }
+
+    public ConversationPool(FirestoreService fs, Executor ui, int maxConversations, long maxBytes) {
+        this.fs = fs;
+        this.ui = ui;
+        this.maxConversations = Math.max(1, maxConversations);
+        this.maxBytes = maxBytes;
+    }
+
+    // ============================================================
+    // API
+    // ============================================================
+
+    /**
+     * Makes requestId the conversation on screen. onChange receives every
+     * update of it until the next open/deactivate; if the conversation is
+     * already warm it is called right away with the cached state.
+     */
+    public Conversation open(String requestId, Consumer<Conversation> onChange, Consumer<Exception> onError) {
+        Conversation c = warm.get(requestId);
+        if (c == null) {
+            c = new Conversation(requestId);
+            warm.put(requestId, c);
+            subscribeView(c);
+        }
+        this.active = c;
+        this.onChange = onChange;
+        this.onError = onError;
+        evict();
+        if (c.isLoaded()) onChange.accept(c);
+        return c;
+    }
+
+    /** Nothing on screen (e.g. composing a new request); warm entries stay subscribed. */
+    public void deactivate() {
+        active = null;
+        onChange = null;
+        onError = null;
+    }
+
+    public void close() {
+        deactivate();
+        for (Conversation c : warm.values()) c.close();
+        warm.clear();
+        totalBytes = 0;
+    }
+
+    public int size() { return warm.size(); }
+
+    // ============================================================
+    // SUBSCRIPTIONS
+    // ============================================================
+
+    private void subscribeView(Conversation c) {
+        c.viewReg = fs.listenConversationView(c.requestId,
+                view -> ui.execute(() -> onView(c, view)),
+                err -> ui.execute(() -> fail(c, err)));
+    }
+
+    private void onView(Conversation c, ConversationView.View view) {
+        if (c.closed) return;
+        if (view == null) {
+            // conversation without a view: fall back to the two collection listeners
+            c.viewReg.remove();
+            c.viewReg = null;
+            subscribeCollections(c);
+            return;
+        }
+        c.lastView = view;
+        c.status = view.status;
+        if (view.hasEarlier && c.earlier == null) loadEarlier(c);
+
+        List<FirestoreService.ChatMessage> chat = view.messages;
+        if (c.earlier != null) {
+            Map<String, FirestoreService.ChatMessage> byId = new LinkedHashMap<>();
+            for (FirestoreService.ChatMessage m : c.earlier) byId.put(m.id, m);
+            for (FirestoreService.ChatMessage m : view.messages) byId.put(m.id, m);
+            chat = new ArrayList<>(byId.values());
+            chat.sort(Comparator.comparing((FirestoreService.ChatMessage m) -> m.createdAt,
+                    Comparator.nullsLast(Comparator.naturalOrder())));
+        }
+        c.messages = chat;
+        c.offers = view.offers;
+        changed(c);
+    }
+
+    private void loadEarlier(Conversation c) {
+        if (c.loadingEarlier) return;
+        c.loadingEarlier = true;
+        fs.lifecycle().run(() -> {
+            try {
+                List<FirestoreService.ChatMessage> all = fs.getMessages(c.requestId);
+                ui.execute(() -> {
+                    c.loadingEarlier = false;
+                    if (c.closed) return;
+                    c.earlier = all;
+                    if (c.lastView != null) onView(c, c.lastView);
+                });
+            } catch (Exception ex) {
+                ui.execute(() -> {
+                    c.loadingEarlier = false;
+                    fail(c, ex);
+                });
+            }
+        });
+    }
+
+    private void subscribeCollections(Conversation c) {
+        c.messagesReg = fs.listenMessages(c.requestId,
+                chat -> ui.execute(() -> {
+                    if (c.closed) return;
+                    c.messages = chat;
+                    changed(c);
+                }),
+                err -> ui.execute(() -> fail(c, err)));
+        c.offersReg = fs.listenAllOffers(c.requestId,
+                offers -> ui.execute(() -> {
+                    if (c.closed) return;
+                    c.offers = offers;
+                    changed(c);
+                }),
+                err -> ui.execute(() -> fail(c, err)));
+    }
+
+    private void changed(Conversation c) {
+        long bytes = estimateBytes(c);
+        totalBytes += bytes - c.bytes;
+        c.bytes = bytes;
+        if (c == active && onChange != null && c.isLoaded()) onChange.accept(c);
+        evict();
+    }
+
+    private void fail(Conversation c, Exception err) {
+        if (c.closed) return;
+        if (c == active && onError != null) {
+            onError.accept(err);
+        } else {
+            // a background entry that broke is dropped and resubscribed on the next open
+            remove(c);
+        }
+    }
+
+    // ============================================================
+    // EVICTION
+    // ============================================================
+
+    private void evict() {
+        Iterator<Conversation> it = warm.values().iterator();
+        while ((warm.size() > maxConversations || totalBytes > maxBytes) && it.hasNext()) {
+            Conversation c = it.next();
+            if (c == active) continue;
+            it.remove();
+            totalBytes -= c.bytes;
+            c.close();
+        }
+    }
+
+    private void remove(Conversation c) {
+        if (warm.remove(c.requestId, c)) {
+            totalBytes -= c.bytes;
+            c.close();
+        }
+    }
+
+    // rough heap footprint of the decoded models: strings at 2 bytes/char plus object overhead
+    private static long estimateBytes(Conversation c) {
+        long b = 0;
+        if (c.messages != null) {
+            for (FirestoreService.ChatMessage m : c.messages) {
+                b += 96 + 2L * (len(m.id) + len(m.senderId) + len(m.text));
+            }
+        }
+        if (c.offers != null) {
+            for (FirestoreService.Offer o : c.offers) {
+                b += 160 + 2L * (len(o.id) + len(o.vendor) + len(o.sellerContact));
+                for (FirestoreService.OfferLine l : o.offerLines) b += 48 + 2L * len(l.name);
+            }
+        }
+        if (c.earlier != null) b += 96L * c.earlier.size();
+        return b;
+    }
+
+    private static int len(String s) { return s == null ? 0 : s.length(); }
+}
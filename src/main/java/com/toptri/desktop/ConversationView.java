@@ -0,0 +1,157 @@
+package com.toptri.desktop;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+
+import java.util.*;
+
+/**
+ * Materialized conversation: conversationView/{requestId}.
+ *
+ * Everything the buyer chat renders, in one document: status, the latest
+ * messages and all offers. Every write that changes a conversation (create,
+ * buyer/seller message, offer, completion, expiry) merges its part into the
+ * view in the same batch or transaction, so a single listener sees the
+ * conversation in one consistent snapshot instead of three streams.
+ *
+ * Layout:
+ *   {v, requestId, buyerId, status, selectedOfferId, updatedAt, messageCount,
+ *    messages: {messageId: {i, s, u, t, c}},   // MessageChunks encoding
+ *    offers:   {offerId: {...}}}               // OfferCodec v2 encoding
+ *
+ * Messages are a map so writers can add one without reading the document.
+ * The compaction job trims it to the newest {@link #MAX_MESSAGES}; readers
+ * show at most that many and report older ones through {@link View#hasEarlier}.
+ *
+ * Only createConversation writes v, so a document holding just the merged
+ * fields of a conversation that predates the view reads as "no view" and the
+ * caller falls back to the per-collection listeners.
+ */
+public final class ConversationView {
+
+    public static final String COLLECTION = "conversationView";
+    public static final int VERSION = 1;
+    public static final int MAX_MESSAGES = 50;
+
+    static final String F_VERSION = "v";
+    static final String F_MESSAGES = "messages";
+    static final String F_OFFERS = "offers";
+    static final String F_MESSAGE_COUNT = "messageCount";
+
+    private ConversationView() {}
+
+    // ============================================================
+    // WRITE (merged with SetOptions.merge())
+    // ============================================================
+
+    public static Map<String, Object> created(String requestId, String buyerId, FirestoreService.ChatMessage first) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put(F_VERSION, VERSION);
+        doc.put("requestId", requestId);
+        doc.put("buyerId", buyerId);
+        doc.put("status", "OPEN");
+        doc.put("updatedAt", first.createdAt);
+        doc.put(F_MESSAGE_COUNT, 1L);
+        doc.put(F_MESSAGES, Map.of(first.id, MessageChunks.encodeMessage(first)));
+        return doc;
+    }
+
+    public static Map<String, Object> message(FirestoreService.ChatMessage m) {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("updatedAt", m.createdAt);
+        patch.put(F_MESSAGE_COUNT, FieldValue.increment(1));
+        patch.put(F_MESSAGES, Map.of(m.id, MessageChunks.encodeMessage(m)));
+        return patch;
+    }
+
+    public static Map<String, Object> offer(String offerId, Map<String, Object> encodedOffer) {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("updatedAt", Timestamp.now());
+        patch.put(F_OFFERS, Map.of(offerId, encodedOffer));
+        return patch;
+    }
+
+    public static Map<String, Object> status(String status, String selectedOfferId) {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("status", status);
+        patch.put("updatedAt", Timestamp.now());
+        if (selectedOfferId != null) patch.put("selectedOfferId", selectedOfferId);
+        return patch;
+    }
+
+    /** Field deletes that bring the view back to the newest MAX_MESSAGES messages; empty if nothing to trim. */
+    public static Map<FieldPath, Object> trim(DocumentSnapshot view) {
+        List<FirestoreService.ChatMessage> all = messages(view);
+        Map<FieldPath, Object> deletes = new HashMap<>();
+        for (int i = 0; i < all.size() - MAX_MESSAGES; i++) {
+            deletes.put(FieldPath.of(F_MESSAGES, all.get(i).id), FieldValue.delete());
+        }
+        return deletes;
+    }
+
+    // ============================================================
+    // READ
+    // ============================================================
+
+    public static class View {
+        public final String requestId, status, selectedOfferId;
+        public final List<FirestoreService.ChatMessage> messages; // oldest first
+        public final List<FirestoreService.Offer> offers;         // oldest first
+        public final boolean hasEarlier;                          // older messages exist outside the view
+
+        View(String requestId, String status, String selectedOfferId,
+             List<FirestoreService.ChatMessage> messages, List<FirestoreService.Offer> offers, boolean hasEarlier) {
+            this.requestId = requestId;
+            this.status = status;
+            this.selectedOfferId = selectedOfferId;
+            this.messages = messages;
+            this.offers = offers;
+            this.hasEarlier = hasEarlier;
+        }
+    }
+
+    /** Null when there is no complete view for this conversation. */
+    @SuppressWarnings("unchecked")
+    public static View decode(DocumentSnapshot d) {
+        if (d == null || !d.exists() || d.getLong(F_VERSION) == null) return null;
+
+        List<FirestoreService.ChatMessage> all = messages(d);
+        List<FirestoreService.ChatMessage> shown = all.size() > MAX_MESSAGES
+                ? new ArrayList<>(all.subList(all.size() - MAX_MESSAGES, all.size()))
+                : all;
+        Long count = d.getLong(F_MESSAGE_COUNT);
+        boolean hasEarlier = count != null && count > shown.size();
+
+        List<FirestoreService.Offer> offers = new ArrayList<>();
+        Object raw = d.get(F_OFFERS);
+        if (raw instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) raw).entrySet()) {
+                if (e.getValue() instanceof Map) {
+                    offers.add(OfferCodec.decode(e.getKey(), (Map<String, Object>) e.getValue()));
+                }
+            }
+        }
+        offers.sort(Comparator.comparing((FirestoreService.Offer o) -> o.createdAt,
+                Comparator.nullsLast(Comparator.naturalOrder())).thenComparing(o -> o.id));
+
+        String status = d.getString("status");
+        return new View(d.getId(), status == null || status.isBlank() ? "OPEN" : status,
+                d.getString("selectedOfferId"), shown, offers, hasEarlier);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<FirestoreService.ChatMessage> messages(DocumentSnapshot d) {
+        List<FirestoreService.ChatMessage> out = new ArrayList<>();
+        Object raw = d.get(F_MESSAGES);
+        if (raw instanceof Map) {
+            for (Object o : ((Map<String, Object>) raw).values()) {
+                if (o instanceof Map) out.add(MessageChunks.decodeMessage((Map<String, Object>) o));
+            }
+        }
+        out.sort(Comparator.comparing((FirestoreService.ChatMessage m) -> m.createdAt,
+                Comparator.nullsLast(Comparator.naturalOrder())).thenComparing(m -> m.id));
+        return out;
+    }
+}
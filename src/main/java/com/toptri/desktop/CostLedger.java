@@ -0,0 +1,159 @@
+package com.toptri.desktop;
+
+import com.google.cloud.firestore.QuerySnapshot;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Billed document reads and writes, per (origin, call site).
+ *
+ * The origin is who triggered the call: a window ("SellerWindow:s1"), a
+ * backend job, or a REST endpoint ("POST /api/requests"). The call site is
+ * the FirestoreService method or query ("listenSellerInbox"). Counts follow
+ * Firestore billing: a one-shot query reads every returned document (one when
+ * empty), a listener reads every document in each snapshot's changes (the
+ * whole result on the first snapshot), a document listener one per snapshot,
+ * and every set/update/delete in a batch or transaction is one write.
+ *
+ * Process-wide: the ledger only adds to counters; {@link #startReporting}
+ * prints the top sites periodically and warns once a minute when an origin
+ * goes over its per-minute budget.
+ */
+public final class CostLedger {
+
+    public static class Entry {
+        public final String origin, site;
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder writes = new LongAdder();
+
+        Entry(String origin, String site) {
+            this.origin = origin;
+            this.site = site;
+        }
+
+        public long reads() { return reads.sum(); }
+        public long writes() { return writes.sum(); }
+    }
+
+    // an origin's usage in the current minute, for budget alerts
+    private static class Minute {
+        long minute, reads, writes;
+        boolean readAlerted, writeAlerted;
+    }
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final Map<String, Minute> MINUTES = new ConcurrentHashMap<>();
+
+    private static volatile long readBudgetPerMinute = 0;   // 0 = no alert
+    private static volatile long writeBudgetPerMinute = 0;
+    private static ScheduledExecutorService reporter;
+
+    private CostLedger() {}
+
+    // ============================================================
+    // RECORD
+    // ============================================================
+
+    public static void read(String origin, String site, long docs) {
+        if (docs <= 0) return;
+        entry(origin, site).reads.add(docs);
+        charge(origin, docs, 0);
+    }
+
+    public static void write(String origin, String site, long docs) {
+        if (docs <= 0) return;
+        entry(origin, site).writes.add(docs);
+        charge(origin, 0, docs);
+    }
+
+    /** One-shot query: every returned document, at least one. */
+    public static void query(String origin, String site, QuerySnapshot snap) {
+        read(origin, site, Math.max(1, snap.size()));
+    }
+
+    /** Listener snapshot: the changed documents (all of them on the first snapshot). */
+    public static void delivered(String origin, String site, QuerySnapshot snap) {
+        read(origin, site, snap.getDocumentChanges().size());
+    }
+
+    private static Entry entry(String origin, String site) {
+        return ENTRIES.computeIfAbsent(origin + "\t" + site, k -> new Entry(origin, site));
+    }
+
+    private static void charge(String origin, long reads, long writes) {
+        long now = System.currentTimeMillis() / 60_000L;
+        Minute m = MINUTES.computeIfAbsent(origin, k -> new Minute());
+        String alert = null;
+        synchronized (m) {
+            if (m.minute != now) {
+                m.minute = now;
+                m.reads = m.writes = 0;
+                m.readAlerted = m.writeAlerted = false;
+            }
+            m.reads += reads;
+            m.writes += writes;
+            long rb = readBudgetPerMinute, wb = writeBudgetPerMinute;
+            if (rb > 0 && m.reads > rb && !m.readAlerted) {
+                m.readAlerted = true;
+                alert = "reads " + m.reads + " > budget " + rb;
+            } else if (wb > 0 && m.writes > wb && !m.writeAlerted) {
+                m.writeAlerted = true;
+                alert = "writes " + m.writes + " > budget " + wb;
+            }
+        }
+        if (alert != null) {
+            System.err.println("[cost] BUDGET " + origin + ": " + alert + " this minute; top sites:");
+            for (Entry e : top(origin, 3)) {
+                System.err.println("[cost]   " + e.site + " reads=" + e.reads() + " writes=" + e.writes());
+            }
+        }
+    }
+
+    // ============================================================
+    // REPORT
+    // ============================================================
+
+    /** Sites by total billed operations (reads + writes), highest first; origin null = all origins. */
+    public static List<Entry> top(String origin, int n) {
+        List<Entry> all = new ArrayList<>();
+        for (Entry e : ENTRIES.values()) if (origin == null || origin.equals(e.origin)) all.add(e);
+        all.sort(Comparator.comparingLong((Entry e) -> e.reads() + e.writes()).reversed());
+        return all.size() > n ? new ArrayList<>(all.subList(0, n)) : all;
+    }
+
+    public static String report(int n) {
+        long reads = 0, writes = 0;
+        for (Entry e : ENTRIES.values()) { reads += e.reads(); writes += e.writes(); }
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "[cost] total reads=%d writes=%d, top %d:%n", reads, writes, n));
+        for (Entry e : top(null, n)) {
+            sb.append(String.format(Locale.US, "[cost]   %-28s %-28s reads=%-8d writes=%d%n",
+                    e.origin, e.site, e.reads(), e.writes()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints the top-N report every reportEveryMinutes (0 = never) and sets
+     * the per-origin, per-minute budgets (0 = no alert). Later calls only
+     * update the budgets.
+     */
+    public static synchronized void startReporting(long reportEveryMinutes, int topN,
+                                                   long readBudget, long writeBudget) {
+        readBudgetPerMinute = Math.max(readBudget, 0);
+        writeBudgetPerMinute = Math.max(writeBudget, 0);
+        if (reporter != null || reportEveryMinutes <= 0) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "toptri-cost");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> System.out.print(report(topN)),
+                reportEveryMinutes, reportEveryMinutes, TimeUnit.MINUTES);
+    }
+}
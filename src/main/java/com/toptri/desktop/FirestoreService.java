@@ -1,28 +1,131 @@
 package com.toptri.desktop;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
+import com.google.cloud.firestore.EventListener;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.cloud.FirestoreClient;
 
 import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class FirestoreService {
 
+    // how long a preloaded menu catalog is trusted before falling back to live queries.
+    // Writes through this process invalidate it at once; menus added or changed by other
+    // desktops or the backend are not seen from the catalog for up to this long.
+    public static final long MENU_CATALOG_TTL_MS = 2 * 60 * 1000L;
+
+    // Firestore's cap on values in a whereIn filter
+    private static final int IN_QUERY_LIMIT = 30;
+
+    // Firestore's cap on writes in one batch or transaction
+    private static final int MAX_BATCH_WRITES = 500;
+
+    // inbox writes kept inside an offer/completion transaction; a wider fan-out is written after it
+    private static final int INBOX_IN_TX = MAX_BATCH_WRITES - 10;
+
+    // completed orders kept inline in buyerSummary/{buyerId}.recentOrders
+    public static final int SUMMARY_RECENT_ORDERS = 10;
+
+    // aggregated sellerStats served from memory for this long
+    private static final long SELLER_STATS_TTL_MS = 30 * 1000L;
+
+    // bulk catalog writes: ~30k items/minute at most, and per-item retry budget
+    private static final int MENU_BULK_OPS_PER_SECOND = 500;
+    private static final int MENU_BULK_MAX_ATTEMPTS = 3;
+
+    private static final Comparator<MenuItem> MENU_ORDER =
+            Comparator.comparingDouble(MenuItem::getRating).reversed()
+                    .thenComparingInt(MenuItem::getPrice);
+
     private final Firestore db;
 
+    // category -> menus, filled by preloadMenuCatalog(); null until the first load
+    private final AtomicReference<MenuCatalog> menuCatalog;
+    // bumped by every menu write through this process; a catalog loaded from an older generation is stale
+    private final AtomicLong menuCatalogGeneration;
+
+    // sellerId -> last aggregated SellerStats and when it was read
+    private final Map<String, Map.Entry<Long, SellerStats.Stats>> sellerStatsCache;
+
+    // set by useGateway(): conversation, offer and inbox listeners go through the backend
+    private final AtomicReference<GatewayClient> gateway;
+
+    // who reads and writes through this instance, for CostLedger (see forOrigin)
+    private final String origin;
+
+    // buyer or seller the gateway subscriptions are signed for (GatewayProtocol.buyer / seller)
+    private final String principal;
+
+    // listeners, background work and clients of this process, released on shutdown
+    private final Lifecycle lifecycle;
+
+    // for tools: nothing is drained, the JVM exit ends everything
     public FirestoreService() {
-        this.db = initFirestoreWithFirebaseAdmin();
+        this(new Lifecycle("desktop"));
+    }
+
+    public FirestoreService(Lifecycle lifecycle) {
+        this(initFirestoreWithFirebaseAdmin(lifecycle), "desktop", lifecycle);
+    }
+
+    // for the backend, which already owns a Firestore client (and closes it)
+    public FirestoreService(Firestore db, String origin, Lifecycle lifecycle) {
+        this.db = db;
+        this.origin = origin;
+        this.principal = "";
+        this.lifecycle = lifecycle;
+        this.menuCatalog = new AtomicReference<>();
+        this.menuCatalogGeneration = new AtomicLong();
+        this.sellerStatsCache = new ConcurrentHashMap<>();
+        this.gateway = new AtomicReference<>();
+    }
+
+    private FirestoreService(FirestoreService shared, String origin, String principal) {
+        this.db = shared.db;
+        this.origin = origin;
+        this.principal = principal;
+        this.lifecycle = shared.lifecycle;
+        this.menuCatalog = shared.menuCatalog;
+        this.menuCatalogGeneration = shared.menuCatalogGeneration;
+        this.sellerStatsCache = shared.sellerStatsCache;
+        this.gateway = shared.gateway;
+    }
+
+    /**
+     * The same service (client, caches, gateway) with reads and writes
+     * attributed to origin in {@link CostLedger}, e.g. one per window.
+     */
+    public FirestoreService forOrigin(String origin) {
+        return new FirestoreService(this, origin, principal);
     }
 
-    private Firestore initFirestoreWithFirebaseAdmin() {
+    /** Same, with gateway subscriptions made on behalf of principal. */
+    public FirestoreService forOrigin(String origin, String principal) {
+        return new FirestoreService(this, origin, principal);
+    }
+
+    private static Firestore initFirestoreWithFirebaseAdmin(Lifecycle lifecycle) {
         try {
-            InputStream in = getClass().getClassLoader().getResourceAsStream("firebase-service-account.json");
+            InputStream in = FirestoreService.class.getClassLoader().getResourceAsStream("firebase-service-account.json");
             if (in == null)
                 throw new IllegalStateException("firebase-service-account.json not found in src/main/resources");
 
@@ -30,7 +133,8 @@ public class FirestoreService {
                 FirebaseOptions options = FirebaseOptions.builder()
                         .setCredentials(GoogleCredentials.fromStream(in))
                         .build();
-                FirebaseApp.initializeApp(options);
+                // deleting the app closes its Firestore client and gRPC channels
+                lifecycle.onShutdown(FirebaseApp.initializeApp(options)::delete);
             }
 
             return FirestoreClient.getFirestore();
@@ -39,9 +143,110 @@ public class FirestoreService {
         }
     }
 
+    public Lifecycle lifecycle() { return lifecycle; }
+
+    // raw client for maintenance tools in this package (migrations, benchmarks)
+    Firestore db() { return db; }
+
+    /**
+     * Gateway-backed mode: listenMessages, listenAllOffers and listenSellerInbox
+     * subscribe over one WebSocket to the backend, which keeps a single
+     * Firestore listener per topic for all desktops. Writes still go straight
+     * to Firestore. secret must match the backend's toptri.gateway.secret.
+     */
+    public void useGateway(URI uri, String secret) {
+        GatewayClient client = new GatewayClient(uri, secret);
+        lifecycle.onShutdown(client::close);
+        this.gateway.set(client);
+    }
+
     private static String safe(String s) { return s == null ? "" : s.trim(); }
     private static String norm(String s) { return safe(s).toLowerCase(); }
 
+    // ============================================================
+    // COST ACCOUNTING (every read/write below is billed to origin + a call site, see CostLedger)
+    // ============================================================
+
+    private QuerySnapshot query(String site, Query q) throws ExecutionException, InterruptedException {
+        QuerySnapshot snap = q.get().get();
+        CostLedger.query(origin, site, snap);
+        return snap;
+    }
+
+    private DocumentSnapshot read(String site, DocumentReference ref) throws ExecutionException, InterruptedException {
+        DocumentSnapshot d = ref.get().get();
+        CostLedger.read(origin, site, 1);
+        return d;
+    }
+
+    private void wrote(String site, long docs) {
+        CostLedger.write(origin, site, docs);
+    }
+
+    // query listeners pay for every changed document of every snapshot
+    private EventListener<QuerySnapshot> counted(String site, EventListener<QuerySnapshot> listener) {
+        return (snap, err) -> {
+            if (snap != null) CostLedger.delivered(origin, site, snap);
+            listener.onEvent(snap, err);
+        };
+    }
+
+    // ============================================================
+    // STARTUP
+    // ============================================================
+
+    /**
+     * Issues one cheap read so the gRPC channel, auth token and
+     * connection are established before the first real query.
+     */
+    public void warmUp() throws ExecutionException, InterruptedException {
+        query("warmUp", db.collection("menus").limit(1));
+    }
+
+    /**
+     * Loads every available menu once and indexes it by category, so the
+     * first seller lookups are served from memory instead of a round trip.
+     * Returns the number of menus loaded.
+     *
+     * A menu write that lands while the query runs bumps the generation, so
+     * this load is published as already stale and never hides the new menu.
+     */
+    public int preloadMenuCatalog() throws ExecutionException, InterruptedException {
+        long generation = menuCatalogGeneration.get();
+        QuerySnapshot snap = query("preloadMenuCatalog", db.collection("menus")
+                .whereEqualTo("available", true));
+
+        Map<String, List<MenuItem>> byCategory = new HashMap<>();
+        int count = 0;
+        for (QueryDocumentSnapshot d : snap.getDocuments()) {
+            MenuItem m = toMenuItem(d);
+            if (m == null) continue;
+            byCategory.computeIfAbsent(norm(d.getString("category")), k -> new ArrayList<>()).add(m);
+            count++;
+        }
+        for (List<MenuItem> list : byCategory.values()) list.sort(MENU_ORDER);
+
+        MenuCatalog loaded = new MenuCatalog(byCategory, System.currentTimeMillis(), generation);
+        // two loads racing: the one that started later wins
+        menuCatalog.accumulateAndGet(loaded, (cur, next) ->
+                cur == null || next.generation >= cur.generation ? next : cur);
+        return count;
+    }
+
+    // the catalog if it is complete and young enough to answer from, otherwise null
+    private MenuCatalog freshMenuCatalog() {
+        MenuCatalog c = menuCatalog.get();
+        if (c == null || c.generation != menuCatalogGeneration.get()) return null;
+        return System.currentTimeMillis() - c.loadedAt < MENU_CATALOG_TTL_MS ? c : null;
+    }
+
+    // a menu was written: the catalog is no longer complete, go back to live queries
+    private void invalidateMenuCatalog() {
+        menuCatalogGeneration.incrementAndGet();
+    }
+
+    private record MenuCatalog(Map<String, List<MenuItem>> byCategory, long loadedAt, long generation) {}
+
     // ============================================================
     // ✅ NEW MODEL: OrderItem — one parsed item from buyer message
     // e.g. "2 nasi padang 3 es teh" → [{name:"nasi padang", qty:2}, {name:"es teh", qty:3}]
@@ -113,21 +318,58 @@ public class FirestoreService {
     // CONVERSATION
     // ============================================================
 
+    // the request, its first message and the inbox fan-out are committed together (see fanOutInbox)
     public void createConversation(String requestId, String buyerId, String firstText, long buyerRequestNo) throws Exception {
+        createConversation(requestId, buyerId, firstText, buyerRequestNo, IdService.messageId());
+    }
+
+    /**
+     * Same, with the first message's id chosen by the caller (for the local
+     * echo). Safe to retry with the same id: see {@link #commitMessage}.
+     */
+    public void createConversation(String requestId, String buyerId, String firstText, long buyerRequestNo,
+                                   String firstMessageId) throws Exception {
         String t = safe(firstText);
+        if (t.isBlank()) throw new IllegalArgumentException("Buyer message empty");
+        long traceStart = Tracing.nowNanos();
+
+        List<String> sellerIds = findMatchingSellers(t);
+        Timestamp now = Timestamp.now();
+        long no = Math.max(buyerRequestNo, 0);
 
         Map<String, Object> doc = new HashMap<>();
         doc.put("requestId", requestId);
         doc.put("buyerId", safe(buyerId));
         doc.put("status", "OPEN");
-        doc.put("createdAt", Timestamp.now());
-        doc.put("updatedAt", Timestamp.now());
+        doc.put("createdAt", now);
+        doc.put("updatedAt", now);
         doc.put("buyerText", t);
         doc.put("latestBuyerText", t);
-        doc.put("buyerRequestNo", Math.max(buyerRequestNo, 0));
+        doc.put("buyerRequestNo", no);
+        doc.put("inboxSellerIds", sellerIds);
+        doc.put(TimeShards.FIELD, TimeShards.shardOf(requestId));
 
-        db.collection("requests").document(requestId).set(doc, SetOptions.merge()).get();
-        sendBuyerMessage(requestId, buyerId, firstText);
+        WriteBatch batch = db.batch();
+        doc.put("pendingMessages", 1L);
+        batch.set(db.collection("requests").document(requestId), doc, SetOptions.merge());
+        DocumentReference first = messageRef(requestId, firstMessageId);
+        Map<String, Object> firstMsg = buyerMessage(buyerId, t);
+        batch.create(first, firstMsg);
+        batch.set(viewRef(requestId), ConversationView.created(requestId, safe(buyerId),
+                new ChatMessage(firstMessageId, "BUYER", safe(buyerId), t, (Timestamp) firstMsg.get("createdAt"))),
+                SetOptions.merge());
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("requestId", requestId);
+        entry.put("preview", t);
+        entry.put("buyerRequestNo", no);
+        entry.put("updatedAt", now);
+        entry.put("createdAt", now);
+        entry.put("offerCount", 0L);
+        List<WriteBatch> more = fanOutInbox(batch, sellerIds, requestId, entry, false);
+        commitMessage("createConversation", batch, first);
+        commitAll("createConversation.fanOut", more);
+        Tracing.span(Tracing.BUYER_SEND, firstMessageId, traceStart, Tracing.nowNanos(),
+                Map.of("toptri.requestId", requestId, "toptri.firstMessage", true, "toptri.sellers", sellerIds.size()));
     }
 
     public void createConversation(String requestId, String buyerId, String firstText) throws Exception {
@@ -135,96 +377,518 @@ public class FirestoreService {
     }
 
     public DocumentReference sendBuyerMessage(String requestId, String buyerId, String text) throws Exception {
+        return sendBuyerMessage(requestId, buyerId, text, IdService.messageId());
+    }
+
+    /**
+     * messageId is generated by the caller, so the UI can show the message before this returns.
+     * Only the message, view and request are written on the caller's thread; the sellers'
+     * inbox entries are refreshed in the background (see refreshInboxPreviews).
+     */
+    public DocumentReference sendBuyerMessage(String requestId, String buyerId, String text,
+                                              String messageId) throws Exception {
         String t = safe(text);
         if (t.isBlank()) throw new IllegalArgumentException("Buyer message empty");
+        long traceStart = Tracing.nowNanos();
 
-        Map<String, Object> msg = new HashMap<>();
-        msg.put("requestId", requestId);
-        msg.put("senderType", "BUYER");
-        msg.put("senderId", safe(buyerId));
-        msg.put("text", t);
-        msg.put("createdAt", Timestamp.now());
+        DocumentReference reqRef = db.collection("requests").document(requestId);
+        Timestamp now = Timestamp.now();
 
-        DocumentReference ref = db.collection("requests")
-                .document(requestId)
-                .collection("messages")
-                .add(msg).get();
+        DocumentReference ref = messageRef(requestId, messageId);
+        WriteBatch batch = db.batch();
+        Map<String, Object> msg = buyerMessage(buyerId, t);
+        batch.create(ref, msg);
+        batch.set(viewRef(requestId), ConversationView.message(
+                new ChatMessage(messageId, "BUYER", safe(buyerId), t, (Timestamp) msg.get("createdAt"))),
+                SetOptions.merge());
 
         Map<String, Object> patch = new HashMap<>();
-        patch.put("updatedAt", Timestamp.now());
+        patch.put("updatedAt", now);
         patch.put("buyerText", t);
         patch.put("latestBuyerText", t);
+        patch.put("pendingMessages", FieldValue.increment(1)); // not yet rolled into a chunk
+        batch.set(reqRef, patch, SetOptions.merge());
 
-        db.collection("requests").document(requestId).set(patch, SetOptions.merge()).get();
+        commitMessage("sendBuyerMessage", batch, ref);
+        Tracing.span(Tracing.BUYER_SEND, messageId, traceStart, Tracing.nowNanos(),
+                Map.of("toptri.requestId", requestId, "toptri.firstMessage", false));
+        lifecycle.run(() -> refreshInboxPreviews(requestId));
         return ref;
     }
 
+    /**
+     * Copies the request's latest buyer text into every seller's inbox entry
+     * while the request is still open. Reads the request after the message
+     * committed, so of two quick sends both refreshes write the newer text.
+     */
+    private void refreshInboxPreviews(String requestId) {
+        try {
+            DocumentSnapshot req = read("refreshInboxPreviews", db.collection("requests").document(requestId));
+            if (!"OPEN".equalsIgnoreCase(safe(req.getString("status")))) return;
+            Map<String, Object> entryPatch = new HashMap<>();
+            entryPatch.put("preview", safe(req.getString("latestBuyerText")));
+            entryPatch.put("updatedAt", req.getTimestamp("updatedAt") != null ? req.getTimestamp("updatedAt") : Timestamp.now());
+            commitAll("refreshInboxPreviews", fanOutInbox(null, inboxSellerIds(req), requestId, entryPatch, true));
+        } catch (Exception e) {
+            System.err.println("[inbox] preview refresh failed for " + requestId + ": " + e.getMessage());
+        }
+    }
+
+    private DocumentReference viewRef(String requestId) {
+        return db.collection(ConversationView.COLLECTION).document(requestId);
+    }
+
+    private DocumentReference messageRef(String requestId, String messageId) {
+        return db.collection("requests")
+                .document(requestId)
+                .collection("messages")
+                .document(messageId);
+    }
+
+    /**
+     * Commits a batch that create()s a message. If the create fails because
+     * the message is already there, an earlier attempt with the same id went
+     * through (e.g. a retry after a timeout): nothing was written twice, and
+     * it counts as sent.
+     */
+    private void commitMessage(String site, WriteBatch batch, DocumentReference message) throws Exception {
+        int writes = batch.getMutationsSize();
+        try {
+            batch.commit().get();
+            wrote(site, writes);
+        } catch (ExecutionException e) {
+            if (!read(site, message).exists()) throw e;
+        }
+    }
+
+    private static Map<String, Object> buyerMessage(String buyerId, String text) {
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("senderType", "BUYER");
+        msg.put("senderId", safe(buyerId));
+        msg.put("text", text);
+        msg.put("createdAt", Timestamp.now());
+        return msg;
+    }
+
     public void sendSellerMessage(String requestId, String sellerId, String text) throws Exception {
+        sendSellerMessage(requestId, sellerId, text, IdService.messageId());
+    }
+
+    public void sendSellerMessage(String requestId, String sellerId, String text, String messageId) throws Exception {
         String t = safe(text);
         if (t.isBlank()) throw new IllegalArgumentException("Seller message empty");
 
         Map<String, Object> msg = new HashMap<>();
-        msg.put("requestId", requestId);
         msg.put("senderType", "SELLER");
         msg.put("senderId", safe(sellerId));
         msg.put("text", t);
         msg.put("createdAt", Timestamp.now());
 
-        db.collection("requests").document(requestId).collection("messages").add(msg).get();
-        db.collection("requests").document(requestId).update("updatedAt", Timestamp.now()).get();
+        DocumentReference ref = messageRef(requestId, messageId);
+        WriteBatch batch = db.batch();
+        batch.create(ref, msg);
+        batch.set(viewRef(requestId), ConversationView.message(
+                new ChatMessage(messageId, "SELLER", safe(sellerId), t, (Timestamp) msg.get("createdAt"))),
+                SetOptions.merge());
+        batch.update(db.collection("requests").document(requestId),
+                "updatedAt", Timestamp.now(),
+                "pendingMessages", FieldValue.increment(1));
+        commitMessage("sendSellerMessage", batch, ref);
+    }
+
+    // ============================================================
+    // SELLER INBOX (fan-out on write)
+    // sellerInbox/{sellerId}/items/{requestId} = {requestId, preview, buyerRequestNo, updatedAt,
+    //                                          createdAt, offerCount}
+    // ============================================================
+
+    public void registerSeller(String sellerId) throws Exception {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("sellerId", safe(sellerId));
+        doc.put("lastSeenAt", Timestamp.now());
+        db.collection("sellers").document(safe(sellerId)).set(doc, SetOptions.merge()).get();
+        wrote("registerSeller", 1);
+    }
+
+    /**
+     * Sellers that have an available menu for any item in the text.
+     * Falls back to every registered seller when nobody matches, so unknown
+     * requests still reach someone who can add a menu for them.
+     */
+    List<String> findMatchingSellers(String text) throws ExecutionException, InterruptedException {
+        Set<String> categories = new LinkedHashSet<>();
+        categories.add(norm(text));
+        for (OrderItem oi : parseOrderItems(text)) categories.add(norm(oi.name));
+        categories.remove("");
+
+        Set<String> sellerIds = new LinkedHashSet<>();
+        List<String> all = new ArrayList<>(categories);
+        for (int i = 0; i < all.size(); i += IN_QUERY_LIMIT) {
+            QuerySnapshot snap = query("findMatchingSellers", db.collection("menus")
+                    .whereIn("category", new ArrayList<>(all.subList(i, Math.min(i + IN_QUERY_LIMIT, all.size()))))
+                    .whereEqualTo("available", true));
+            for (QueryDocumentSnapshot d : snap.getDocuments()) {
+                String sid = safe(d.getString("sellerId"));
+                if (!sid.isBlank()) sellerIds.add(sid);
+            }
+        }
+
+        if (sellerIds.isEmpty()) {
+            for (QueryDocumentSnapshot d : query("findMatchingSellers.all", db.collection("sellers")).getDocuments()) {
+                sellerIds.add(d.getId());
+            }
+        }
+        return new ArrayList<>(sellerIds);
+    }
+
+    /**
+     * Writes entry (merge = patch, null = delete) to every seller's inbox item for the request.
+     * The first writes go into first (when given) up to the batch limit; the
+     * rest are returned as further batches, so a request matching hundreds of
+     * sellers does not exceed it. Committed after first by the caller.
+     */
+    private List<WriteBatch> fanOutInbox(WriteBatch first, List<String> sellerIds, String requestId,
+                                         Map<String, Object> entry, boolean merge) {
+        List<WriteBatch> more = new ArrayList<>();
+        WriteBatch batch = first;
+        for (String sellerId : sellerIds) {
+            if (batch == null || batch.getMutationsSize() >= MAX_BATCH_WRITES) {
+                batch = db.batch();
+                more.add(batch);
+            }
+            if (entry == null) batch.delete(inboxRef(sellerId, requestId));
+            else if (merge) batch.set(inboxRef(sellerId, requestId), entry, SetOptions.merge());
+            else batch.set(inboxRef(sellerId, requestId), entry);
+        }
+        return more;
+    }
+
+    // sent together, awaited together
+    private void commitAll(String site, List<WriteBatch> batches) throws ExecutionException, InterruptedException {
+        List<ApiFuture<List<WriteResult>>> pending = new ArrayList<>();
+        for (WriteBatch b : batches) pending.add(b.commit());
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).get();
+            wrote(site, batches.get(i).getMutationsSize());
+        }
+    }
+
+    /**
+     * Gives an OPEN request created before the inbox fan-out (no inboxSellerIds)
+     * its matching sellers and their inbox entries. Returns the number of sellers
+     * fanned out to, 0 if the request already had a fan-out. For BackfillTool.
+     */
+    int backfillInbox(DocumentSnapshot req) throws ExecutionException, InterruptedException {
+        if (req.contains("inboxSellerIds")) return 0;
+        String text = safe(req.getString("latestBuyerText"));
+        if (text.isBlank()) text = safe(req.getString("buyerText"));
+        List<String> sellerIds = findMatchingSellers(text);
+
+        Timestamp createdAt = req.getTimestamp("createdAt");
+        Timestamp updatedAt = req.getTimestamp("updatedAt");
+        Long no = req.getLong("buyerRequestNo");
+        Long offers = req.getLong("offerCount");
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("requestId", req.getId());
+        entry.put("preview", text);
+        entry.put("buyerRequestNo", no == null ? 0L : no);
+        entry.put("updatedAt", updatedAt != null ? updatedAt : Timestamp.now());
+        entry.put("createdAt", createdAt != null ? createdAt : entry.get("updatedAt"));
+        entry.put("offerCount", offers == null ? 0L : offers);
+
+        // entries first: a crash in between leaves the request to be picked up by the next run
+        commitAll("backfillInbox", fanOutInbox(null, sellerIds, req.getId(), entry, false));
+        req.getReference().update("inboxSellerIds", sellerIds).get();
+        wrote("backfillInbox", 1);
+        return sellerIds.size();
+    }
+
+    private DocumentReference inboxRef(String sellerId, String requestId) {
+        return db.collection("sellerInbox").document(sellerId).collection("items").document(requestId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> inboxSellerIds(DocumentSnapshot req) {
+        Object raw = req.get("inboxSellerIds");
+        return raw instanceof List ? (List<String>) raw : Collections.emptyList();
+    }
+
+    public ListenerRegistration listenSellerInbox(String sellerId,
+                                                  Consumer<List<InboxEntry>> onUpdate,
+                                                  Consumer<Exception> onError) {
+        GatewayClient gw = gateway.get();
+        if (gw != null) {
+            return lifecycle.track(gw.subscribe(GatewayProtocol.TOPIC_INBOX, safe(sellerId), principal, items -> {
+                List<InboxEntry> out = new ArrayList<>();
+                for (JsonNode n : items) out.add(GatewayProtocol.decodeInboxEntry(n));
+                onUpdate.accept(out);
+            }, onError));
+        }
+        return lifecycle.track(db.collection("sellerInbox")
+                .document(safe(sellerId))
+                .collection("items")
+                .orderBy("updatedAt", Query.Direction.DESCENDING)
+                .addSnapshotListener(counted("listenSellerInbox", (snap, err) -> {
+                    if (err != null) { onError.accept(err); return; }
+                    if (snap == null) return;
+                    List<InboxEntry> out = new ArrayList<>();
+                    for (QueryDocumentSnapshot d : snap.getDocuments()) {
+                        Long n = d.getLong("buyerRequestNo");
+                        Long offers = d.getLong("offerCount");
+                        out.add(new InboxEntry(d.getId(), safe(d.getString("preview")),
+                                n == null ? 0L : n, d.getTimestamp("updatedAt"),
+                                d.getTimestamp("createdAt"), offers == null ? 0 : offers.intValue()));
+                    }
+                    onUpdate.accept(out);
+                })));
     }
 
     // ============================================================
     // LISTENERS
     // ============================================================
 
+    /**
+     * Whole conversation, oldest first: compacted chunks plus the live tail of
+     * individual message documents. Fires once both have been read, then on
+     * every change to either. A compaction moves messages from tail to chunk;
+     * messages that left the tail are kept until a chunk snapshot holds them,
+     * so a conversation never briefly loses messages.
+     */
     public ListenerRegistration listenMessages(String requestId,
-                                               Consumer<QuerySnapshot> onUpdate,
+                                               Consumer<List<ChatMessage>> onUpdate,
                                                Consumer<Exception> onError) {
-        return db.collection("requests")
-                .document(requestId)
-                .collection("messages")
+        GatewayClient gw = gateway.get();
+        if (gw != null) {
+            return lifecycle.track(gw.subscribe(GatewayProtocol.TOPIC_MESSAGES, requestId, principal, items -> {
+                List<ChatMessage> out = new ArrayList<>();
+                for (JsonNode n : items) out.add(GatewayProtocol.decodeMessage(n));
+                onUpdate.accept(out);
+            }, onError));
+        }
+        DocumentReference reqRef = db.collection("requests").document(requestId);
+        Object lock = new Object();
+        List<List<ChatMessage>> chunks = new ArrayList<>();
+        List<List<ChatMessage>> tail = new ArrayList<>();
+        Set<String> chunkedIds = new HashSet<>();
+        // messages deleted from the tail by a compaction whose chunk has not been delivered yet:
+        // the two listeners are independent, so the tail can run ahead of the chunks
+        Map<String, ChatMessage> inFlight = new LinkedHashMap<>();
+
+        Runnable emit = () -> {
+            List<ChatMessage> merged;
+            synchronized (lock) {
+                if (chunks.isEmpty() || tail.isEmpty()) return;
+                List<ChatMessage> live = new ArrayList<>(tail.get(0));
+                live.addAll(inFlight.values());
+                merged = mergeMessages(chunks.get(0), live);
+            }
+            onUpdate.accept(merged);
+        };
+
+        ListenerRegistration chunkReg = reqRef.collection(MessageChunks.COLLECTION)
+                .orderBy("chunkNo", Query.Direction.ASCENDING)
+                .addSnapshotListener(counted("listenMessages.chunks", (snap, err) -> {
+                    if (err != null) { onError.accept(err); return; }
+                    if (snap == null) return;
+                    List<ChatMessage> out = new ArrayList<>();
+                    for (QueryDocumentSnapshot d : snap.getDocuments()) out.addAll(MessageChunks.decode(d));
+                    synchronized (lock) {
+                        chunks.clear();
+                        chunks.add(out);
+                        chunkedIds.clear();
+                        for (ChatMessage m : out) chunkedIds.add(m.id);
+                        inFlight.keySet().removeAll(chunkedIds); // the chunk caught up
+                    }
+                    emit.run();
+                }));
+
+        ListenerRegistration tailReg = reqRef.collection("messages")
                 .orderBy("createdAt", Query.Direction.ASCENDING)
-                .addSnapshotListener((snap, err) -> {
+                .addSnapshotListener(counted("listenMessages.tail", (snap, err) -> {
                     if (err != null) { onError.accept(err); return; }
-                    if (snap != null) onUpdate.accept(snap);
-                });
+                    if (snap == null) return;
+                    List<ChatMessage> out = new ArrayList<>();
+                    for (QueryDocumentSnapshot d : snap.getDocuments()) out.add(ChatMessage.from(d));
+                    synchronized (lock) {
+                        tail.clear();
+                        tail.add(out);
+                        for (DocumentChange c : snap.getDocumentChanges()) {
+                            if (c.getType() != DocumentChange.Type.REMOVED) continue;
+                            ChatMessage m = ChatMessage.from(c.getDocument());
+                            if (!chunkedIds.contains(m.id)) inFlight.put(m.id, m);
+                        }
+                    }
+                    emit.run();
+                }));
+
+        return lifecycle.track(() -> {
+            chunkReg.remove();
+            tailReg.remove();
+        });
+    }
+
+    // chunk and tail can briefly overlap while a compaction commits; a gap is prevented by the callers
+    private static List<ChatMessage> mergeMessages(List<ChatMessage> chunked, List<ChatMessage> tail) {
+        Map<String, ChatMessage> byId = new LinkedHashMap<>();
+        for (ChatMessage m : chunked) byId.put(m.id, m);
+        for (ChatMessage m : tail) byId.putIfAbsent(m.id, m);
+        List<ChatMessage> out = new ArrayList<>(byId.values());
+        out.sort(Comparator.comparing((ChatMessage m) -> m.createdAt,
+                Comparator.nullsLast(Comparator.naturalOrder())));
+        return out;
     }
 
+    // oldest first; sorted here, since ordering the query by a v2 field would drop legacy offers
     public ListenerRegistration listenAllOffers(String requestId,
-                                                Consumer<QuerySnapshot> onUpdate,
+                                                Consumer<List<Offer>> onUpdate,
                                                 Consumer<Exception> onError) {
-        return db.collection("requests")
+        GatewayClient gw = gateway.get();
+        if (gw != null) {
+            return lifecycle.track(gw.subscribe(GatewayProtocol.TOPIC_OFFERS, requestId, principal, items -> {
+                List<Offer> out = new ArrayList<>();
+                for (JsonNode n : items) out.add(GatewayProtocol.decodeOffer(n));
+                onUpdate.accept(out);
+            }, onError));
+        }
+        return lifecycle.track(db.collection("requests")
                 .document(requestId)
                 .collection("offers")
-                .orderBy("createdAt", Query.Direction.ASCENDING)
-                .addSnapshotListener((snap, err) -> {
+                .addSnapshotListener(counted("listenAllOffers", (snap, err) -> {
                     if (err != null) { onError.accept(err); return; }
-                    if (snap != null) onUpdate.accept(snap);
-                });
+                    if (snap == null) return;
+                    List<Offer> out = new ArrayList<>();
+                    for (QueryDocumentSnapshot d : snap.getDocuments()) {
+                        out.add(OfferCodec.decode(d.getId(), d.getData(), d.getCreateTime()));
+                    }
+                    out.sort(Comparator.comparing((Offer o) -> o.createdAt, Comparator.nullsLast(Comparator.naturalOrder()))
+                            .thenComparing(o -> o.id));
+                    onUpdate.accept(out);
+                })));
     }
 
-    public ListenerRegistration listenBuyerRequests(String buyerId,
-                                                    Consumer<QuerySnapshot> onUpdate,
-                                                    Consumer<Exception> onError) {
-        return db.collection("requests")
+    /**
+     * One listener for a whole conversation (see {@link ConversationView}).
+     * Emits null while the conversation has no view (created before views
+     * existed); callers then use listenMessages + listenAllOffers.
+     */
+    public ListenerRegistration listenConversationView(String requestId,
+                                                       Consumer<ConversationView.View> onUpdate,
+                                                       Consumer<Exception> onError) {
+        GatewayClient gw = gateway.get();
+        if (gw != null) {
+            return lifecycle.track(gw.subscribe(GatewayProtocol.TOPIC_VIEW, requestId, principal,
+                    items -> onUpdate.accept(items.isEmpty() ? null : GatewayProtocol.decodeView(items.get(0))),
+                    onError));
+        }
+        return lifecycle.track(viewRef(requestId).addSnapshotListener((snap, err) -> {
+            if (err != null) { onError.accept(err); return; }
+            if (snap == null) return;
+            CostLedger.read(origin, "listenConversationView", 1);
+            onUpdate.accept(ConversationView.decode(snap));
+        }));
+    }
+
+    /**
+     * One-shot full history (chunks + live tail), for messages older than the view holds.
+     * The tail is read before the chunks: a compaction moves messages from tail to chunk
+     * atomically, so one that commits in between shows up twice (merged), never not at all.
+     */
+    public List<ChatMessage> getMessages(String requestId) throws ExecutionException, InterruptedException {
+        DocumentReference reqRef = db.collection("requests").document(requestId);
+        List<ChatMessage> tail = new ArrayList<>();
+        for (QueryDocumentSnapshot d : query("getMessages.tail", reqRef.collection("messages")
+                .orderBy("createdAt", Query.Direction.ASCENDING)).getDocuments()) {
+            tail.add(ChatMessage.from(d));
+        }
+        List<ChatMessage> chunked = new ArrayList<>();
+        for (QueryDocumentSnapshot d : query("getMessages.chunks", reqRef.collection(MessageChunks.COLLECTION)
+                .orderBy("chunkNo", Query.Direction.ASCENDING)).getDocuments()) {
+            chunked.addAll(MessageChunks.decode(d));
+        }
+        return mergeMessages(chunked, tail);
+    }
+
+    // only the buyer's OPEN requests; completed ones come from the summary + history pages
+    public ListenerRegistration listenBuyerOpenRequests(String buyerId,
+                                                        Consumer<QuerySnapshot> onUpdate,
+                                                        Consumer<Exception> onError) {
+        return lifecycle.track(db.collection("requests")
                 .whereEqualTo("buyerId", safe(buyerId))
+                .whereEqualTo("status", "OPEN")
                 .orderBy("updatedAt", Query.Direction.DESCENDING)
-                .addSnapshotListener((snap, err) -> {
+                .addSnapshotListener(counted("listenBuyerOpenRequests", (snap, err) -> {
                     if (err != null) { onError.accept(err); return; }
                     if (snap != null) onUpdate.accept(snap);
-                });
+                })));
     }
 
-    public ListenerRegistration listenOpenRequests(Consumer<QuerySnapshot> onUpdate,
+    public ListenerRegistration listenBuyerSummary(String buyerId,
+                                                   Consumer<BuyerSummary> onUpdate,
                                                    Consumer<Exception> onError) {
-        return db.collection("requests")
-                .whereEqualTo("status", "OPEN")
-                .orderBy("updatedAt", Query.Direction.DESCENDING)
+        return lifecycle.track(db.collection("buyerSummary")
+                .document(safe(buyerId))
                 .addSnapshotListener((snap, err) -> {
                     if (err != null) { onError.accept(err); return; }
-                    if (snap != null) onUpdate.accept(snap);
-                });
+                    if (snap == null) return;
+                    CostLedger.read(origin, "listenBuyerSummary", 1);
+                    onUpdate.accept(BuyerSummary.from(snap));
+                }));
+    }
+
+    // ============================================================
+    // ORDER HISTORY
+    // ============================================================
+
+    /**
+     * One page of the buyer's COMPLETED requests, newest first, across the hot
+     * requests collection and the archive.
+     * Pass the completedAt of the last entry already shown (null for the first page).
+     */
+    public List<HistoryEntry> getCompletedRequestsPage(String buyerId, Timestamp beforeCompletedAt, int pageSize)
+            throws ExecutionException, InterruptedException {
+
+        Query hot = db.collection("requests")
+                .whereEqualTo("buyerId", safe(buyerId))
+                .whereEqualTo("status", "COMPLETED")
+                .orderBy("completedAt", Query.Direction.DESCENDING)
+                .limit(pageSize);
+        Query cold = db.collection(ConversationArchive.COLLECTION)
+                .whereEqualTo("buyerId", safe(buyerId))
+                .orderBy("completedAt", Query.Direction.DESCENDING)
+                .limit(pageSize);
+        if (beforeCompletedAt != null) {
+            hot = hot.startAfter(beforeCompletedAt);
+            cold = cold.startAfter(beforeCompletedAt);
+        }
+
+        // a conversation is in both for the moment between archive write and delete
+        Map<String, HistoryEntry> byId = new LinkedHashMap<>();
+        for (QueryDocumentSnapshot d : query("getCompletedRequestsPage.hot", hot).getDocuments()) {
+            HistoryEntry e = HistoryEntry.fromRequest(d);
+            byId.put(e.requestId, e);
+        }
+        for (QueryDocumentSnapshot d : query("getCompletedRequestsPage.archive", cold).getDocuments()) {
+            HistoryEntry e = HistoryEntry.fromRequest(d);
+            byId.putIfAbsent(e.requestId, e);
+        }
+
+        List<HistoryEntry> out = new ArrayList<>(byId.values());
+        out.sort(Comparator.comparing((HistoryEntry e) -> e.completedAt,
+                Comparator.nullsLast(Comparator.reverseOrder())));
+        return out.size() > pageSize ? new ArrayList<>(out.subList(0, pageSize)) : out;
+    }
+
+    /** The packed conversation if it has been moved to the archive, otherwise null. */
+    public ConversationArchive.Archived getArchivedConversation(String requestId)
+            throws ExecutionException, InterruptedException {
+        DocumentSnapshot d = read("getArchivedConversation", db.collection(ConversationArchive.COLLECTION).document(requestId));
+        return d.exists() ? ConversationArchive.unpack(d) : null;
+    }
+
+    public String getRequestStatus(String requestId) throws ExecutionException, InterruptedException {
+        DocumentSnapshot d = read("getRequestStatus", db.collection("requests").document(requestId));
+        String st = d.exists() ? safe(d.getString("status")) : "";
+        return st.isBlank() ? "OPEN" : st;
     }
 
     // ============================================================
@@ -234,38 +898,128 @@ public class FirestoreService {
     public List<MenuItem> getMenusByCategory(String category)
             throws ExecutionException, InterruptedException {
 
-        QuerySnapshot snap = db.collection("menus")
+        MenuCatalog catalog = freshMenuCatalog();
+        if (catalog != null) {
+            return new ArrayList<>(catalog.byCategory().getOrDefault(norm(category), Collections.emptyList()));
+        }
+
+        QuerySnapshot snap = query("getMenusByCategory", db.collection("menus")
                 .whereEqualTo("category", norm(category))
-                .whereEqualTo("available", true)
-                .get().get();
+                .whereEqualTo("available", true));
 
         List<MenuItem> out = new ArrayList<>();
         for (QueryDocumentSnapshot d : snap.getDocuments()) {
-            String name = safe(d.getString("name"));
-            String sellerId = safe(d.getString("sellerId"));
-            String vendor = safe(d.getString("vendor"));
-            int price = 0;
-            Long p = d.getLong("price");
-            if (p != null) price = p.intValue();
-            int etaMinutes = 0;
-            Long eta = d.getLong("etaMinutes");
-            if (eta != null) etaMinutes = eta.intValue();
-            double rating = 0.0;
-            Double r = d.getDouble("rating");
-            if (r != null) rating = r;
-            if (!name.isBlank()) out.add(new MenuItem(name, price, sellerId, vendor, etaMinutes, rating));
-        }
-
-        out.sort(Comparator.comparingDouble(MenuItem::getRating).reversed()
-                .thenComparingInt(MenuItem::getPrice));
+            MenuItem m = toMenuItem(d);
+            if (m != null) out.add(m);
+        }
+
+        out.sort(MENU_ORDER);
         return out;
     }
 
+    /**
+     * Resolves every ordered item to one of the seller's own available menus,
+     * keyed by the item's normalised name (= its category). All items cost one
+     * round trip: the catalog cache when fresh, otherwise whereIn on the
+     * categories in chunks of {@link #IN_QUERY_LIMIT}, all chunks sent before
+     * any is awaited. Items the seller has no menu for are absent.
+     */
+    public Map<String, MenuItem> resolveMenus(List<OrderItem> items, String sellerId)
+            throws ExecutionException, InterruptedException {
+        Set<String> categories = new LinkedHashSet<>();
+        for (OrderItem oi : items) categories.add(norm(oi.name));
+        categories.remove("");
+        if (categories.isEmpty()) return new HashMap<>();
+
+        Map<String, List<MenuItem>> byCategory = new HashMap<>();
+        MenuCatalog catalog = freshMenuCatalog();
+        if (catalog != null) {
+            for (String c : categories) byCategory.put(c, catalog.byCategory().getOrDefault(c, Collections.emptyList()));
+        } else {
+            List<String> all = new ArrayList<>(categories);
+            List<ApiFuture<QuerySnapshot>> pending = new ArrayList<>();
+            for (int i = 0; i < all.size(); i += IN_QUERY_LIMIT) {
+                pending.add(db.collection("menus")
+                        .whereIn("category", new ArrayList<>(all.subList(i, Math.min(i + IN_QUERY_LIMIT, all.size()))))
+                        .whereEqualTo("available", true)
+                        .get());
+            }
+            for (ApiFuture<QuerySnapshot> f : pending) {
+                CostLedger.query(origin, "resolveMenus", f.get());
+                for (QueryDocumentSnapshot d : f.get().getDocuments()) {
+                    MenuItem m = toMenuItem(d);
+                    if (m != null) byCategory.computeIfAbsent(norm(d.getString("category")), k -> new ArrayList<>()).add(m);
+                }
+            }
+            for (List<MenuItem> list : byCategory.values()) list.sort(MENU_ORDER);
+        }
+
+        Map<String, MenuItem> resolved = new HashMap<>();
+        for (Map.Entry<String, List<MenuItem>> e : byCategory.entrySet()) {
+            for (MenuItem m : e.getValue()) {
+                if (m.getSellerId().equals(safe(sellerId))) { resolved.put(e.getKey(), m); break; } // best ranked
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Offer lines for a (possibly multi-item) order when the seller offers
+     * menuName at price. The item that menu is for (the one it was resolved
+     * to, or with the same name; the only item of a single-item order) is
+     * priced with it, every other item with the seller's resolved menu for
+     * it. Items the seller has no menu for are left out and listed in
+     * {@link PricedLines#unpriced} for the caller to show. A menu that is for
+     * none of the items becomes a line of its own; no items parsed = one line
+     * of the chosen menu.
+     */
+    public static PricedLines priceOrderItems(List<OrderItem> items, Map<String, MenuItem> resolved,
+                                              String menuName, int price) {
+        List<OfferLine> lines = new ArrayList<>();
+        List<String> unpriced = new ArrayList<>();
+        boolean ownItemFound = false;
+        for (OrderItem oi : items) {
+            MenuItem m = resolved.get(norm(oi.name));
+            boolean own = items.size() == 1 || norm(oi.name).equals(norm(menuName))
+                    || (m != null && norm(m.getName()).equals(norm(menuName)));
+            // buyer's item name if available, else the chosen menu's name
+            String name = oi.name.isBlank() ? menuName : oi.name;
+            if (own) {
+                lines.add(new OfferLine(name, oi.qty, price));
+                ownItemFound = true;
+            } else if (m != null) {
+                lines.add(new OfferLine(name, oi.qty, m.getPrice()));
+            } else {
+                unpriced.add(name);
+            }
+        }
+        if (!ownItemFound) lines.add(0, new OfferLine(menuName, 1, price));
+        return new PricedLines(lines, unpriced);
+    }
+
+    private static MenuItem toMenuItem(DocumentSnapshot d) {
+        String name = safe(d.getString("name"));
+        if (name.isBlank()) return null;
+        String sellerId = safe(d.getString("sellerId"));
+        String vendor = safe(d.getString("vendor"));
+        int price = 0;
+        Long p = d.getLong("price");
+        if (p != null) price = p.intValue();
+        int etaMinutes = 0;
+        Long eta = d.getLong("etaMinutes");
+        if (eta != null) etaMinutes = eta.intValue();
+        double rating = 0.0;
+        Double r = d.getDouble("rating");
+        if (r != null) rating = r;
+        return new MenuItem(name, price, sellerId, vendor, etaMinutes, rating);
+    }
+
     public String mapCategoryFromText(String text) {
         return norm(text);
     }
 
     // ✅ NEW: create a menu entry in Firestore (used when seller adds new menu)
+    // a menu the seller already has under that name is updated, not duplicated (see importMenus)
     public void createMenuEntry(String buyerTextCategory, String menuName, int price,
                                 String vendor, String sellerId) throws Exception {
         Map<String, Object> menu = new HashMap<>();
@@ -273,11 +1027,115 @@ public class FirestoreService {
         menu.put("sellerId", safe(sellerId));
         menu.put("vendor", safe(vendor));
         menu.put("price", Math.max(price, 0));
-        menu.put("etaMinutes", 0);
-        menu.put("rating", 0.0);
         menu.put("available", true);
         menu.put("category", norm(buyerTextCategory));
-        db.collection("menus").add(menu).get();
+
+        DocumentReference ref = null;
+        Query same = db.collection("menus")
+                .whereEqualTo("sellerId", safe(sellerId))
+                .whereEqualTo("name", safe(menuName));
+        for (QueryDocumentSnapshot d : query("createMenuEntry", same).getDocuments()) {
+            if (ref == null || d.getId().equals(menuId(sellerId, menuName))) ref = d.getReference();
+        }
+        if (ref == null) {
+            ref = db.collection("menus").document(menuId(sellerId, menuName));
+            menu.put("etaMinutes", 0);
+            menu.put("rating", 0.0);
+        }
+        ref.set(menu, SetOptions.merge()).get();
+        wrote("createMenuEntry", 1);
+        invalidateMenuCatalog();
+    }
+
+    // ============================================================
+    // BULK CATALOG
+    // ============================================================
+
+    /**
+     * Upserts a seller's menus through one BulkWriter (rate limited, batched,
+     * retried per item). A seller's menu is identified by its name (offers,
+     * stats and matching all go by name), not by category: a menu the seller
+     * already has, imported or added by hand, is updated in place, a re-import
+     * under another category moves it, and new menus get a deterministic id
+     * from seller + name. onProgress receives (finished, total) from
+     * BulkWriter threads.
+     */
+    public BulkResult importMenus(String sellerId, List<MenuDraft> drafts,
+                                  BiConsumer<Integer, Integer> onProgress) throws Exception {
+        // one read of the seller's catalog finds the documents added by hand, which have random ids
+        Map<String, DocumentReference> existing = new HashMap<>();
+        Query own = db.collection("menus").whereEqualTo("sellerId", safe(sellerId));
+        for (QueryDocumentSnapshot d : query("importMenus", own).getDocuments()) {
+            String name = d.getString("name");
+            if (!existing.containsKey(norm(name)) || d.getId().equals(menuId(sellerId, name))) {
+                existing.put(norm(name), d.getReference());
+            }
+        }
+
+        BulkResult result = new BulkResult(drafts.size(), onProgress);
+        BulkWriter writer = menuBulkWriter();
+        for (MenuDraft m : drafts) {
+            Map<String, Object> menu = new HashMap<>();
+            menu.put("name", safe(m.name));
+            menu.put("sellerId", safe(sellerId));
+            menu.put("vendor", safe(m.vendor));
+            menu.put("price", Math.max(m.price, 0));
+            menu.put("etaMinutes", Math.max(m.etaMinutes, 0));
+            menu.put("rating", m.rating);
+            menu.put("available", m.available);
+            menu.put("category", norm(m.category));
+            DocumentReference ref = existing.getOrDefault(norm(m.name),
+                    db.collection("menus").document(menuId(sellerId, m.name)));
+            result.track(m.label, writer.set(ref, menu, SetOptions.merge()));
+        }
+        writer.close();
+        wrote("importMenus", result.written());
+        invalidateMenuCatalog();
+        return result;
+    }
+
+    /** Marks every menu of the seller in the category (blank = all categories) available or not. */
+    public BulkResult setMenusAvailable(String sellerId, String category, boolean available,
+                                        BiConsumer<Integer, Integer> onProgress) throws Exception {
+        Query q = db.collection("menus").whereEqualTo("sellerId", safe(sellerId));
+        if (!norm(category).isBlank()) q = q.whereEqualTo("category", norm(category));
+        List<QueryDocumentSnapshot> menus = query("setMenusAvailable", q).getDocuments();
+
+        BulkResult result = new BulkResult(menus.size(), onProgress);
+        BulkWriter writer = menuBulkWriter();
+        for (QueryDocumentSnapshot d : menus) {
+            result.track(safe(d.getString("name")), writer.update(d.getReference(), "available", available));
+        }
+        writer.close();
+        wrote("setMenusAvailable", result.written());
+        invalidateMenuCatalog();
+        return result;
+    }
+
+    private BulkWriter menuBulkWriter() {
+        BulkWriter writer = db.bulkWriter(BulkWriterOptions.builder()
+                .setInitialOpsPerSecond(MENU_BULK_OPS_PER_SECOND / 2)
+                .setMaxOpsPerSecond(MENU_BULK_OPS_PER_SECOND)
+                .build());
+        // transient failures are retried with backoff; give up on an item after a few attempts
+        writer.addWriteErrorListener(e -> e.getFailedAttempts() < MENU_BULK_MAX_ATTEMPTS);
+        return writer;
+    }
+
+    static String menuId(String sellerId, String name) {
+        return hashId("m_", sellerId, name);
+    }
+
+    // stable document id from normalised parts: same inputs, same document
+    private static String hashId(String prefix, String... parts) {
+        StringJoiner key = new StringJoiner("|");
+        for (String p : parts) key.add(norm(p));
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return prefix + HexFormat.of().formatHex(h, 0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     // ============================================================
@@ -285,64 +1143,110 @@ public class FirestoreService {
     // ============================================================
 
     /**
-     * Creates an offer document with multiple item lines.
-     * offerLines = list of {menuName, qty, price} maps.
+     * Creates an offer document with multiple item lines, in the compact v2
+     * encoding of {@link OfferCodec}.
      * grandTotal = sum of all qty*price.
      * sellerContact = phone/contact shown to buyer.
+     *
+     * The document id is {@link #offerId} of (request, buyer message, seller, menu)
+     * and the offer is written with create(), so a retry after a timeout is a
+     * no-op and a second offer of the same menu for the same message is rejected.
+     * Returns false when that offer already existed.
      */
-    public void createOfferWithLines(String requestId,
-                                     String sellerId,
-                                     String vendor,
-                                     int etaMinutes,
-                                     double rating,
-                                     List<Map<String, Object>> offerLines,
-                                     int grandTotal,
-                                     String buyerMessageId,
-                                     String sellerContact) throws Exception {
-
-        Map<String, Object> offer = new HashMap<>();
-        offer.put("sellerId", safe(sellerId));
-        offer.put("vendor", safe(vendor));
-        offer.put("etaMinutes", etaMinutes);
-        offer.put("rating", rating);
-        offer.put("offerLines", offerLines);       // ✅ multi-item lines
-        offer.put("grandTotal", grandTotal);        // ✅ total price
-        offer.put("buyerMessageId", safe(buyerMessageId));
-        offer.put("sellerContact", safe(sellerContact)); // ✅ contact
-        offer.put("createdAt", Timestamp.now());
-
-        // for legacy compatibility: store first item as top-level fields
-        if (!offerLines.isEmpty()) {
-            Map<String, Object> first = offerLines.get(0);
-            offer.put("menuName", safe((String) first.get("menuName")));
-            offer.put("price", first.get("price"));
-            offer.put("quantity", first.get("qty"));
-        }
-
-        db.collection("requests").document(requestId).collection("offers").add(offer).get();
+    public boolean createOfferWithLines(String requestId,
+                                        String sellerId,
+                                        String menuName,
+                                        String vendor,
+                                        int etaMinutes,
+                                        double rating,
+                                        List<OfferLine> offerLines,
+                                        int grandTotal,
+                                        String buyerMessageId,
+                                        String sellerContact) throws Exception {
+        long traceStart = Tracing.nowNanos();
+
+        Map<String, Object> offer = OfferCodec.encode(safe(sellerId), safe(menuName), safe(vendor), etaMinutes, rating,
+                offerLines, grandTotal, safe(buyerMessageId), safe(sellerContact), Timestamp.now());
+
+        DocumentReference reqRef = db.collection("requests").document(requestId);
+        String offerId = offerId(requestId, buyerMessageId, sellerId, menuName);
+        DocumentReference offerRef = reqRef.collection("offers").document(offerId);
+
+        // offer + offerCount on the request and every inbox entry, so schedulers see it at once
+        int[] txWrites = new int[1];
+        List<List<String>> spill = new ArrayList<>(List.of(List.of()));
+        DocumentReference statsRef = safe(sellerId).isBlank() ? null : SellerStats.randomShard(db, safe(sellerId));
+        boolean created = db.runTransaction(tx -> {
+            DocumentSnapshot req = tx.get(reqRef).get();
+            CostLedger.read(origin, "createOfferWithLines", 2); // every attempt pays for its reads
+            if (tx.get(offerRef).get().exists()) return false; // earlier attempt already landed
+            // the shard's menu map is capped, so the writer has to see which menus it already holds
+            DocumentSnapshot statsShard = statsRef == null ? null : tx.get(statsRef).get();
+            if (statsShard != null) CostLedger.read(origin, "createOfferWithLines", 1);
+            Timestamp now = Timestamp.now();
+
+            tx.create(offerRef, offer);
+            tx.set(viewRef(requestId), ConversationView.offer(offerId, offer), SetOptions.merge());
+
+            Map<String, Object> patch = new HashMap<>();
+            patch.put("offerCount", FieldValue.increment(1));
+            Long latency = null;
+            Long count = req.getLong("offerCount");
+            Timestamp createdAt = req.getTimestamp("createdAt");
+            if ((count == null || count == 0) && createdAt != null) {
+                latency = millisBetween(createdAt, now);
+                patch.put("firstOfferAt", now);
+                patch.put("timeToFirstOfferMs", latency);
+            }
+            tx.set(reqRef, patch, SetOptions.merge());
+            if (statsShard != null) {
+                tx.set(statsRef, SellerStats.offerSent(statsShard, menuName, latency), SetOptions.merge());
+            }
+
+            List<String> inbox = "OPEN".equalsIgnoreCase(safe(req.getString("status")))
+                    ? inboxSellerIds(req) : List.of();
+            spill.set(0, inbox.size() > INBOX_IN_TX ? inbox : List.of());
+            if (inbox.size() <= INBOX_IN_TX) {
+                for (String sid : inbox) {
+                    tx.set(inboxRef(sid, requestId), Map.of("offerCount", FieldValue.increment(1)), SetOptions.merge());
+                }
+            }
+            txWrites[0] = tx.getMutationsSize();
+            return true;
+        }).get();
+        wrote("createOfferWithLines", txWrites[0]);
+        if (created) {
+            commitAll("createOfferWithLines.inbox", fanOutInbox(null, spill.get(0), requestId,
+                    Map.of("offerCount", FieldValue.increment(1)), true));
+        }
+
+        Tracing.span(Tracing.SELLER_OFFER, safe(buyerMessageId), traceStart, Tracing.nowNanos(),
+                Map.of("toptri.requestId", requestId, "toptri.sellerId", safe(sellerId),
+                        "toptri.offerId", offerId, "toptri.created", created));
+        return created;
+    }
+
+    /** Document id of the offer of one menu by one seller for one buyer message. */
+    public static String offerId(String requestId, String buyerMessageId, String sellerId, String menuName) {
+        return hashId("o_", requestId, buyerMessageId, sellerId, menuName);
+    }
+
+    private static long millisBetween(Timestamp from, Timestamp to) {
+        return (to.getSeconds() - from.getSeconds()) * 1000L
+                + (to.getNanos() - from.getNanos()) / 1_000_000L;
     }
 
     // ── backward-compat wrappers ──
 
     public void createOfferFromMenu(String requestId, String sellerId, MenuItem menu, String buyerMessageId) throws Exception {
-        List<Map<String, Object>> lines = new ArrayList<>();
-        Map<String, Object> line = new HashMap<>();
-        line.put("menuName", menu.getName());
-        line.put("qty", 1L);
-        line.put("price", (long) menu.getPrice());
-        lines.add(line);
-        createOfferWithLines(requestId, sellerId, menu.getVendor(), menu.getEtaMinutes(),
+        List<OfferLine> lines = List.of(new OfferLine(menu.getName(), 1, menu.getPrice()));
+        createOfferWithLines(requestId, sellerId, menu.getName(), menu.getVendor(), menu.getEtaMinutes(),
                 menu.getRating(), lines, menu.getPrice(), buyerMessageId, "");
     }
 
     public void createOfferTyped(String requestId, String sellerId, String menuName, int price, String buyerMessageId) throws Exception {
-        List<Map<String, Object>> lines = new ArrayList<>();
-        Map<String, Object> line = new HashMap<>();
-        line.put("menuName", safe(menuName));
-        line.put("qty", 1L);
-        line.put("price", (long) price);
-        lines.add(line);
-        createOfferWithLines(requestId, sellerId, "", 0, 0.0, lines, price, buyerMessageId, "");
+        List<OfferLine> lines = List.of(new OfferLine(safe(menuName), 1, price));
+        createOfferWithLines(requestId, sellerId, menuName, "", 0, 0.0, lines, price, buyerMessageId, "");
     }
 
     public void createNewMenuAndSendOffer(String requestId, String sellerId,
@@ -362,6 +1266,7 @@ public class FirestoreService {
     }
 
     // ✅ NEW: stores grandTotal at completion
+    // the buyer summary (count, spend, last N orders) is updated in the same transaction
     public void completeRequestWithQuantity(String requestId, String offerId,
                                              String buyerName, String address,
                                              int grandTotal) throws Exception {
@@ -373,13 +1278,288 @@ public class FirestoreService {
         patch.put("buyerName", safe(buyerName));
         patch.put("address", safe(address));
         patch.put("grandTotal", grandTotal); // ✅ NEW
-        db.collection("requests").document(requestId).set(patch, SetOptions.merge()).get();
+
+        DocumentReference reqRef = db.collection("requests").document(requestId);
+
+        int[] txWrites = new int[1];
+        List<List<String>> spill = new ArrayList<>(List.of(List.of()));
+        db.runTransaction(tx -> {
+            DocumentSnapshot req = tx.get(reqRef).get();
+            String buyerId = safe(req.getString("buyerId"));
+            boolean alreadyCompleted = "COMPLETED".equalsIgnoreCase(safe(req.getString("status")));
+
+            DocumentReference sumRef = buyerId.isBlank() ? null : db.collection("buyerSummary").document(buyerId);
+            DocumentSnapshot sum = sumRef == null ? null : tx.get(sumRef).get();
+            DocumentSnapshot won = safe(offerId).isBlank() || alreadyCompleted
+                    ? null : tx.get(reqRef.collection("offers").document(safe(offerId))).get();
+            CostLedger.read(origin, "completeRequestWithQuantity", 1 + (sum == null ? 0 : 1) + (won == null ? 0 : 1));
+            Offer o = won != null && won.exists() ? OfferCodec.decode(won.getId(), won.getData(), won.getCreateTime()) : null;
+            DocumentReference statsRef = o == null || o.sellerId.isBlank() ? null : SellerStats.randomShard(db, o.sellerId);
+            DocumentSnapshot statsShard = statsRef == null ? null : tx.get(statsRef).get(); // reads before any write
+            if (statsShard != null) CostLedger.read(origin, "completeRequestWithQuantity", 1);
+
+            tx.set(reqRef, patch, SetOptions.merge());
+            tx.set(viewRef(requestId), ConversationView.status("COMPLETED", safe(offerId)), SetOptions.merge());
+            List<String> inbox = inboxSellerIds(req);
+            spill.set(0, inbox.size() > INBOX_IN_TX ? inbox : List.of());
+            if (inbox.size() <= INBOX_IN_TX) for (String sellerId : inbox) tx.delete(inboxRef(sellerId, requestId));
+            if (statsShard != null) {
+                tx.set(statsRef, SellerStats.offerWon(statsShard, OfferCodec.menuName(won.getData()),
+                        grandTotal > 0 ? grandTotal : o.grandTotal), SetOptions.merge());
+            }
+            txWrites[0] = tx.getMutationsSize();
+            if (sumRef == null || alreadyCompleted) return null;
+
+            Long n = req.getLong("buyerRequestNo");
+            HistoryEntry entry = new HistoryEntry(requestId, n == null ? 0L : n,
+                    safe(req.getString("buyerText")), grandTotal, (Timestamp) patch.get("completedAt"));
+
+            BuyerSummary prev = BuyerSummary.from(sum);
+            List<Map<String, Object>> recent = new ArrayList<>();
+            recent.add(entry.toMap());
+            for (HistoryEntry e : prev.recentOrders) {
+                if (recent.size() >= SUMMARY_RECENT_ORDERS) break;
+                if (!e.requestId.equals(requestId)) recent.add(e.toMap());
+            }
+
+            Map<String, Object> summary = new HashMap<>();
+            summary.put("buyerId", buyerId);
+            summary.put("orderCount", prev.orderCount + 1);
+            summary.put("totalSpend", prev.totalSpend + grandTotal);
+            summary.put("recentOrders", recent);
+            summary.put("complete", prev.complete);
+            summary.put("updatedAt", Timestamp.now());
+            tx.set(sumRef, summary);
+            txWrites[0] = tx.getMutationsSize();
+            return null;
+        }).get();
+        wrote("completeRequestWithQuantity", txWrites[0]);
+        commitAll("completeRequestWithQuantity.inbox", fanOutInbox(null, spill.get(0), requestId, null, false));
+    }
+
+    // ============================================================
+    // SELLER STATS (sharded counters)
+    // ============================================================
+
+    /**
+     * Offers sent/won, revenue and per-menu popularity of one seller, summed
+     * over the {@link SellerStats#SHARDS} counter shards. Served from memory
+     * for {@link #SELLER_STATS_TTL_MS}, so frequent refreshes cost one read
+     * of the shards per TTL at most.
+     */
+    public SellerStats.Stats getSellerStats(String sellerId) throws ExecutionException, InterruptedException {
+        String sid = safe(sellerId);
+        Map.Entry<Long, SellerStats.Stats> cached = sellerStatsCache.get(sid);
+        if (cached != null && System.currentTimeMillis() - cached.getKey() < SELLER_STATS_TTL_MS) {
+            return cached.getValue();
+        }
+        SellerStats.Stats stats = SellerStats.aggregate(sid, query("getSellerStats", SellerStats.shards(db, sid)).getDocuments());
+        sellerStatsCache.put(sid, Map.entry(System.currentTimeMillis(), stats));
+        return stats;
     }
 
     // ============================================================
     // MODEL
     // ============================================================
 
+    // one line in a multi-item offer
+    public static class OfferLine {
+        public final String name;
+        public final int qty, price;
+
+        public OfferLine(String name, int qty, int price) {
+            this.name = name == null ? "" : name;
+            this.qty = Math.max(qty, 1);
+            this.price = price;
+        }
+
+        public int total() { return qty * price; }
+    }
+
+    // offer lines of one menu choice + the ordered items it could not price (left out of the lines)
+    public static class PricedLines {
+        public final List<OfferLine> lines;
+        public final List<String> unpriced;
+
+        public PricedLines(List<OfferLine> lines, List<String> unpriced) {
+            this.lines = lines;
+            this.unpriced = unpriced;
+        }
+
+        public int total() { return lines.stream().mapToInt(OfferLine::total).sum(); }
+
+        public String signature() { return signature(lines); }
+
+        // same items, quantities and prices: the buyer could not tell two such offers apart
+        public static String signature(List<OfferLine> lines) {
+            StringBuilder sb = new StringBuilder();
+            for (OfferLine l : lines) sb.append(norm(l.name)).append('|').append(l.qty).append('|').append(l.price).append(';');
+            return sb.toString();
+        }
+    }
+
+    // offer with multiple lines + grand total + seller contact
+    public static class Offer {
+        public final String id, sellerId, vendor, buyerMessageId, sellerContact;
+        public final List<OfferLine> offerLines;
+        public final int grandTotal, etaMinutes;
+        public final double rating;
+        public final Timestamp createdAt;
+
+        public Offer(String id, String sellerId, String vendor, int etaMinutes, double rating,
+                     List<OfferLine> offerLines, int grandTotal, String buyerMessageId,
+                     String sellerContact, Timestamp createdAt) {
+            this.id = id == null ? "" : id;
+            this.sellerId = sellerId == null ? "" : sellerId;
+            this.vendor = vendor == null ? "" : vendor;
+            this.etaMinutes = etaMinutes;
+            this.rating = rating;
+            this.offerLines = offerLines == null ? new ArrayList<>() : offerLines;
+            this.grandTotal = grandTotal;
+            this.buyerMessageId = buyerMessageId == null ? "" : buyerMessageId;
+            this.sellerContact = sellerContact == null ? "" : sellerContact;
+            this.createdAt = createdAt;
+        }
+    }
+
+    // one chat message, from either a message document or a compacted chunk
+    public static class ChatMessage {
+        public final String id, senderType, senderId, text;
+        public final Timestamp createdAt;
+
+        public ChatMessage(String id, String senderType, String senderId, String text, Timestamp createdAt) {
+            this.id = id == null ? "" : id;
+            this.senderType = senderType == null ? "" : senderType;
+            this.senderId = senderId == null ? "" : senderId;
+            this.text = text == null ? "" : text;
+            this.createdAt = createdAt;
+        }
+
+        public static ChatMessage from(DocumentSnapshot d) {
+            return new ChatMessage(d.getId(), safe(d.getString("senderType")), safe(d.getString("senderId")),
+                    safe(d.getString("text")), d.getTimestamp("createdAt"));
+        }
+    }
+
+    // one row of a seller's personal inbox feed
+    public static class InboxEntry {
+        public final String requestId, preview;
+        public final long buyerRequestNo;
+        public final Timestamp updatedAt, createdAt;
+        public final int offerCount;
+
+        public InboxEntry(String requestId, String preview, long buyerRequestNo,
+                          Timestamp updatedAt, Timestamp createdAt, int offerCount) {
+            this.requestId = requestId == null ? "" : requestId;
+            this.preview = preview == null ? "" : preview;
+            this.buyerRequestNo = buyerRequestNo;
+            this.updatedAt = updatedAt;
+            this.createdAt = createdAt != null ? createdAt : updatedAt;
+            this.offerCount = Math.max(offerCount, 0);
+        }
+    }
+
+    // one completed order, as shown in the buyer's Order History
+    public static class HistoryEntry {
+        public final String requestId, preview;
+        public final long buyerRequestNo;
+        public final int grandTotal;
+        public final Timestamp completedAt;
+
+        public HistoryEntry(String requestId, long buyerRequestNo, String preview, int grandTotal, Timestamp completedAt) {
+            this.requestId = requestId == null ? "" : requestId;
+            this.buyerRequestNo = buyerRequestNo;
+            this.preview = preview == null ? "" : preview;
+            this.grandTotal = grandTotal;
+            this.completedAt = completedAt;
+        }
+
+        static HistoryEntry fromRequest(DocumentSnapshot d) {
+            Long n = d.getLong("buyerRequestNo");
+            Long total = d.getLong("grandTotal");
+            return new HistoryEntry(safe(d.getString("requestId")), n == null ? 0L : n,
+                    safe(d.getString("buyerText")), total == null ? 0 : total.intValue(),
+                    d.getTimestamp("completedAt"));
+        }
+
+        static HistoryEntry fromMap(Map<String, Object> m) {
+            Object n = m.get("buyerRequestNo");
+            Object total = m.get("grandTotal");
+            Object at = m.get("completedAt");
+            return new HistoryEntry((String) m.get("requestId"),
+                    n instanceof Number ? ((Number) n).longValue() : 0L,
+                    (String) m.get("preview"),
+                    total instanceof Number ? ((Number) total).intValue() : 0,
+                    at instanceof Timestamp ? (Timestamp) at : null);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new HashMap<>();
+            m.put("requestId", requestId);
+            m.put("buyerRequestNo", buyerRequestNo);
+            m.put("preview", preview);
+            m.put("grandTotal", grandTotal);
+            m.put("completedAt", completedAt);
+            return m;
+        }
+    }
+
+    /**
+     * buyerSummary/{buyerId}: running totals + the last SUMMARY_RECENT_ORDERS orders.
+     * complete = the totals include every order (built by BackfillTool, or kept
+     * up to date since); otherwise only orders completed since the summary was
+     * first written are counted and older ones must be paged from the requests.
+     */
+    public static class BuyerSummary {
+        public final long orderCount, totalSpend;
+        public final List<HistoryEntry> recentOrders;
+        public final boolean complete;
+
+        BuyerSummary(long orderCount, long totalSpend, List<HistoryEntry> recentOrders, boolean complete) {
+            this.orderCount = orderCount;
+            this.totalSpend = totalSpend;
+            this.recentOrders = recentOrders;
+            this.complete = complete;
+        }
+
+        // summary document of every given order, marked complete
+        static Map<String, Object> rebuild(String buyerId, Collection<HistoryEntry> orders) {
+            List<HistoryEntry> sorted = new ArrayList<>(orders);
+            sorted.sort(Comparator.comparing((HistoryEntry e) -> e.completedAt,
+                    Comparator.nullsLast(Comparator.reverseOrder())));
+            long spend = 0;
+            List<Map<String, Object>> recent = new ArrayList<>();
+            for (HistoryEntry e : sorted) {
+                spend += e.grandTotal;
+                if (recent.size() < SUMMARY_RECENT_ORDERS) recent.add(e.toMap());
+            }
+            Map<String, Object> summary = new HashMap<>();
+            summary.put("buyerId", buyerId);
+            summary.put("orderCount", (long) sorted.size());
+            summary.put("totalSpend", spend);
+            summary.put("recentOrders", recent);
+            summary.put("complete", true);
+            summary.put("updatedAt", Timestamp.now());
+            return summary;
+        }
+
+        @SuppressWarnings("unchecked")
+        static BuyerSummary from(DocumentSnapshot d) {
+            if (d == null || !d.exists()) return new BuyerSummary(0, 0, new ArrayList<>(), false);
+            Long count = d.getLong("orderCount");
+            Long spend = d.getLong("totalSpend");
+            List<HistoryEntry> recent = new ArrayList<>();
+            Object raw = d.get("recentOrders");
+            if (raw instanceof List) {
+                for (Object o : (List<Object>) raw) {
+                    if (o instanceof Map) recent.add(HistoryEntry.fromMap((Map<String, Object>) o));
+                }
+            }
+            return new BuyerSummary(count == null ? 0 : count, spend == null ? 0 : spend, recent,
+                    Boolean.TRUE.equals(d.getBoolean("complete")));
+        }
+    }
+
     public static class MenuItem {
         private final String name, sellerId, vendor;
         private final int price, etaMinutes;
@@ -408,4 +1588,54 @@ public class FirestoreService {
         }
         public String sellerOrDash() { return sellerId.isBlank() ? "-" : sellerId; }
     }
+
+    // one menu row from an import file; label says where it came from ("line 12")
+    public static class MenuDraft {
+        public final String label, name, category, vendor;
+        public final int price, etaMinutes;
+        public final double rating;
+        public final boolean available;
+
+        public MenuDraft(String label, String name, String category, int price,
+                         String vendor, int etaMinutes, double rating, boolean available) {
+            this.label = label == null ? "" : label;
+            this.name = name == null ? "" : name;
+            this.category = category == null ? "" : category;
+            this.price = price;
+            this.vendor = vendor == null ? "" : vendor;
+            this.etaMinutes = etaMinutes;
+            this.rating = rating;
+            this.available = available;
+        }
+    }
+
+    // outcome of a bulk write: progress while running, per-item errors once done
+    public static class BulkResult {
+        public final int total;
+        public final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger finished = new AtomicInteger();
+        private final BiConsumer<Integer, Integer> onProgress;
+
+        BulkResult(int total, BiConsumer<Integer, Integer> onProgress) {
+            this.total = total;
+            this.onProgress = onProgress;
+        }
+
+        void track(String label, ApiFuture<WriteResult> write) {
+            ApiFutures.addCallback(write, new ApiFutureCallback<>() {
+                @Override public void onSuccess(WriteResult r) { step(); }
+                @Override public void onFailure(Throwable t) {
+                    errors.add(label + ": " + t.getMessage());
+                    step();
+                }
+            }, Runnable::run);
+        }
+
+        private void step() {
+            int n = finished.incrementAndGet();
+            if (onProgress != null) onProgress.accept(n, total);
+        }
+
+        public int written() { return total - errors.size(); }
+    }
 }
\ No newline at end of file
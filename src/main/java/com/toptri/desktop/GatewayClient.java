@@ -0,0 +1,159 @@
+package com.toptri.desktop;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.cloud.firestore.ListenerRegistration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Client side of the backend subscription gateway (see {@link GatewayProtocol}).
+ *
+ * One WebSocket per desktop carries every subscription. If the connection
+ * drops it reconnects with a fixed back-off and re-sends the live
+ * subscriptions; the server answers each with the full current list, so
+ * callers just see another update. Each subscription is signed for the
+ * window's buyer or seller with the shared gateway secret.
+ */
+public class GatewayClient {
+
+    private static final long RECONNECT_MS = 2_000;
+
+    private record Sub(String topic, String key, String token, Consumer<JsonNode> onItems, Consumer<Exception> onError) {}
+
+    private final URI uri;
+    private final String secret;
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final Map<String, Sub> subs = new ConcurrentHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "toptri-gateway");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // frames are sent one after another: java.net.http.WebSocket allows one outstanding send
+    private CompletableFuture<WebSocket> sendChain;
+    private volatile boolean closed = false;
+
+    public GatewayClient(URI uri, String secret) {
+        this.uri = uri;
+        this.secret = secret;
+        sendChain = CompletableFuture.completedFuture(connect().join()); // fail fast when the gateway is unreachable at startup
+    }
+
+    // ============================================================
+    // SUBSCRIBE
+    // ============================================================
+
+    /** principal is who is asking, see {@link GatewayProtocol#buyer} / {@link GatewayProtocol#seller}. */
+    public ListenerRegistration subscribe(String topic, String key, String principal,
+                                          Consumer<JsonNode> onItems, Consumer<Exception> onError) {
+        String id = "s" + seq.incrementAndGet();
+        Sub sub = new Sub(topic, key, GatewayProtocol.token(secret, principal), onItems, onError);
+        subs.put(id, sub);
+        send(subFrame(id, sub));
+        return () -> {
+            if (subs.remove(id) != null) send(Map.of("op", "unsub", "id", id));
+        };
+    }
+
+    public void close() {
+        closed = true;
+        reconnector.shutdownNow();
+        synchronized (this) {
+            sendChain = sendChain.thenCompose(ws -> ws.sendClose(WebSocket.NORMAL_CLOSURE, "bye"));
+        }
+    }
+
+    private static Map<String, Object> subFrame(String id, Sub s) {
+        return Map.of("op", "sub", "id", id, "topic", s.topic(), "key", s.key(), "token", s.token());
+    }
+
+    private void send(Map<String, Object> frame) {
+        String text;
+        try {
+            text = GatewayProtocol.JSON.writeValueAsString(frame);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            // once a send fails the chain stays failed until the reconnect replaces it
+            // and re-sends every live sub, so frames lost in between do not matter
+            sendChain = sendChain.thenCompose(ws -> ws.sendText(text, true));
+        }
+    }
+
+    // ============================================================
+    // CONNECTION
+    // ============================================================
+
+    private CompletableFuture<WebSocket> connect() {
+        return http.newWebSocketBuilder().buildAsync(uri, new Listener());
+    }
+
+    private void scheduleReconnect() {
+        if (closed) return;
+        reconnector.schedule(() -> {
+            try {
+                WebSocket ws = connect().join();
+                synchronized (this) { sendChain = CompletableFuture.completedFuture(ws); }
+                for (Map.Entry<String, Sub> e : subs.entrySet()) {
+                    send(subFrame(e.getKey(), e.getValue()));
+                }
+                System.out.println("[gateway] reconnected, " + subs.size() + " subscriptions restored");
+            } catch (Exception ex) {
+                System.err.println("[gateway] reconnect failed: " + ex.getMessage());
+                scheduleReconnect();
+            }
+        }, RECONNECT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void onFrame(String text) {
+        try {
+            JsonNode frame = GatewayProtocol.JSON.readTree(text);
+            Sub sub = subs.get(frame.path("id").asText());
+            if (sub == null) return; // unsubscribed meanwhile
+            switch (frame.path("op").asText()) {
+                case "data" -> sub.onItems().accept(frame.path("items"));
+                case "error" -> sub.onError().accept(new IllegalStateException(frame.path("message").asText()));
+                default -> { }
+            }
+        } catch (Exception e) {
+            System.err.println("[gateway] bad frame: " + e.getMessage());
+        }
+    }
+
+    private class Listener implements WebSocket.Listener {
+        private final StringBuilder partial = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                String text = partial.toString();
+                partial.setLength(0);
+                onFrame(text);
+            }
+            ws.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+            scheduleReconnect();
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            System.err.println("[gateway] connection error: " + error.getMessage());
+            scheduleReconnect();
+        }
+    }
+}
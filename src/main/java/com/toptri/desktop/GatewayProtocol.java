@@ -0,0 +1,180 @@
+package com.toptri.desktop;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Wire format of the subscription gateway (backend /gateway WebSocket).
+ *
+ * One JSON object per text frame.
+ *   client -> server  {op: "sub", id, topic, key, token}  subscribe; id is chosen by the client
+ *                     {op: "unsub", id}
+ *   server -> client  {op: "data", id, items: [...]}  full current list of the topic
+ *                     {op: "error", id, message}
+ *
+ * Topics: "messages", "offers" and "conversationView" keyed by requestId,
+ * "inbox" keyed by sellerId. conversationView items hold the one view, or are
+ * empty while the conversation has none.
+ * Every sub carries a token naming who subscribes ("buyer:b1", "seller:Seller A")
+ * and signed with the secret shared by backend and desktops. The gateway only
+ * serves a seller their own inbox, and a conversation to its buyer and to the
+ * sellers it was fanned out to.
+ * Items are the FirestoreService models flattened to maps; timestamps travel
+ * as epoch microseconds.
+ */
+public final class GatewayProtocol {
+
+    public static final String TOPIC_MESSAGES = "messages";
+    public static final String TOPIC_OFFERS = "offers";
+    public static final String TOPIC_INBOX = "inbox";
+    public static final String TOPIC_VIEW = "conversationView";
+
+    public static final ObjectMapper JSON = new ObjectMapper();
+
+    private GatewayProtocol() {}
+
+    public static String topicKey(String topic, String key) {
+        return topic + "/" + key;
+    }
+
+    // ============================================================
+    // TOKENS
+    // ============================================================
+
+    public static String buyer(String buyerId) { return "buyer:" + buyerId; }
+    public static String seller(String sellerId) { return "seller:" + sellerId; }
+
+    /** principal + "." + HMAC-SHA256(secret, principal), base64url. */
+    public static String token(String secret, String principal) {
+        return principal + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac(secret, principal));
+    }
+
+    /** The principal a token was signed for, or null when it is malformed or the signature does not match. */
+    public static String verify(String secret, String token) {
+        if (secret == null || secret.isEmpty() || token == null) return null;
+        int dot = token.lastIndexOf('.');
+        if (dot <= 0) return null;
+        String principal = token.substring(0, dot);
+        byte[] sig;
+        try {
+            sig = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return MessageDigest.isEqual(sig, mac(secret, principal)) ? principal : null;
+    }
+
+    private static byte[] mac(String secret, String principal) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(principal.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ============================================================
+    // ENCODE (server)
+    // ============================================================
+
+    public static Map<String, Object> encode(FirestoreService.ChatMessage m) {
+        Map<String, Object> out = new HashMap<>();
+        out.put("id", m.id);
+        out.put("senderType", m.senderType);
+        out.put("senderId", m.senderId);
+        out.put("text", m.text);
+        out.put("createdAt", micros(m.createdAt));
+        return out;
+    }
+
+    public static Map<String, Object> encode(FirestoreService.Offer o) {
+        List<Map<String, Object>> lines = new ArrayList<>();
+        for (FirestoreService.OfferLine l : o.offerLines) {
+            lines.add(Map.of("name", l.name, "qty", l.qty, "price", l.price));
+        }
+        Map<String, Object> out = new HashMap<>();
+        out.put("id", o.id);
+        out.put("sellerId", o.sellerId);
+        out.put("vendor", o.vendor);
+        out.put("etaMinutes", o.etaMinutes);
+        out.put("rating", o.rating);
+        out.put("lines", lines);
+        out.put("grandTotal", o.grandTotal);
+        out.put("buyerMessageId", o.buyerMessageId);
+        out.put("sellerContact", o.sellerContact);
+        out.put("createdAt", micros(o.createdAt));
+        return out;
+    }
+
+    public static Map<String, Object> encode(FirestoreService.InboxEntry e) {
+        Map<String, Object> out = new HashMap<>();
+        out.put("requestId", e.requestId);
+        out.put("preview", e.preview);
+        out.put("buyerRequestNo", e.buyerRequestNo);
+        out.put("updatedAt", micros(e.updatedAt));
+        out.put("createdAt", micros(e.createdAt));
+        out.put("offerCount", e.offerCount);
+        return out;
+    }
+
+    public static Map<String, Object> encode(ConversationView.View v) {
+        Map<String, Object> out = new HashMap<>();
+        out.put("requestId", v.requestId);
+        out.put("status", v.status);
+        out.put("selectedOfferId", v.selectedOfferId);
+        out.put("messages", v.messages.stream().map(GatewayProtocol::encode).toList());
+        out.put("offers", v.offers.stream().map(GatewayProtocol::encode).toList());
+        out.put("hasEarlier", v.hasEarlier);
+        return out;
+    }
+
+    private static Long micros(Timestamp t) {
+        return t == null ? null : t.getSeconds() * 1_000_000L + t.getNanos() / 1_000;
+    }
+
+    // ============================================================
+    // DECODE (client)
+    // ============================================================
+
+    public static FirestoreService.ChatMessage decodeMessage(JsonNode n) {
+        return new FirestoreService.ChatMessage(n.path("id").asText(), n.path("senderType").asText(),
+                n.path("senderId").asText(), n.path("text").asText(), timestamp(n.get("createdAt")));
+    }
+
+    public static FirestoreService.Offer decodeOffer(JsonNode n) {
+        List<FirestoreService.OfferLine> lines = new ArrayList<>();
+        for (JsonNode l : n.path("lines")) {
+            lines.add(new FirestoreService.OfferLine(l.path("name").asText(), l.path("qty").asInt(), l.path("price").asInt()));
+        }
+        return new FirestoreService.Offer(n.path("id").asText(), n.path("sellerId").asText(), n.path("vendor").asText(),
+                n.path("etaMinutes").asInt(), n.path("rating").asDouble(), lines, n.path("grandTotal").asInt(),
+                n.path("buyerMessageId").asText(), n.path("sellerContact").asText(), timestamp(n.get("createdAt")));
+    }
+
+    public static FirestoreService.InboxEntry decodeInboxEntry(JsonNode n) {
+        return new FirestoreService.InboxEntry(n.path("requestId").asText(), n.path("preview").asText(),
+                n.path("buyerRequestNo").asLong(), timestamp(n.get("updatedAt")), timestamp(n.get("createdAt")),
+                n.path("offerCount").asInt());
+    }
+
+    public static ConversationView.View decodeView(JsonNode n) {
+        List<FirestoreService.ChatMessage> messages = new ArrayList<>();
+        for (JsonNode m : n.path("messages")) messages.add(decodeMessage(m));
+        List<FirestoreService.Offer> offers = new ArrayList<>();
+        for (JsonNode o : n.path("offers")) offers.add(decodeOffer(o));
+        return new ConversationView.View(n.path("requestId").asText(), n.path("status").asText(),
+                n.path("selectedOfferId").asText(null), messages, offers, n.path("hasEarlier").asBoolean());
+    }
+
+    private static Timestamp timestamp(JsonNode micros) {
+        return micros == null || micros.isNull() ? null : Timestamp.ofTimeMicroseconds(micros.asLong());
+    }
+}
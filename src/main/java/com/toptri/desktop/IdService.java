@@ -0,0 +1,115 @@
+package com.toptri.desktop;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Request / message ids and per-buyer request numbers.
+ *
+ * Ids are "prefix + millis + seq + node" in fixed-width base36, so they sort by
+ * creation time and never collide: each thread owns its generator (no locking)
+ * and its own node suffix.
+ *
+ * Buyer request numbers are reserved from Preferences in blocks of
+ * {@link #BUYER_NO_BLOCK}; only the first number of a block touches disk.
+ * Numbers left in a block when the app exits are skipped, never reused.
+ */
+public final class IdService {
+
+    static final int BUYER_NO_BLOCK = 20;
+
+    private static final Preferences PREFS = Preferences.userNodeForPackage(BuyerWindow.class);
+    private static final String LEGACY_COUNTER_KEY = "buyerRequestNoCounter";
+    private static final String BLOCK_KEY_PREFIX = "buyerNoBlock.";
+
+    // 20 random bits per process + 20 bits of thread ordinal = 8 base36 chars
+    private static final long PROCESS_NODE = new SecureRandom().nextInt(1 << 20);
+    private static final AtomicLong THREAD_ORDINAL = new AtomicLong();
+
+    private static final ThreadLocal<Generator> GENERATOR = ThreadLocal.withInitial(Generator::new);
+
+    private static final Map<String, BuyerSequence> SEQUENCES = new ConcurrentHashMap<>();
+
+    private IdService() {}
+
+    public static String requestId() { return GENERATOR.get().next("req_"); }
+
+    public static String messageId() { return GENERATOR.get().next("msg_"); }
+
+    /** Next request number for this buyer; shared by every BuyerWindow in the JVM. */
+    public static long nextBuyerRequestNo(String buyerId) {
+        return SEQUENCES.computeIfAbsent(buyerId == null ? "" : buyerId, BuyerSequence::new).next();
+    }
+
+    // ============================================================
+    // ID GENERATOR (one per thread)
+    // ============================================================
+
+    private static final class Generator {
+        private static final int SEQ_LIMIT = 36 * 36 * 36; // 3 base36 chars
+
+        private final String node;
+        private long lastMillis = -1;
+        private int seq = 0;
+
+        Generator() {
+            long ordinal = THREAD_ORDINAL.getAndIncrement() & ((1 << 20) - 1);
+            this.node = base36((PROCESS_NODE << 20) | ordinal, 8);
+        }
+
+        String next(String prefix) {
+            long now = System.currentTimeMillis();
+            if (now > lastMillis) {
+                lastMillis = now;
+                seq = 0;
+            } else if (++seq >= SEQ_LIMIT) {
+                // more ids than fit in one millisecond (or clock went back): borrow the next one
+                lastMillis++;
+                seq = 0;
+            }
+            return prefix + base36(lastMillis, 9) + base36(seq, 3) + node;
+        }
+    }
+
+    private static String base36(long v, int width) {
+        String s = Long.toString(v, 36);
+        if (s.length() >= width) return s;
+        return "0".repeat(width - s.length()) + s;
+    }
+
+    // ============================================================
+    // BUYER REQUEST NUMBERS (block allocated)
+    // ============================================================
+
+    private static final class BuyerSequence {
+        private final String key;
+        private long next = 1;
+        private long limit = 0; // last number reserved on disk
+
+        BuyerSequence(String buyerId) {
+            this.key = BLOCK_KEY_PREFIX + buyerId;
+        }
+
+        synchronized long next() {
+            if (next > limit) reserveBlock();
+            return next++;
+        }
+
+        private void reserveBlock() {
+            // older installs kept a plain "last used" counter
+            long reserved = Math.max(PREFS.getLong(key, 0L), PREFS.getLong(LEGACY_COUNTER_KEY, 0L));
+            next = reserved + 1;
+            limit = reserved + BUYER_NO_BLOCK;
+            PREFS.putLong(key, limit);
+            try {
+                PREFS.flush();
+            } catch (BackingStoreException ignored) {
+                // numbers are still unique in this JVM; the block is persisted on the next flush
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.toptri.desktop;
+
+import java.util.*;
+
+/**
+ * Orders a seller's inbox by service priority instead of recency, so requests
+ * that have waited longest without offers are not starved by new arrivals.
+ *
+ * Backed by a tree ordered by priority plus an index by requestId: an
+ * update or remove is O(log n), the top request O(1), and the full order
+ * (what the inbox list shows after every snapshot) is a walk of the tree
+ * instead of a sort. An entry whose preview, creation time and offer count
+ * did not change is not touched at all.
+ *
+ * priority = secondsWaiting + SIZE_BONUS_SECONDS * items - OFFER_PENALTY_SECONDS * offers
+ *
+ * Every entry's wait grows at the same rate, so the relative order only changes
+ * when an entry changes; the stored key drops the shared "now" term and never
+ * needs re-scoring on a timer.
+ */
+public class InboxScheduler {
+
+    static final long SIZE_BONUS_SECONDS = 30;     // per ordered item, capped at MAX_SIZE_ITEMS
+    static final long OFFER_PENALTY_SECONDS = 180; // per offer already received
+    static final int MAX_SIZE_ITEMS = 20;
+
+    private final TreeSet<Node> order = new TreeSet<>(InboxScheduler::compare);
+    private final Map<String, Node> index = new HashMap<>();
+
+    private static final class Node {
+        FirestoreService.InboxEntry entry;
+        long key;
+    }
+
+    public static long priorityKey(FirestoreService.InboxEntry e) {
+        long createdSec = e.createdAt == null ? 0 : e.createdAt.getSeconds();
+        int items = 0;
+        for (FirestoreService.OrderItem oi : FirestoreService.parseOrderItems(e.preview)) items += oi.qty;
+        items = Math.min(items, MAX_SIZE_ITEMS);
+        return -createdSec + SIZE_BONUS_SECONDS * items - OFFER_PENALTY_SECONDS * e.offerCount;
+    }
+
+    // ============================================================
+    // UPDATES
+    // ============================================================
+
+    public void update(FirestoreService.InboxEntry e) {
+        Node n = index.get(e.requestId);
+        if (n != null && sameKeyInputs(n.entry, e)) {
+            n.entry = e;
+            return;
+        }
+        if (n == null) {
+            n = new Node();
+            index.put(e.requestId, n);
+        } else {
+            order.remove(n); // before its key changes
+        }
+        n.entry = e;
+        n.key = priorityKey(e);
+        order.add(n);
+    }
+
+    public void remove(String requestId) {
+        Node n = index.remove(requestId);
+        if (n != null) order.remove(n);
+    }
+
+    private static boolean sameKeyInputs(FirestoreService.InboxEntry a, FirestoreService.InboxEntry b) {
+        return a.offerCount == b.offerCount && a.preview.equals(b.preview) && Objects.equals(a.createdAt, b.createdAt);
+    }
+
+    /** Replaces the scheduled set with a fresh inbox snapshot. */
+    public void sync(List<FirestoreService.InboxEntry> entries) {
+        Set<String> live = new HashSet<>();
+        for (FirestoreService.InboxEntry e : entries) {
+            live.add(e.requestId);
+            update(e);
+        }
+        for (String id : new ArrayList<>(index.keySet())) {
+            if (!live.contains(id)) remove(id);
+        }
+    }
+
+    // ============================================================
+    // READS
+    // ============================================================
+
+    public FirestoreService.InboxEntry peek() {
+        return order.isEmpty() ? null : order.first().entry;
+    }
+
+    public int size() { return order.size(); }
+
+    /** All entries, highest priority first (ties: newest request first). */
+    public List<FirestoreService.InboxEntry> ordered() {
+        List<FirestoreService.InboxEntry> out = new ArrayList<>(order.size());
+        for (Node n : order) out.add(n.entry);
+        return out;
+    }
+
+    // negative when a should be served before b; requestIds are unique, so never 0 for two entries
+    private static int compare(Node a, Node b) {
+        int c = Long.compare(b.key, a.key);
+        return c != 0 ? c : b.entry.requestId.compareTo(a.entry.requestId);
+    }
+}
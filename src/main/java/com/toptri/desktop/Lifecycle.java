@@ -0,0 +1,158 @@
+package com.toptri.desktop;
+
+import com.google.cloud.firestore.ListenerRegistration;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owner of a process's long-lived Firestore resources: snapshot listeners,
+ * background work (writes started from windows), executors and closeable
+ * clients. The desktop launcher and the backend's FirebaseHolder each own one.
+ *
+ * {@link #shutdown} stops in an order that loses nothing that was accepted:
+ *   1. remove every listener still registered (no new snapshots arrive)
+ *   2. let background tasks in flight finish, up to the deadline
+ *   3. drain managed executors with what is left of the deadline
+ *   4. close resources newest first (gateway, then Firebase app / gRPC channels)
+ *
+ * Background tasks share one pool of reused daemon threads, so opening and
+ * closing windows in a long-running kiosk does not grow the thread count.
+ */
+public final class Lifecycle {
+
+    public static final Duration DEFAULT_DRAIN = Duration.ofSeconds(10);
+
+    private final String name;
+    private final Set<ListenerRegistration> listeners = ConcurrentHashMap.newKeySet();
+    private final List<ExecutorService> executors = new CopyOnWriteArrayList<>();
+    private final Deque<AutoCloseable> resources = new ConcurrentLinkedDeque<>();
+    private final ExecutorService background;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public Lifecycle(String name) {
+        this.name = name;
+        AtomicInteger n = new AtomicInteger();
+        this.background = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "toptri-io-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean isClosed() { return closed; }
+
+    /** Background tasks queued or running. */
+    public int inFlight() { return inFlight.get(); }
+
+    public int listenerCount() { return listeners.size(); }
+
+    // ============================================================
+    // REGISTER
+    // ============================================================
+
+    /** Tracks reg until it is removed; the returned registration must be used to remove it. */
+    public ListenerRegistration track(ListenerRegistration reg) {
+        if (closed) {
+            reg.remove();
+            return reg;
+        }
+        ListenerRegistration[] self = new ListenerRegistration[1];
+        self[0] = () -> {
+            if (listeners.remove(self[0])) reg.remove();
+        };
+        listeners.add(self[0]);
+        return self[0];
+    }
+
+    /** Runs task on the shared background pool; dropped (and logged) once shutdown has begun. */
+    public void run(Runnable task) {
+        if (closed) {
+            System.err.println("[lifecycle] " + name + " shutting down, task dropped");
+            return;
+        }
+        inFlight.incrementAndGet();
+        try {
+            background.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            System.err.println("[lifecycle] " + name + " shutting down, task dropped");
+        }
+    }
+
+    /** Executor drained (shutdown + await) on shutdown. */
+    public <E extends ExecutorService> E manage(E executor) {
+        executors.add(executor);
+        return executor;
+    }
+
+    /** Closed on shutdown, after listeners and executors, newest first. */
+    public void onShutdown(AutoCloseable resource) {
+        resources.add(resource);
+    }
+
+    // ============================================================
+    // SHUTDOWN
+    // ============================================================
+
+    /** Returns false when the deadline cut off background work. Idempotent. */
+    public synchronized boolean shutdown(Duration deadline) {
+        if (closed) return true;
+        closed = true;
+        long end = System.nanoTime() + deadline.toNanos();
+
+        int streams = listeners.size();
+        for (ListenerRegistration r : new ArrayList<>(listeners)) {
+            try {
+                r.remove();
+            } catch (Exception e) {
+                System.err.println("[lifecycle] listener remove failed: " + e.getMessage());
+            }
+        }
+
+        int pending = inFlight.get();
+        boolean drained = drain(background, remaining(end));
+        for (ExecutorService e : executors) drained &= drain(e, remaining(end));
+
+        AutoCloseable c;
+        while ((c = resources.pollLast()) != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                System.err.println("[lifecycle] close failed: " + e.getMessage());
+            }
+        }
+
+        System.out.println("[lifecycle] " + name + " shut down: " + streams + " listeners removed, "
+                + pending + " background tasks " + (drained ? "drained" : "cut off after " + deadline.toMillis() + " ms"));
+        return drained;
+    }
+
+    /**
+     * Stops accepting tasks, lets running and queued ones finish within
+     * timeout, then interrupts what is left. Returns true if all finished.
+     */
+    public static boolean drain(ExecutorService executor, Duration timeout) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(Math.max(timeout.toMillis(), 0), TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    private static Duration remaining(long endNanos) {
+        return Duration.ofNanos(Math.max(endNanos - System.nanoTime(), 0));
+    }
+}
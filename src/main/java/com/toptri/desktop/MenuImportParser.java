@@ -0,0 +1,158 @@
+package com.toptri.desktop;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a seller's menu file for {@link FirestoreService#importMenus}.
+ *
+ * CSV: a header row naming the columns, in any order:
+ *   name,category,price[,vendor,etaMinutes,rating,available]
+ * JSON: an array of objects with the same keys.
+ *
+ * price is whole rupiah; "Rp" and "." thousands separators are allowed
+ * ("Rp12.500"), signs and decimals are not. available is true/yes/y/1 or
+ * false/no/n/0 (blank = available). Bad rows are reported by line/index and
+ * skipped; the rest still import.
+ */
+public final class MenuImportParser {
+
+    // optional "Rp", then digits with optional "." thousands groups: no sign, no decimals
+    private static final Pattern PRICE = Pattern.compile("(?i)(?:rp\\.?\\s*)?(\\d{1,3}(?:\\.\\d{3})+|\\d+)");
+    private static final Set<String> YES = Set.of("true", "yes", "y", "1");
+    private static final Set<String> NO = Set.of("false", "no", "n", "0");
+
+    public static class Parsed {
+        public final List<FirestoreService.MenuDraft> drafts = new ArrayList<>();
+        public final List<String> errors = new ArrayList<>();
+    }
+
+    private MenuImportParser() {}
+
+    public static Parsed parse(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        return name.endsWith(".json") ? parseJson(content) : parseCsv(content);
+    }
+
+    // ============================================================
+    // CSV
+    // ============================================================
+
+    public static Parsed parseCsv(String content) {
+        Parsed out = new Parsed();
+        String[] lines = content.replace("\uFEFF", "").split("\\r?\\n");
+        if (lines.length == 0 || lines[0].isBlank()) {
+            out.errors.add("empty file");
+            return out;
+        }
+
+        List<String> header = splitCsvLine(lines[0]);
+        Map<String, Integer> col = new HashMap<>();
+        for (int i = 0; i < header.size(); i++) col.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+        for (String required : List.of("name", "category", "price")) {
+            if (!col.containsKey(required)) out.errors.add("header: missing column '" + required + "'");
+        }
+        if (!out.errors.isEmpty()) return out;
+
+        for (int n = 1; n < lines.length; n++) {
+            if (lines[n].isBlank()) continue;
+            List<String> cells = splitCsvLine(lines[n]);
+            Map<String, String> row = new HashMap<>();
+            for (Map.Entry<String, Integer> e : col.entrySet()) {
+                row.put(e.getKey(), e.getValue() < cells.size() ? cells.get(e.getValue()).trim() : "");
+            }
+            addRow(out, "line " + (n + 1), row);
+        }
+        return out;
+    }
+
+    // comma separated, double quotes around cells that contain commas, "" for a quote
+    private static List<String> splitCsvLine(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') { cur.append('"'); i++; }
+                else if (c == '"') quoted = false;
+                else cur.append(c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        cells.add(cur.toString());
+        return cells;
+    }
+
+    // ============================================================
+    // JSON
+    // ============================================================
+
+    public static Parsed parseJson(String content) throws IOException {
+        Parsed out = new Parsed();
+        JsonNode root = new ObjectMapper().readTree(content);
+        if (root == null || !root.isArray()) {
+            out.errors.add("expected a JSON array of menus");
+            return out;
+        }
+        for (int i = 0; i < root.size(); i++) {
+            JsonNode item = root.get(i);
+            if (!item.isObject()) {
+                out.errors.add("item " + i + ": not an object");
+                continue;
+            }
+            Map<String, String> row = new HashMap<>();
+            item.fields().forEachRemaining(e -> row.put(e.getKey().toLowerCase(Locale.ROOT), e.getValue().asText("")));
+            addRow(out, "item " + i, row);
+        }
+        return out;
+    }
+
+    // ============================================================
+    // ROW
+    // ============================================================
+
+    private static void addRow(Parsed out, String label, Map<String, String> row) {
+        String name = row.getOrDefault("name", "").trim();
+        String category = row.getOrDefault("category", "").trim();
+        if (name.isBlank()) { out.errors.add(label + ": name is empty"); return; }
+        if (category.isBlank()) { out.errors.add(label + ": category is empty"); return; }
+
+        String price = row.getOrDefault("price", "").trim();
+        Matcher pm = PRICE.matcher(price);
+        if (!pm.matches()) { out.errors.add(label + ": bad price '" + price + "' (whole rupiah, e.g. 12500 or Rp12.500)"); return; }
+        String available = row.getOrDefault("available", "").trim().toLowerCase(Locale.ROOT);
+        if (!available.isEmpty() && !YES.contains(available) && !NO.contains(available)) {
+            out.errors.add(label + ": bad available '" + available + "' (yes/no, true/false, 1/0)");
+            return;
+        }
+
+        try {
+            String eta = row.getOrDefault("etaminutes", "").trim();
+            String rating = row.getOrDefault("rating", "").trim();
+            out.drafts.add(new FirestoreService.MenuDraft(label, name, category,
+                    Integer.parseInt(pm.group(1).replace(".", "")),
+                    row.getOrDefault("vendor", "").trim(),
+                    eta.isBlank() ? 0 : Integer.parseInt(eta),
+                    rating.isBlank() ? 0.0 : Double.parseDouble(rating),
+                    !NO.contains(available)));
+        } catch (NumberFormatException e) {
+            out.errors.add(label + ": bad number (" + e.getMessage() + ")");
+        }
+    }
+}
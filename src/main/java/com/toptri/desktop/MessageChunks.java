@@ -0,0 +1,75 @@
+package com.toptri.desktop;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+
+import java.util.*;
+
+/**
+ * Chunked message storage.
+ *
+ * Settled messages of a conversation are rolled up into
+ * requests/{id}/messageChunks/{chunkNo}, up to {@link #CHUNK_SIZE} messages per
+ * document, by the backend compaction job. Only the live tail stays in
+ * requests/{id}/messages, so opening a long conversation reads a handful of
+ * chunk documents plus the tail instead of one document per message.
+ *
+ * Chunk layout: {chunkNo, count, messages: [{i: id, s: "B"|"S", u: senderId, t: text, c: createdAt}]}
+ */
+public final class MessageChunks {
+
+    public static final int CHUNK_SIZE = 100;
+
+    // messages kept as individual documents in an OPEN conversation
+    public static final int LIVE_TAIL = 20;
+
+    public static final String COLLECTION = "messageChunks";
+
+    private MessageChunks() {}
+
+    public static String chunkId(long chunkNo) {
+        // zero-padded so document ids sort like chunk numbers
+        return String.format(Locale.ROOT, "%08d", chunkNo);
+    }
+
+    public static Map<String, Object> encode(long chunkNo, List<FirestoreService.ChatMessage> messages) {
+        List<Map<String, Object>> packed = new ArrayList<>(messages.size());
+        for (FirestoreService.ChatMessage m : messages) packed.add(encodeMessage(m));
+
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("chunkNo", chunkNo);
+        doc.put("count", messages.size());
+        doc.put("messages", packed);
+        return doc;
+    }
+
+    public static Map<String, Object> encodeMessage(FirestoreService.ChatMessage m) {
+        Map<String, Object> p = new HashMap<>();
+        p.put("i", m.id);
+        p.put("s", "SELLER".equalsIgnoreCase(m.senderType) ? "S" : "B");
+        p.put("u", m.senderId);
+        p.put("t", m.text);
+        p.put("c", m.createdAt);
+        return p;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<FirestoreService.ChatMessage> decode(DocumentSnapshot chunk) {
+        Object raw = chunk.get("messages");
+        if (!(raw instanceof List)) return new ArrayList<>();
+        List<FirestoreService.ChatMessage> out = new ArrayList<>();
+        for (Object o : (List<Object>) raw) {
+            if (o instanceof Map) out.add(decodeMessage((Map<String, Object>) o));
+        }
+        return out;
+    }
+
+    public static FirestoreService.ChatMessage decodeMessage(Map<String, Object> p) {
+        return new FirestoreService.ChatMessage(
+                (String) p.get("i"),
+                "S".equals(p.get("s")) ? "SELLER" : "BUYER",
+                (String) p.get("u"),
+                (String) p.get("t"),
+                (Timestamp) p.get("c"));
+    }
+}
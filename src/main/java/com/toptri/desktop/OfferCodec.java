@@ -0,0 +1,150 @@
+package com.toptri.desktop;
+
+import com.google.cloud.Timestamp;
+
+import java.util.*;
+
+/**
+ * Compact, versioned encoding of offer documents (requests/{id}/offers/{offerId}).
+ *
+ * v2 layout, one short key per field and the lines as three parallel arrays
+ * instead of a list of maps with long keys:
+ *
+ *   v  = 2                  s = sellerId         n = vendor
+ *   e  = etaMinutes         r = rating           t = grandTotal
+ *   m  = buyerMessageId     p = sellerContact    c = createdAt
+ *   k  = menuName (the menu the seller offered; part of the offer id)
+ *   ln = [line names]       lq = [line qty]      lp = [line unit price]
+ *
+ * {@link #decode} reads v2 and the legacy shapes (offerLines maps, or single
+ * menuName/price/quantity fields), and tolerates missing or mistyped fields,
+ * so listeners keep working on documents {@link OfferSchemaMigrator} has not
+ * rewritten yet, or on partial ones.
+ */
+public final class OfferCodec {
+
+    public static final long VERSION = 2;
+
+    // field names used in queries
+    public static final String F_VERSION = "v";
+    public static final String F_BUYER_MESSAGE_ID = "m";
+    public static final String F_CREATED_AT = "c";
+    public static final String F_MENU = "k";
+
+    // legacy fields replaced by the v2 ones; the migrator deletes exactly these
+    static final List<String> LEGACY_FIELDS = List.of("offerLines", "menuName", "price", "quantity", "sellerId",
+            "vendor", "etaMinutes", "rating", "grandTotal", "buyerMessageId", "sellerContact", "createdAt");
+
+    private OfferCodec() {}
+
+    public static Map<String, Object> encode(String sellerId, String menuName, String vendor, int etaMinutes, double rating,
+                                             List<FirestoreService.OfferLine> lines, int grandTotal,
+                                             String buyerMessageId, String sellerContact, Timestamp createdAt) {
+        List<String> names = new ArrayList<>(lines.size());
+        List<Long> qty = new ArrayList<>(lines.size());
+        List<Long> price = new ArrayList<>(lines.size());
+        for (FirestoreService.OfferLine l : lines) {
+            names.add(l.name);
+            qty.add((long) l.qty);
+            price.add((long) l.price);
+        }
+
+        Map<String, Object> doc = new HashMap<>();
+        doc.put(F_VERSION, VERSION);
+        doc.put("s", sellerId);
+        doc.put(F_MENU, menuName);
+        doc.put("n", vendor);
+        doc.put("e", (long) etaMinutes);
+        doc.put("r", rating);
+        doc.put("ln", names);
+        doc.put("lq", qty);
+        doc.put("lp", price);
+        doc.put("t", (long) grandTotal);
+        doc.put(F_BUYER_MESSAGE_ID, buyerMessageId);
+        doc.put("p", sellerContact);
+        doc.put(F_CREATED_AT, createdAt);
+        return doc;
+    }
+
+    public static FirestoreService.Offer decode(String offerId, Map<String, Object> d) {
+        return decode(offerId, d, null);
+    }
+
+    /** Either shape; fallbackCreatedAt (e.g. the document's create time) when the offer has no createdAt. */
+    public static FirestoreService.Offer decode(String offerId, Map<String, Object> d, Timestamp fallbackCreatedAt) {
+        if (!Long.valueOf(VERSION).equals(d.get(F_VERSION))) return decodeLegacy(offerId, d, fallbackCreatedAt);
+
+        List<?> names = list(d.get("ln"));
+        List<?> qty = list(d.get("lq"));
+        List<?> price = list(d.get("lp"));
+
+        List<FirestoreService.OfferLine> lines = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            lines.add(new FirestoreService.OfferLine(str(names.get(i)),
+                    i < qty.size() ? num(qty.get(i), 1) : 1, i < price.size() ? num(price.get(i), 0) : 0));
+        }
+
+        Object createdAt = d.get(F_CREATED_AT);
+        return new FirestoreService.Offer(offerId,
+                str(d.get("s")),
+                str(d.get("n")),
+                num(d.get("e"), 0),
+                d.get("r") instanceof Number ? ((Number) d.get("r")).doubleValue() : 0.0,
+                lines,
+                d.get("t") instanceof Number ? num(d.get("t"), 0) : total(lines),
+                str(d.get(F_BUYER_MESSAGE_ID)),
+                str(d.get("p")),
+                createdAt instanceof Timestamp ? (Timestamp) createdAt : fallbackCreatedAt);
+    }
+
+    /** The menu the offer was made for; legacy offers name it at the top or on their first line. */
+    public static String menuName(Map<String, Object> d) {
+        if (Long.valueOf(VERSION).equals(d.get(F_VERSION))) return str(d.get(F_MENU));
+        String top = str(d.get("menuName"));
+        if (!top.isEmpty()) return top;
+        List<?> lines = list(d.get("offerLines"));
+        return !lines.isEmpty() && lines.get(0) instanceof Map<?, ?> line ? str(line.get("menuName")) : "";
+    }
+
+    // the pre-v2 shapes: a list of offerLines maps, or one menuName/price/quantity
+    static FirestoreService.Offer decodeLegacy(String id, Map<String, Object> d, Timestamp fallbackCreatedAt) {
+        List<FirestoreService.OfferLine> lines = new ArrayList<>();
+        for (Object o : list(d.get("offerLines"))) {
+            if (!(o instanceof Map<?, ?> line)) continue;
+            lines.add(new FirestoreService.OfferLine(str(line.get("menuName")), num(line.get("qty"), 1), num(line.get("price"), 0)));
+        }
+        if (lines.isEmpty()) {
+            lines.add(new FirestoreService.OfferLine(str(d.get("menuName")), num(d.get("quantity"), 1), num(d.get("price"), 0)));
+        }
+
+        int total = num(d.get("grandTotal"), 0);
+        if (total <= 0) total = total(lines);
+
+        Object createdAt = d.get("createdAt");
+        return new FirestoreService.Offer(id,
+                str(d.get("sellerId")), str(d.get("vendor")),
+                num(d.get("etaMinutes"), 0),
+                d.get("rating") instanceof Number ? ((Number) d.get("rating")).doubleValue() : 0.0,
+                lines, total,
+                str(d.get("buyerMessageId")), str(d.get("sellerContact")),
+                createdAt instanceof Timestamp ? (Timestamp) createdAt : fallbackCreatedAt);
+    }
+
+    private static int total(List<FirestoreService.OfferLine> lines) {
+        int total = 0;
+        for (FirestoreService.OfferLine l : lines) total += l.total();
+        return total;
+    }
+
+    private static List<?> list(Object o) {
+        return o instanceof List ? (List<?>) o : Collections.emptyList();
+    }
+
+    private static int num(Object o, int def) {
+        return o instanceof Number ? ((Number) o).intValue() : def;
+    }
+
+    private static String str(Object o) {
+        return o instanceof String ? ((String) o).trim() : "";
+    }
+}
@@ -0,0 +1,170 @@
+package com.toptri.desktop;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Rewrites legacy offer documents (offerLines maps + duplicated menuName/price/quantity)
+ * into the compact v2 encoding of {@link OfferCodec}. Merged into the document:
+ * the legacy fields v2 replaces are deleted, any other field is kept.
+ *
+ * Streams every "offers" collection in document-id order, one page per batch,
+ * throttled to a maximum number of documents per second so it can run against
+ * the live database. Documents already at v2 are skipped, so it is safe to stop
+ * and re-run. Prints a before/after report of storage size and decode time.
+ *
+ * Usage: OfferSchemaMigrator [batchSize=200] [maxDocsPerSecond=100] [--dry-run]
+ */
+public class OfferSchemaMigrator {
+
+    private final Firestore db;
+    private final int batchSize;
+    private final int maxDocsPerSecond;
+    private final boolean dryRun;
+
+    public OfferSchemaMigrator(Firestore db, int batchSize, int maxDocsPerSecond, boolean dryRun) {
+        this.db = db;
+        this.batchSize = Math.min(Math.max(batchSize, 1), 500);
+        this.maxDocsPerSecond = Math.max(maxDocsPerSecond, 1);
+        this.dryRun = dryRun;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> a = new ArrayList<>(Arrays.asList(args));
+        boolean dryRun = a.remove("--dry-run");
+        int batch = a.size() > 0 ? Integer.parseInt(a.get(0)) : 200;
+        int rate = a.size() > 1 ? Integer.parseInt(a.get(1)) : 100;
+
+        Report report = new OfferSchemaMigrator(new FirestoreService().db(), batch, rate, dryRun).run();
+        System.out.println(report);
+    }
+
+    // ============================================================
+    // RUN
+    // ============================================================
+
+    public Report run() throws Exception {
+        Report report = new Report();
+        DocumentSnapshot cursor = null;
+
+        while (true) {
+            long pageStart = System.nanoTime();
+            Query q = db.collectionGroup("offers").orderBy(FieldPath.documentId()).limit(batchSize);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> page = q.get().get().getDocuments();
+            if (page.isEmpty()) break;
+
+            WriteBatch batch = db.batch();
+            int writes = 0;
+            for (QueryDocumentSnapshot d : page) {
+                Map<String, Object> data = d.getData();
+                if (Long.valueOf(OfferCodec.VERSION).equals(data.get(OfferCodec.F_VERSION))) {
+                    report.alreadyMigrated++;
+                    continue;
+                }
+
+                long t0 = System.nanoTime();
+                FirestoreService.Offer legacy = OfferCodec.decodeLegacy(d.getId(), data, d.getCreateTime());
+                report.legacyDecodeNanos += System.nanoTime() - t0;
+
+                Map<String, Object> v2 = OfferCodec.encode(legacy.sellerId, OfferCodec.menuName(data), legacy.vendor, legacy.etaMinutes,
+                        legacy.rating, legacy.offerLines, legacy.grandTotal, legacy.buyerMessageId,
+                        legacy.sellerContact, legacy.createdAt);
+
+                long t1 = System.nanoTime();
+                OfferCodec.decode(d.getId(), v2);
+                report.v2DecodeNanos += System.nanoTime() - t1;
+
+                // merge: fields the codec does not know survive, only the replaced legacy ones are deleted
+                Map<String, Object> patch = new HashMap<>(v2);
+                Map<String, Object> after = new HashMap<>(data);
+                for (String f : OfferCodec.LEGACY_FIELDS) {
+                    if (data.containsKey(f)) patch.put(f, FieldValue.delete());
+                    after.remove(f);
+                }
+                after.putAll(v2);
+
+                String path = d.getReference().getPath();
+                report.legacyBytes += documentSize(path, data);
+                report.v2Bytes += documentSize(path, after);
+
+                batch.set(d.getReference(), patch, SetOptions.merge());
+                writes++;
+            }
+
+            if (writes > 0 && !dryRun) batch.commit().get();
+            report.migrated += writes;
+            report.scanned += page.size();
+            cursor = page.get(page.size() - 1);
+            System.out.println("[migrate-offers] scanned " + report.scanned + ", migrated " + report.migrated);
+
+            // throttle: a page of N documents may not take less than N / maxDocsPerSecond seconds
+            long minNanos = page.size() * 1_000_000_000L / maxDocsPerSecond;
+            long sleepMs = (minNanos - (System.nanoTime() - pageStart)) / 1_000_000;
+            if (sleepMs > 0) Thread.sleep(sleepMs);
+
+            if (page.size() < batchSize) break;
+        }
+        return report;
+    }
+
+    // ============================================================
+    // STORAGE SIZE (Firestore billing rules)
+    // ============================================================
+
+    static long documentSize(String path, Map<String, Object> fields) {
+        long size = 16;
+        for (String segment : path.split("/")) size += utf8(segment) + 1;
+        return size + fieldsSize(fields) + 32;
+    }
+
+    private static long fieldsSize(Map<?, ?> fields) {
+        long size = 0;
+        for (Map.Entry<?, ?> e : fields.entrySet()) size += utf8(String.valueOf(e.getKey())) + 1 + valueSize(e.getValue());
+        return size;
+    }
+
+    private static long valueSize(Object v) {
+        if (v == null || v instanceof Boolean) return 1;
+        if (v instanceof String) return utf8((String) v) + 1;
+        if (v instanceof Number || v instanceof Timestamp) return 8;
+        if (v instanceof Map) return fieldsSize((Map<?, ?>) v);
+        if (v instanceof List) {
+            long size = 0;
+            for (Object o : (List<?>) v) size += valueSize(o);
+            return size;
+        }
+        return 8;
+    }
+
+    private static int utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // ============================================================
+    // REPORT
+    // ============================================================
+
+    public static class Report {
+        long scanned, migrated, alreadyMigrated;
+        long legacyBytes, v2Bytes;
+        long legacyDecodeNanos, v2DecodeNanos;
+
+        @Override
+        public String toString() {
+            if (migrated == 0) {
+                return "[migrate-offers] nothing to migrate (" + scanned + " scanned, " + alreadyMigrated + " already v2)";
+            }
+            return String.format(Locale.US,
+                    "[migrate-offers] %d scanned, %d migrated, %d already v2%n" +
+                    "  avg size    : %d B -> %d B (%.0f%% smaller)%n" +
+                    "  avg decode  : %.2f us -> %.2f us",
+                    scanned, migrated, alreadyMigrated,
+                    legacyBytes / migrated, v2Bytes / migrated, 100.0 * (legacyBytes - v2Bytes) / legacyBytes,
+                    legacyDecodeNanos / 1000.0 / migrated, v2DecodeNanos / 1000.0 / migrated);
+        }
+    }
+}
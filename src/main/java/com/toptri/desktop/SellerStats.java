@@ -0,0 +1,216 @@
+package com.toptri.desktop;
+
+import com.google.cloud.firestore.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sharded seller counters: sellerStats/{sellerId}/shards/{0..SHARDS-1}.
+ *
+ * Every offer and every completion bumps the seller's stats, so a single
+ * counter document would take one write per event and hit the ~1 write/s
+ * sustained limit of a document for busy sellers. Writers instead increment
+ * one random shard (FieldValue.increment) in the same transaction as the offer
+ * or completion; readers sum the shards.
+ *
+ * Shard layout:
+ *   {offersSent, offersWon, revenue,
+ *    menus: {normalised menu name: {name, offers, wins, revenue}},
+ *    ttfo: {bucket index: count}}
+ *
+ * Menus are keyed by the menu the seller offered (the offer's menuName), never
+ * by line names, which come from the buyer's text. A shard holds at most
+ * {@link #MAX_MENUS} of them; writers read the shard in their transaction and
+ * count any further menu under one "other" entry.
+ *
+ * ttfo is a histogram of time-to-first-offer (request created to its first
+ * offer) over the requests this seller answered first, bucketed by
+ * {@link #TTFO_BOUNDS_MS}. Every request's first offer lands in exactly one
+ * seller's histogram, so summing all sellers gives the system-wide figure.
+ */
+public final class SellerStats {
+
+    public static final String COLLECTION = "sellerStats";
+    public static final int SHARDS = 10;
+    // distinct menus per shard document; the rest share OTHER so the map cannot grow without bound
+    public static final int MAX_MENUS = 100;
+    static final String OTHER = "~other";
+
+    static final String F_OFFERS_SENT = "offersSent";
+    static final String F_OFFERS_WON = "offersWon";
+    static final String F_REVENUE = "revenue";
+    static final String F_MENUS = "menus";
+    static final String F_TTFO = "ttfo";
+
+    // upper bounds of the time-to-first-offer buckets; the last one catches everything slower
+    public static final long[] TTFO_BOUNDS_MS = {
+            1_000, 2_000, 5_000, 10_000, 20_000, 30_000, 60_000, 120_000, 300_000,
+            600_000, 1_200_000, 1_800_000, 3_600_000, Long.MAX_VALUE};
+
+    private SellerStats() {}
+
+    public static DocumentReference randomShard(Firestore db, String sellerId) {
+        return shards(db, sellerId).document(Integer.toString(ThreadLocalRandom.current().nextInt(SHARDS)));
+    }
+
+    static CollectionReference shards(Firestore db, String sellerId) {
+        return db.collection(COLLECTION).document(sellerId).collection("shards");
+    }
+
+    // ============================================================
+    // WRITE (merged with SetOptions.merge())
+    // ============================================================
+
+    /**
+     * One offer sent, counted for the menu it was made for (the offer's
+     * menuName, not its line names). timeToFirstOfferMs is set when it is the
+     * request's first offer, null otherwise.
+     */
+    public static Map<String, Object> offerSent(DocumentSnapshot shard, String menuName, Long timeToFirstOfferMs) {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put(F_OFFERS_SENT, FieldValue.increment(1));
+        Map<String, Object> m = menu(patch, shard, menuName);
+        if (m != null) m.put("offers", FieldValue.increment(1));
+        if (timeToFirstOfferMs != null) {
+            patch.put(F_TTFO, Map.of(Integer.toString(ttfoBucket(timeToFirstOfferMs)), FieldValue.increment(1)));
+        }
+        return patch;
+    }
+
+    static int ttfoBucket(long ms) {
+        int i = 0;
+        while (ms > TTFO_BOUNDS_MS[i]) i++;
+        return i;
+    }
+
+    /** One offer selected by the buyer: a win for its menu, revenue = the completed order's total. */
+    public static Map<String, Object> offerWon(DocumentSnapshot shard, String menuName, long revenue) {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put(F_OFFERS_WON, FieldValue.increment(1));
+        patch.put(F_REVENUE, FieldValue.increment(revenue));
+        Map<String, Object> m = menu(patch, shard, menuName);
+        if (m != null) {
+            m.put("wins", FieldValue.increment(1));
+            m.put(F_REVENUE, FieldValue.increment(revenue));
+        }
+        return patch;
+    }
+
+    // the menu's entry in patch; menus past MAX_MENUS per shard are counted under OTHER
+    private static Map<String, Object> menu(Map<String, Object> patch, DocumentSnapshot shard, String name) {
+        String key = name == null ? "" : name.trim().toLowerCase();
+        if (key.isEmpty()) return null;
+        Map<?, ?> existing = shard != null && shard.get(F_MENUS) instanceof Map<?, ?> mm ? mm : Map.of();
+        if (!existing.containsKey(key) && existing.size() >= MAX_MENUS) {
+            key = OTHER;
+            name = "Other menus";
+        }
+        Map<String, Object> m = new HashMap<>();
+        m.put("name", name.trim());
+        patch.put(F_MENUS, Map.of(key, m));
+        return m;
+    }
+
+    // ============================================================
+    // READ
+    // ============================================================
+
+    public static class MenuStat {
+        public final String name;
+        public final long offers, wins, revenue;
+
+        MenuStat(String name, long offers, long wins, long revenue) {
+            this.name = name;
+            this.offers = offers;
+            this.wins = wins;
+            this.revenue = revenue;
+        }
+    }
+
+    public static class Stats {
+        public final String sellerId;
+        public final long offersSent, offersWon, revenue;
+        public final List<MenuStat> menus; // most won first, then most offered
+        private final long[] ttfo;          // counts per TTFO_BOUNDS_MS bucket
+
+        Stats(String sellerId, long offersSent, long offersWon, long revenue, List<MenuStat> menus, long[] ttfo) {
+            this.sellerId = sellerId;
+            this.offersSent = offersSent;
+            this.offersWon = offersWon;
+            this.revenue = revenue;
+            this.menus = menus;
+            this.ttfo = ttfo;
+        }
+
+        public double winRate() { return offersSent == 0 ? 0.0 : (double) offersWon / offersSent; }
+
+        /** Requests this seller made the first offer on. */
+        public long firstOffers() { return Arrays.stream(ttfo).sum(); }
+
+        /**
+         * Upper bound of the bucket holding the p-th percentile (p in [0, 100])
+         * of time-to-first-offer; Long.MAX_VALUE past the last bound, -1 when
+         * this seller never made a first offer.
+         */
+        public long ttfoPercentileMs(double p) {
+            long n = firstOffers();
+            if (n == 0) return -1;
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+            long seen = 0;
+            for (int i = 0; i < ttfo.length; i++) {
+                seen += ttfo[i];
+                if (seen >= rank) return TTFO_BOUNDS_MS[i];
+            }
+            return TTFO_BOUNDS_MS[TTFO_BOUNDS_MS.length - 1];
+        }
+    }
+
+    /** Sums the shard documents of one seller. */
+    @SuppressWarnings("unchecked")
+    public static Stats aggregate(String sellerId, List<? extends DocumentSnapshot> shards) {
+        long sent = 0, won = 0, revenue = 0;
+        Map<String, long[]> menus = new HashMap<>();   // key -> {offers, wins, revenue}
+        Map<String, String> names = new HashMap<>();
+        long[] ttfo = new long[TTFO_BOUNDS_MS.length];
+
+        for (DocumentSnapshot d : shards) {
+            sent += longOf(d.get(F_OFFERS_SENT));
+            won += longOf(d.get(F_OFFERS_WON));
+            revenue += longOf(d.get(F_REVENUE));
+            if (d.get(F_TTFO) instanceof Map<?, ?> buckets) {
+                for (Map.Entry<?, ?> e : buckets.entrySet()) {
+                    try {
+                        int i = Integer.parseInt(String.valueOf(e.getKey()));
+                        if (i >= 0 && i < ttfo.length) ttfo[i] += longOf(e.getValue());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (!(d.get(F_MENUS) instanceof Map)) continue;
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) d.get(F_MENUS)).entrySet()) {
+                if (!(e.getValue() instanceof Map)) continue;
+                Map<String, Object> m = (Map<String, Object>) e.getValue();
+                long[] acc = menus.computeIfAbsent(e.getKey(), k -> new long[3]);
+                acc[0] += longOf(m.get("offers"));
+                acc[1] += longOf(m.get("wins"));
+                acc[2] += longOf(m.get(F_REVENUE));
+                if (m.get("name") instanceof String n) names.putIfAbsent(e.getKey(), n);
+            }
+        }
+
+        List<MenuStat> out = new ArrayList<>();
+        for (Map.Entry<String, long[]> e : menus.entrySet()) {
+            long[] a = e.getValue();
+            out.add(new MenuStat(names.getOrDefault(e.getKey(), e.getKey()), a[0], a[1], a[2]));
+        }
+        out.sort(Comparator.comparingLong((MenuStat m) -> m.wins).reversed()
+                .thenComparing(Comparator.comparingLong((MenuStat m) -> m.offers).reversed())
+                .thenComparing(m -> m.name));
+        return new Stats(sellerId, sent, won, revenue, out, ttfo);
+    }
+
+    private static long longOf(Object o) {
+        return o instanceof Number n ? n.longValue() : 0L;
+    }
+}
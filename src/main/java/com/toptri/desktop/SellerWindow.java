@@ -1,16 +1,17 @@
 package com.toptri.desktop;
 
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.ListenerRegistration;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+import java.io.File;
 import java.util.*;
 
 public class SellerWindow {
@@ -19,7 +20,9 @@ public class SellerWindow {
     private final String sellerId;
 
     private ListenerRegistration requestsListener;
-    private ListenerRegistration messagesListener;
+    private final ConversationPool conversations;
+    private List<FirestoreService.ChatMessage> shownMessages = null; // last message list rendered
+    private boolean buyerMessageShown = false; // latestBuyerMessageId is on screen with its menus
 
     private final Label status = new Label("Waiting...");
     private final ListView<RequestItem> requestList = new ListView<>();
@@ -30,7 +33,13 @@ public class SellerWindow {
     // ✅ NEW: quantity indicator label
     private final Label qtyDetectedLabel = new Label("");
 
-    private final ListView<FirestoreService.MenuItem> menuListView = new ListView<>();
+    // this seller's chat since the latest buyer message, plus local echo of messages in flight
+    private final VBox sellerChatBox = new VBox(4);
+    private List<FirestoreService.ChatMessage> sellerRepliesSinceBuyer = new ArrayList<>();
+    private final Map<String, PendingChat> pendingChats = new LinkedHashMap<>();
+
+    // one precomputed row per menu for the latest buyer message; cells only copy its strings
+    private final ListView<MenuRow> menuListView = new ListView<>();
 
     // action row inputs
     private final TextField mainInput = new TextField();
@@ -42,19 +51,40 @@ public class SellerWindow {
 
     private final Button sendBtn = UiKit.primaryButton("Send");
 
+    // catalog row: bulk import + availability by category
+    private final Button importMenusBtn = new Button("Import menus (CSV/JSON)…");
+    private final TextField categoryInput = new TextField();
+    private final Button markAvailableBtn = new Button("Mark available");
+    private final Button markUnavailableBtn = new Button("Mark unavailable");
+    private final ProgressBar catalogProgress = new ProgressBar(0);
+    private final Label catalogStatus = UiKit.small("");
+
     private volatile String selectedRequestId = null;
     private volatile String selectedBuyerText = "";
     private volatile String latestBuyerMessageId = null;
     private volatile List<FirestoreService.OrderItem> latestOrderItems = new ArrayList<>(); // ✅ NEW
+    // this seller's menu per ordered item (normalised name -> menu), resolved once per buyer message
+    private volatile Map<String, FirestoreService.MenuItem> latestResolvedMenus = new HashMap<>();
+
+    // offers on the selected request, from the listener; ids still in flight kept aside
+    private List<FirestoreService.Offer> requestOffers = new ArrayList<>();
+    private final Set<String> pendingOfferIds = new HashSet<>();
 
-    private final Set<String> offeredKeys = new HashSet<>();
-    private int sentCountForThisRequest = 0;
+    // requestIds of the previous inbox snapshot (null before the first), to tell new arrivals apart
+    private Set<String> knownRequestIds = null;
+    // re-highlighting the current request after the list is refreshed, not a new selection
+    private boolean restoringSelection = false;
 
-    private boolean autoFollowLatest = true;
-    private String lastAutoSelectedRequestId = null;
+    // inbox served by priority (wait time, offers, order size) instead of recency
+    private final InboxScheduler scheduler = new InboxScheduler();
+
+    // offers sent/won, revenue, top menus and time-to-first-offer from the sharded sellerStats counters
+    private final Label statsLabel = UiKit.small("Stats: loading…");
+    private boolean statsLoading = false;
 
     public SellerWindow(FirestoreService fs, String sellerId) {
-        this.fs = fs;
+        this.fs = fs.forOrigin("SellerWindow:" + sellerId, GatewayProtocol.seller(sellerId));
+        this.conversations = new ConversationPool(this.fs, Platform::runLater);
         this.sellerId = sellerId;
     }
 
@@ -72,7 +102,7 @@ public class SellerWindow {
         inboxBox.setPadding(new Insets(12));
 
         Label inboxTitle = new Label("Request Inbox");
-        inboxTitle.setStyle("-fx-font-weight: 800; -fx-font-size: 16;");
+        inboxTitle.getStyleClass().add("section-title");
 
         requestList.setPrefWidth(340);
         requestList.setCellFactory(lv -> new ListCell<>() {
@@ -82,21 +112,20 @@ public class SellerWindow {
                 if (empty || item == null) { setText(null); setGraphic(null); return; }
                 VBox v = new VBox(2);
                 String title = item.buyerRequestNo > 0 ? ("Buyer " + item.buyerRequestNo) : "Buyer";
-                Label t = new Label(title);
-                t.setStyle("-fx-font-weight: 800;");
+                Label t = UiKit.styled(new Label(title), "title");
                 Label s = UiKit.small(item.requestId);
-                Label p = UiKit.small(item.previewText);
-                p.setStyle(p.getStyle() + "; -fx-opacity: 0.60;");
+                Label p = UiKit.styled(UiKit.small(item.previewText), "muted");
                 v.getChildren().addAll(t, s, p);
                 setGraphic(v);
             }
         });
 
         requestList.getSelectionModel().selectedItemProperty().addListener((obs, oldV, newV) -> {
-            if (newV != null) onSelectRequest(newV);
+            if (newV != null && !restoringSelection) onSelectRequest(newV);
         });
 
-        inboxBox.getChildren().addAll(inboxTitle, requestList);
+        statsLabel.setWrapText(true);
+        inboxBox.getChildren().addAll(inboxTitle, requestList, statsLabel);
         Region inboxCard = UiKit.cardContainer(inboxBox);
 
         // RIGHT: Dashboard
@@ -111,7 +140,7 @@ public class SellerWindow {
         buyerMsgHolder.getChildren().setAll(UiKit.messagePill("-"));
 
         // ✅ NEW: qty detected label style
-        qtyDetectedLabel.setStyle("-fx-text-fill: #16A34A; -fx-font-weight: 800; -fx-font-size: 12;");
+        qtyDetectedLabel.getStyleClass().add("qty-detected");
 
         // action row
         mainInput.setPromptText("Chat / offer name (e.g. fruit tea)");
@@ -135,62 +164,25 @@ public class SellerWindow {
         HBox actionRow = new HBox(10, mainInput, priceInput, vendorInput, contactInput, sendBtn);
         actionRow.setAlignment(Pos.CENTER_LEFT);
 
+        categoryInput.setPromptText("Category (empty = all)");
+        categoryInput.setPrefWidth(170);
+        importMenusBtn.setOnAction(e -> onImportMenus(stage));
+        markAvailableBtn.setOnAction(e -> onSetAvailability(true));
+        markUnavailableBtn.setOnAction(e -> onSetAvailability(false));
+        catalogProgress.setPrefWidth(140);
+        catalogProgress.setVisible(false);
+
+        HBox catalogRow = new HBox(10, importMenusBtn, categoryInput, markAvailableBtn, markUnavailableBtn,
+                catalogProgress, catalogStatus);
+        catalogRow.setAlignment(Pos.CENTER_LEFT);
+
         // menus list
         menuListView.setPlaceholder(UiKit.small("Waiting menus..."));
         menuListView.setPrefHeight(320);
         VBox.setVgrow(menuListView, Priority.ALWAYS);
         menuListView.setFixedCellSize(82);
 
-        menuListView.setCellFactory(lv -> new ListCell<>() {
-            @Override
-            protected void updateItem(FirestoreService.MenuItem m, boolean empty) {
-                super.updateItem(m, empty);
-                if (empty || m == null) {
-                    setGraphic(null); setText(null);
-                    setDisable(false); setOpacity(1.0); setOnMouseClicked(null);
-                    return;
-                }
-
-                boolean alreadySent = isMenuAlreadyOfferedForLatest(m);
-
-                // ✅ NEW: show total per item based on detected qty
-                int totalQty = latestOrderItems.stream()
-                        .mapToInt(oi -> oi.qty)
-                        .sum();
-                if (totalQty < 1) totalQty = 1;
-
-                String priceStr = UiKit.rupiah(m.getPrice());
-                String totalStr = (totalQty > 1)
-                        ? "  ×" + totalQty + " = " + UiKit.rupiah(m.getPrice() * totalQty)
-                        : "";
-
-                String subtitle = priceStr + totalStr
-                        + " • " + m.vendorOrDash()
-                        + " • " + m.etaText()
-                        + " • " + m.ratingText();
-
-                String titleText = alreadySent ? (m.getName() + " (DIPILIH)") : m.getName();
-                VBox card = UiKit.menuCard(titleText, subtitle);
-                card.setMaxWidth(Double.MAX_VALUE);
-
-                if (alreadySent) {
-                    card.setOpacity(0.55);
-                    card.setDisable(true);
-                    card.setStyle(card.getStyle()
-                            + "; -fx-background-color: #F3F4F6;"
-                            + " -fx-border-color: rgba(0,0,0,0.10);");
-                }
-
-                setGraphic(card);
-                setText(null);
-                setOnMouseClicked(ev -> {
-                    if (alreadySent) return;
-                    if (getItem() == null) return;
-                    onSendOfferFromList(getItem());
-                    Platform.runLater(() -> menuListView.getSelectionModel().clearSelection());
-                });
-            }
-        });
+        menuListView.setCellFactory(lv -> new MenuCell());
 
         dash.getChildren().addAll(
                 title,
@@ -203,11 +195,15 @@ public class SellerWindow {
                 UiKit.small("Latest Buyer Message"),
                 buyerMsgHolder,
                 qtyDetectedLabel, // ✅ NEW
+                sellerChatBox,
                 UiKit.divider(),
                 UiKit.small("Quick Actions (auto mode)"),
                 UiKit.small("• Price empty = Chat  • Price filled = Offer  • Price+Vendor = Add Menu\n• Contact shown to buyer in offer card"),
                 actionRow,
                 UiKit.divider(),
+                UiKit.small("Catalog"),
+                catalogRow,
+                UiKit.divider(),
                 UiKit.small("Menus (click to send, max 3)"),
                 menuListView
         );
@@ -224,21 +220,153 @@ public class SellerWindow {
         UiKit.applyAppBackground(root);
 
         stage.setTitle("Toptri Chat - Seller (" + sellerId + ")");
-        stage.setScene(new Scene(root, 1220, 720));
+        Scene scene = new Scene(root, 1220, 720);
+        UiKit.applyTheme(scene);
+        stage.setScene(scene);
         stage.show();
-        stage.setOnCloseRequest(e -> cleanup());
+        stage.setOnHidden(e -> cleanup());
 
+        registerSellerAsync();
         attachRequestsListener();
     }
 
     // ============================================================
-    // REQUESTS LISTENER + AUTO FOLLOW
+    // CATALOG (bulk)
+    // ============================================================
+
+    private void onImportMenus(Stage owner) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import menus");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Menu file (CSV, JSON)", "*.csv", "*.json"));
+        File file = chooser.showOpenDialog(owner);
+        if (file == null) return;
+
+        runCatalogJob("Importing", () -> {
+            MenuImportParser.Parsed parsed = MenuImportParser.parse(file.toPath());
+            FirestoreService.BulkResult r = fs.importMenus(sellerId, parsed.drafts, this::onCatalogProgress);
+            List<String> errors = new ArrayList<>(parsed.errors);
+            errors.addAll(r.errors);
+            return catalogReport("Imported " + r.written() + " of " + (parsed.drafts.size() + parsed.errors.size())
+                    + " menus.", errors);
+        });
+    }
+
+    private void onSetAvailability(boolean available) {
+        String category = categoryInput.getText().trim();
+        runCatalogJob(available ? "Enabling" : "Disabling", () -> {
+            FirestoreService.BulkResult r = fs.setMenusAvailable(sellerId, category, available, this::onCatalogProgress);
+            return catalogReport((available ? "Available: " : "Unavailable: ") + r.written() + " of " + r.total
+                    + " menus" + (category.isBlank() ? "." : " in '" + category + "'."), r.errors);
+        });
+    }
+
+    private interface CatalogJob { String run() throws Exception; }
+
+    private void runCatalogJob(String verb, CatalogJob job) {
+        setCatalogBusy(true);
+        catalogProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        catalogStatus.setText(verb + "…");
+        fs.lifecycle().run(() -> {
+            try {
+                String report = job.run();
+                Platform.runLater(() -> {
+                    setCatalogBusy(false);
+                    catalogStatus.setText(report.lines().findFirst().orElse(""));
+                    info(report);
+                    if (!selectedBuyerText.isBlank()) loadMenusFromFirestore(selectedBuyerText);
+                });
+            } catch (Exception ex) {
+                Platform.runLater(() -> {
+                    setCatalogBusy(false);
+                    catalogStatus.setText("");
+                    info("Catalog update failed: " + ex.getMessage());
+                });
+            }
+        });
+    }
+
+    // called from BulkWriter threads
+    private void onCatalogProgress(int finished, int total) {
+        Platform.runLater(() -> {
+            catalogProgress.setProgress(total == 0 ? 1.0 : (double) finished / total);
+            catalogStatus.setText(finished + " / " + total);
+        });
+    }
+
+    private void setCatalogBusy(boolean busy) {
+        importMenusBtn.setDisable(busy);
+        markAvailableBtn.setDisable(busy);
+        markUnavailableBtn.setDisable(busy);
+        catalogProgress.setVisible(busy);
+    }
+
+    private static String catalogReport(String headline, List<String> errors) {
+        if (errors.isEmpty()) return headline;
+        StringBuilder sb = new StringBuilder(headline).append("\n\n").append(errors.size()).append(" failed:");
+        for (int i = 0; i < Math.min(errors.size(), 10); i++) sb.append("\n• ").append(errors.get(i));
+        if (errors.size() > 10) sb.append("\n… and ").append(errors.size() - 10).append(" more");
+        return sb.toString();
+    }
+
+    // so requests that match no menu still fan out to this seller
+    private void registerSellerAsync() {
+        fs.lifecycle().run(() -> {
+            try {
+                fs.registerSeller(sellerId);
+            } catch (Exception ex) {
+                Platform.runLater(() -> status.setText("Seller registration failed ❌"));
+            }
+        });
+    }
+
+    // inbox changes whenever this seller offers or a request completes; the reader is cached, so this stays cheap
+    private void refreshStatsAsync() {
+        if (statsLoading) return;
+        statsLoading = true;
+        fs.lifecycle().run(() -> {
+            try {
+                SellerStats.Stats st = fs.getSellerStats(sellerId);
+                Platform.runLater(() -> {
+                    statsLoading = false;
+                    statsLabel.setText(statsText(st));
+                });
+            } catch (Exception ex) {
+                Platform.runLater(() -> {
+                    statsLoading = false;
+                    statsLabel.setText("Stats unavailable");
+                });
+            }
+        });
+    }
+
+    private static String statsText(SellerStats.Stats st) {
+        StringBuilder sb = new StringBuilder()
+                .append("Offers ").append(st.offersSent)
+                .append(" • Won ").append(st.offersWon)
+                .append(String.format(Locale.ROOT, " (%.0f%%)", st.winRate() * 100))
+                .append(" • Revenue ").append(UiKit.rupiah((int) Math.min(st.revenue, Integer.MAX_VALUE)));
+        for (int i = 0; i < Math.min(3, st.menus.size()); i++) {
+            SellerStats.MenuStat m = st.menus.get(i);
+            sb.append(i == 0 ? "\nTop: " : ", ").append(m.name).append(" ").append(m.wins).append("/").append(m.offers);
+        }
+        // bucket upper bounds, over every request this seller answered first (all sessions)
+        if (st.firstOffers() > 0) {
+            sb.append("\nFirst offer p50 ").append(UiKit.upTo(st.ttfoPercentileMs(50)))
+                    .append(" • p99 ").append(UiKit.upTo(st.ttfoPercentileMs(99)))
+                    .append(" (n=").append(st.firstOffers()).append(")");
+        }
+        return sb.toString();
+    }
+
+    // ============================================================
+    // INBOX LISTENER + AUTO FOLLOW
     // ============================================================
 
     private void attachRequestsListener() {
         if (requestsListener != null) requestsListener.remove();
-        requestsListener = fs.listenOpenRequests(
-                snap -> Platform.runLater(() -> onRequestsUpdate(snap)),
+        requestsListener = fs.listenSellerInbox(
+                sellerId,
+                entries -> Platform.runLater(() -> onRequestsUpdate(entries)),
                 err -> Platform.runLater(() -> {
                     status.setText("Error ❌");
                     Alert a = new Alert(Alert.AlertType.ERROR);
@@ -250,38 +378,42 @@ public class SellerWindow {
         );
     }
 
-    private void onRequestsUpdate(QuerySnapshot snap) {
+    private void onRequestsUpdate(List<FirestoreService.InboxEntry> entries) {
+        scheduler.sync(entries);
         List<RequestItem> items = new ArrayList<>();
-        for (QueryDocumentSnapshot d : snap.getDocuments()) {
-            String requestId = safe(d.getString("requestId"));
-            String preview = safe(d.getString("latestBuyerText"));
-            if (preview.isBlank()) preview = safe(d.getString("buyerText"));
-            long buyerNo = 0L;
-            Long n = d.getLong("buyerRequestNo");
-            if (n != null) buyerNo = n;
-            if (!requestId.isBlank()) items.add(new RequestItem(requestId, preview, buyerNo));
+        for (FirestoreService.InboxEntry e : scheduler.ordered()) {
+            if (!e.requestId.isBlank()) items.add(new RequestItem(e.requestId, e.preview, e.buyerRequestNo));
         }
+        refreshStatsAsync();
 
+        Set<String> previous = knownRequestIds;
+        Set<String> ids = new HashSet<>();
+        for (RequestItem it : items) ids.add(it.requestId);
+        knownRequestIds = ids;
+
+        restoringSelection = true;
         requestList.getItems().setAll(items);
+        restoringSelection = false;
         status.setText(items.isEmpty() ? "Waiting..." : "New requests available ✅");
         if (items.isEmpty()) return;
 
-        RequestItem newest = items.get(0);
-        if (autoFollowLatest) {
-            if (selectedRequestId == null || selectedRequestId.isBlank()
-                    || !newest.requestId.equals(selectedRequestId)
-                    || lastAutoSelectedRequestId == null
-                    || !newest.requestId.equals(lastAutoSelectedRequestId)) {
-                lastAutoSelectedRequestId = newest.requestId;
-                requestList.getSelectionModel().select(0);
-                onSelectRequest(newest);
-            }
-        } else {
-            if (lastAutoSelectedRequestId == null || !newest.requestId.equals(lastAutoSelectedRequestId)) {
-                autoFollowLatest = true;
-                lastAutoSelectedRequestId = newest.requestId;
-                requestList.getSelectionModel().select(0);
-                onSelectRequest(newest);
+        // follow only a new arrival that went straight to the top, or move on when the selected
+        // request left the inbox; the order also shifts when this seller offers (the offer
+        // penalty), and that must not pull the selection away mid-work
+        RequestItem top = items.get(0); // highest priority
+        boolean selectionGone = selectedRequestId == null || selectedRequestId.isBlank()
+                || !ids.contains(selectedRequestId);
+        boolean topIsNew = previous != null && !previous.contains(top.requestId);
+        if (selectionGone || (topIsNew && !top.requestId.equals(selectedRequestId))) {
+            requestList.getSelectionModel().select(0);
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).requestId.equals(selectedRequestId)) {
+                restoringSelection = true;
+                requestList.getSelectionModel().select(i);
+                restoringSelection = false;
+                break;
             }
         }
     }
@@ -289,52 +421,81 @@ public class SellerWindow {
     private void onSelectRequest(RequestItem it) {
         selectedRequestId = it.requestId;
         reqIdValue.setText(it.requestId);
-        offeredKeys.clear();
-        sentCountForThisRequest = 0;
+        requestOffers = new ArrayList<>();
+        pendingOfferIds.clear();
+        sellerRepliesSinceBuyer = new ArrayList<>();
+        renderSellerChat();
         mainInput.clear(); priceInput.clear(); vendorInput.clear(); contactInput.clear();
         latestBuyerMessageId = null;
         selectedBuyerText = "";
         latestOrderItems = new ArrayList<>();
+        latestResolvedMenus = new HashMap<>();
         qtyDetectedLabel.setText("");
         buyerMsgHolder.getChildren().setAll(UiKit.messagePill("Loading latest message..."));
         status.setText("Listening messages...");
         menuListView.getItems().clear();
         menuListView.setPlaceholder(UiKit.small("Listening buyer messages..."));
-        attachMessagesListener(it.requestId);
+        shownMessages = null;
+        buyerMessageShown = false;
+        // renders at once when the request was viewed recently and is still warm
+        conversations.open(
+                it.requestId,
+                this::onConversationUpdate,
+                err -> {
+                    status.setText("Error ❌");
+                    info("Conversation listener error: " + (err.getMessage() == null ? "(no message)" : err.getMessage()));
+                }
+        );
     }
 
     // ============================================================
-    // MESSAGES LISTENER
+    // CONVERSATION LISTENER
     // ============================================================
 
-    private void attachMessagesListener(String requestId) {
-        if (messagesListener != null) messagesListener.remove();
-        messagesListener = fs.listenMessages(
-                requestId,
-                snap -> Platform.runLater(() -> onMessagesUpdateForSeller(snap)),
-                err -> Platform.runLater(() -> {
-                    status.setText("Error ❌");
-                    info("Messages listener error: " + (err.getMessage() == null ? "(no message)" : err.getMessage()));
-                })
-        );
+    private void onConversationUpdate(ConversationPool.Conversation c) {
+        if (!c.requestId.equals(selectedRequestId)) return;
+        requestOffers = c.offers;
+        for (FirestoreService.Offer o : c.offers) pendingOfferIds.remove(o.id);
+        refreshOfferedState();
+
+        // offer-only updates keep the same message list: nothing to re-render
+        if (c.messages != shownMessages) {
+            shownMessages = c.messages;
+            onMessagesUpdateForSeller(c.messages);
+        }
     }
 
-    private void onMessagesUpdateForSeller(QuerySnapshot snap) {
+    private void onMessagesUpdateForSeller(List<FirestoreService.ChatMessage> chat) {
         String latestText = "";
         String latestId = null;
+        Timestamp latestAt = null;
         List<FirestoreService.OrderItem> latestItems = new ArrayList<>();
-
-        for (QueryDocumentSnapshot d : snap.getDocuments()) {
-            String senderType = safe(d.getString("senderType"));
-            if ("BUYER".equalsIgnoreCase(senderType)) {
-                latestId = d.getId();
-                latestText = safe(d.getString("text"));
+        List<FirestoreService.ChatMessage> replies = new ArrayList<>();
+
+        for (FirestoreService.ChatMessage m : chat) {
+            pendingChats.remove(m.id); // server copy arrived
+            if ("BUYER".equalsIgnoreCase(m.senderType)) {
+                latestId = m.id;
+                latestAt = m.createdAt;
+                latestText = m.text;
                 // ✅ NEW: parse multi-item order from buyer message
                 latestItems = FirestoreService.parseOrderItems(latestText);
+                replies.clear();
+            } else if (sellerId.equals(m.senderId)) {
+                replies.add(m);
             }
         }
+        sellerRepliesSinceBuyer = replies;
+        renderSellerChat();
+
+        // replies, echoes and re-snapshots change the list too; only a new buyer message changes what to offer
+        if (buyerMessageShown && Objects.equals(latestId, latestBuyerMessageId)) return;
+        buyerMessageShown = true;
+        if (latestId != null) {
+            Tracing.received(Tracing.SELLER_RECEIVE, sellerId + "|" + latestId, latestId, latestAt,
+                    Map.of("toptri.requestId", selectedRequestId, "toptri.sellerId", sellerId));
+        }
 
-        boolean changed = !Objects.equals(latestBuyerMessageId, latestId);
         latestBuyerMessageId = latestId;
         selectedBuyerText = latestText;
         latestOrderItems = latestItems;
@@ -365,11 +526,6 @@ public class SellerWindow {
 
         buyerMsgHolder.getChildren().setAll(UiKit.messagePill(latestText));
 
-        if (changed) {
-            offeredKeys.clear();
-            sentCountForThisRequest = 0;
-        }
-
         status.setText("Loading menus...");
         menuListView.setPlaceholder(UiKit.small("Loading menus..."));
         loadMenusFromFirestore(latestText);
@@ -377,19 +533,28 @@ public class SellerWindow {
 
     private void loadMenusFromFirestore(String buyerText) {
         final String buyerTextFinal = buyerText;
-        new Thread(() -> {
+        final List<FirestoreService.OrderItem> items = latestOrderItems;
+        fs.lifecycle().run(() -> {
             try {
                 String category = fs.mapCategoryFromText(buyerTextFinal);
-                List<FirestoreService.MenuItem> menus = fs.getMenusByCategory(category);
+                List<FirestoreService.MenuItem> menus = new ArrayList<>(fs.getMenusByCategory(category));
+                // all items of a multi-item order in one round trip, for per-line prices
+                Map<String, FirestoreService.MenuItem> resolved = fs.resolveMenus(items, sellerId);
+                Set<String> listed = new HashSet<>();
+                for (FirestoreService.MenuItem m : menus) listed.add(m.getSellerId() + "|" + m.getName());
+                for (FirestoreService.MenuItem m : resolved.values()) {
+                    if (listed.add(m.getSellerId() + "|" + m.getName())) menus.add(m);
+                }
                 Platform.runLater(() -> {
+                    if (items != latestOrderItems) return; // a newer buyer message is loading
+                    latestResolvedMenus = resolved;
                     if (menus.isEmpty()) {
                         status.setText("No menus found ❌");
                         menuListView.getItems().clear();
                         menuListView.setPlaceholder(UiKit.small("No menus found for: " + category));
                         return;
                     }
-                    menuListView.getItems().setAll(menus);
-                    menuListView.refresh();
+                    menuListView.getItems().setAll(buildMenuRows(menus));
                     status.setText("Pick up to 3 menus to offer.");
                 });
             } catch (Exception ex) {
@@ -399,62 +564,109 @@ public class SellerWindow {
                     menuListView.setPlaceholder(UiKit.small("Failed to load menus: " + ex.getMessage()));
                 });
             }
-        }).start();
+        });
     }
 
     // ============================================================
     // OFFER FROM MENU LIST CLICK
     // ============================================================
 
-    private boolean isMenuAlreadyOfferedForLatest(FirestoreService.MenuItem menu) {
+    // strings and totals are fixed per buyer message, so they are formatted once here
+    private List<MenuRow> buildMenuRows(List<FirestoreService.MenuItem> menus) {
+        int totalQty = Math.max(1, latestOrderItems.stream().mapToInt(oi -> oi.qty).sum());
+        boolean multiItem = latestOrderItems.size() > 1;
+        Set<String> offered = offeredIdsForLatest();
+        List<MenuRow> rows = new ArrayList<>(menus.size());
+        for (FirestoreService.MenuItem m : menus) {
+            String offerId = latestBuyerMessageId == null ? "" : offerIdForLatest(m.getName());
+            FirestoreService.PricedLines priced = buildOfferLinesFromOrderItems(m.getName(), m.getPrice());
+            int total = priced.total();
+            String subtitle = UiKit.rupiah(m.getPrice())
+                    + (multiItem ? "  • order total " + UiKit.rupiah(total)
+                                 : totalQty > 1 ? "  ×" + totalQty + " = " + UiKit.rupiah(total) : "")
+                    + " • " + m.vendorOrDash()
+                    + " • " + m.etaText()
+                    + " • " + m.ratingText()
+                    + unpricedNote(priced);
+            rows.add(new MenuRow(m, offerId, subtitle, offered.contains(offerId)));
+        }
+        return rows;
+    }
+
+    // replaces only the rows whose offered state changed; the list updates just those cells
+    private void refreshOfferedState() {
+        Set<String> offered = offeredIdsForLatest();
+        List<MenuRow> rows = menuListView.getItems();
+        for (int i = 0; i < rows.size(); i++) {
+            MenuRow r = rows.get(i);
+            boolean now = offered.contains(r.offerId);
+            if (now != r.offered) rows.set(i, r.withOffered(now));
+        }
+    }
+
+    // offer ids are deterministic, so "already offered" is a lookup in the listener state
+    private String offerIdForLatest(String menuName) {
+        return FirestoreService.offerId(selectedRequestId, latestBuyerMessageId, sellerId, menuName);
+    }
+
+    private boolean isOfferedForLatest(String menuName) {
         if (selectedRequestId == null) return false;
         if (latestBuyerMessageId == null || latestBuyerMessageId.isBlank()) return false;
-        String key = (selectedRequestId + "::" + latestBuyerMessageId + "::menu::" + menu.getName())
-                .toLowerCase(Locale.ROOT);
-        return offeredKeys.contains(key);
+        return offeredIdsForLatest().contains(offerIdForLatest(menuName));
+    }
+
+    private Set<String> offeredIdsForLatest() {
+        Set<String> ids = new HashSet<>(pendingOfferIds);
+        for (FirestoreService.Offer o : requestOffers) ids.add(o.id);
+        return ids;
+    }
+
+    // this seller's offers for the latest buyer message, including ones in flight
+    private int sentCountForLatest() {
+        Set<String> ids = new HashSet<>(pendingOfferIds);
+        for (FirestoreService.Offer o : requestOffers) {
+            if (o.sellerId.equals(sellerId) && o.buyerMessageId.equals(latestBuyerMessageId)) ids.add(o.id);
+        }
+        return ids.size();
     }
 
     private void onSendOfferFromList(FirestoreService.MenuItem menu) {
         if (selectedRequestId == null) { info("Select a request first."); return; }
         if (latestBuyerMessageId == null || latestBuyerMessageId.isBlank()) { info("Wait buyer message."); return; }
-        if (sentCountForThisRequest >= 3) { info("Maximum 3 offers per request."); return; }
-
-        String key = (selectedRequestId + "::" + latestBuyerMessageId + "::menu::" + menu.getName())
-                .toLowerCase(Locale.ROOT);
-        if (offeredKeys.contains(key)) { info("Already offered for latest message."); return; }
+        if (sentCountForLatest() >= 3) { info("Maximum 3 offers per request."); return; }
+        if (isOfferedForLatest(menu.getName())) { info("Already offered for latest message."); return; }
 
-        offeredKeys.add(key);
-        menuListView.refresh();
+        String offerId = offerIdForLatest(menu.getName());
+        pendingOfferIds.add(offerId);
+        refreshOfferedState();
 
         // ✅ NEW: build offer lines from detected order items
-        List<Map<String, Object>> offerLines = buildOfferLinesFromOrderItems(menu.getName(), menu.getPrice());
-        int grandTotal = offerLines.stream()
-                .mapToInt(l -> ((Long) l.get("price")).intValue() * ((Long) l.get("qty")).intValue())
-                .sum();
+        FirestoreService.PricedLines priced = buildOfferLinesFromOrderItems(menu.getName(), menu.getPrice());
+        List<FirestoreService.OfferLine> offerLines = priced.lines;
+        int grandTotal = priced.total();
 
         final String reqIdFinal = selectedRequestId;
         final String msgIdFinal = latestBuyerMessageId;
         final String contactFinal = contactInput.getText().trim();
 
-        new Thread(() -> {
+        fs.lifecycle().run(() -> {
             try {
-                fs.createOfferWithLines(reqIdFinal, sellerId, menu.getVendor(),
+                boolean created = fs.createOfferWithLines(reqIdFinal, sellerId, menu.getName(), menu.getVendor(),
                         menu.getEtaMinutes(), menu.getRating(),
                         offerLines, grandTotal, msgIdFinal, contactFinal);
 
-                sentCountForThisRequest++;
-                Platform.runLater(() ->
-                        status.setText("Sent ✅ " + menu.getName() + " (" + sentCountForThisRequest + "/3)")
-                );
+                Platform.runLater(() -> status.setText(created
+                        ? "Sent ✅ " + menu.getName() + " (" + sentCountForLatest() + "/3)" + unpricedNote(priced)
+                        : "Already offered: " + menu.getName()));
             } catch (Exception ex) {
                 Platform.runLater(() -> {
-                    offeredKeys.remove(key);
-                    menuListView.refresh();
+                    pendingOfferIds.remove(offerId);
+                    refreshOfferedState();
                     status.setText("Error ❌");
                     info("Failed to send offer: " + ex.getMessage());
                 });
             }
-        }).start();
+        });
     }
 
     // ============================================================
@@ -480,7 +692,7 @@ public class SellerWindow {
             info("Wait buyer message before sending offer.");
             return;
         }
-        if (sentCountForThisRequest >= 3) { info("Maximum 3 offers per request."); return; }
+        if (sentCountForLatest() >= 3) { info("Maximum 3 offers per request."); return; }
 
         int price = parsePriceOr0(priceText);
 
@@ -491,52 +703,68 @@ public class SellerWindow {
         }
     }
 
+    // shown at once with a client id; the listener replaces it with the server copy
     private void sendChat(String text) {
-        disableActions(true);
-        final String reqIdFinal = selectedRequestId;
-        new Thread(() -> {
+        PendingChat p = new PendingChat(IdService.messageId(), selectedRequestId, text);
+        pendingChats.put(p.id, p);
+        mainInput.clear();
+        deliverChat(p);
+    }
+
+    private void deliverChat(PendingChat p) {
+        p.failed = false;
+        renderSellerChat();
+        fs.lifecycle().run(() -> {
             try {
-                fs.sendSellerMessage(reqIdFinal, sellerId, text);
-                Platform.runLater(() -> {
-                    status.setText("Chat sent ✅");
-                    mainInput.clear();
-                    disableActions(false);
-                });
+                fs.sendSellerMessage(p.requestId, sellerId, p.text, p.id);
+                Platform.runLater(() -> status.setText("Chat sent ✅"));
             } catch (Exception ex) {
                 Platform.runLater(() -> {
-                    status.setText("Error ❌");
-                    info("Failed to send chat: " + ex.getMessage());
-                    disableActions(false);
+                    p.failed = true;
+                    status.setText("Chat not sent ❌");
+                    renderSellerChat();
                 });
             }
-        }).start();
+        });
+    }
+
+    private void renderSellerChat() {
+        sellerChatBox.getChildren().clear();
+        for (FirestoreService.ChatMessage m : sellerRepliesSinceBuyer) {
+            sellerChatBox.getChildren().add(UiKit.small("You: " + m.text + "  ✓"));
+        }
+        for (PendingChat p : pendingChats.values()) {
+            if (!p.requestId.equals(selectedRequestId)) continue;
+            Label l = UiKit.styled(UiKit.small("You: " + p.text + (p.failed ? "  ⚠ not sent — click to retry" : "  🕓")),
+                    "chat-line");
+            l.pseudoClassStateChanged(p.failed ? UiKit.FAILED : UiKit.PENDING, true);
+            if (p.failed) l.setOnMouseClicked(e -> deliverChat(p));
+            sellerChatBox.getChildren().add(l);
+        }
     }
 
     private void sendTypedOffer(String menuName, int price, String contact) {
-        String key = (selectedRequestId + "::" + latestBuyerMessageId + "::typed::" + menuName)
-                .toLowerCase(Locale.ROOT);
-        if (offeredKeys.contains(key)) { info("Already offered this for latest message."); return; }
+        if (isOfferedForLatest(menuName)) { info("Already offered this for latest message."); return; }
 
         disableActions(true);
 
         // ✅ NEW: build offer lines from detected order items
-        List<Map<String, Object>> offerLines = buildOfferLinesFromOrderItems(menuName, price);
-        int grandTotal = offerLines.stream()
-                .mapToInt(l -> ((Long) l.get("price")).intValue() * ((Long) l.get("qty")).intValue())
-                .sum();
+        FirestoreService.PricedLines priced = buildOfferLinesFromOrderItems(menuName, price);
+        List<FirestoreService.OfferLine> offerLines = priced.lines;
+        int grandTotal = priced.total();
 
         final String reqIdFinal = selectedRequestId;
         final String msgIdFinal = latestBuyerMessageId;
 
-        new Thread(() -> {
+        fs.lifecycle().run(() -> {
             try {
-                fs.createOfferWithLines(reqIdFinal, sellerId, "", 0, 0.0,
+                boolean created = fs.createOfferWithLines(reqIdFinal, sellerId, menuName, "", 0, 0.0,
                         offerLines, grandTotal, msgIdFinal, contact);
 
-                offeredKeys.add(key);
-                sentCountForThisRequest++;
                 Platform.runLater(() -> {
-                    status.setText("Offer sent ✅ " + menuName + " (" + sentCountForThisRequest + "/3)");
+                    status.setText(created
+                            ? "Offer sent ✅ " + menuName + " (" + sentCountForLatest() + "/3)" + unpricedNote(priced)
+                            : "Already offered: " + menuName);
                     mainInput.clear(); priceInput.clear(); vendorInput.clear();
                     disableActions(false);
                 });
@@ -547,37 +775,34 @@ public class SellerWindow {
                     disableActions(false);
                 });
             }
-        }).start();
+        });
     }
 
     private void addMenuAndSend(String menuName, int price, String vendor, String contact) {
-        String key = (selectedRequestId + "::" + latestBuyerMessageId + "::newmenu::" + menuName)
-                .toLowerCase(Locale.ROOT);
-        if (offeredKeys.contains(key)) { info("Already added/sent this menu."); return; }
+        if (isOfferedForLatest(menuName)) { info("Already added/sent this menu."); return; }
 
         disableActions(true);
 
-        List<Map<String, Object>> offerLines = buildOfferLinesFromOrderItems(menuName, price);
-        int grandTotal = offerLines.stream()
-                .mapToInt(l -> ((Long) l.get("price")).intValue() * ((Long) l.get("qty")).intValue())
-                .sum();
+        FirestoreService.PricedLines priced = buildOfferLinesFromOrderItems(menuName, price);
+        List<FirestoreService.OfferLine> offerLines = priced.lines;
+        int grandTotal = priced.total();
 
         final String reqIdFinal = selectedRequestId;
         final String msgIdFinal = latestBuyerMessageId;
         final String buyerTextFinal = selectedBuyerText;
 
-        new Thread(() -> {
+        fs.lifecycle().run(() -> {
             try {
                 // create menu in Firestore
                 fs.createMenuEntry(buyerTextFinal, menuName, price, vendor, sellerId);
                 // send offer
-                fs.createOfferWithLines(reqIdFinal, sellerId, vendor, 0, 0.0,
+                boolean created = fs.createOfferWithLines(reqIdFinal, sellerId, menuName, vendor, 0, 0.0,
                         offerLines, grandTotal, msgIdFinal, contact);
 
-                offeredKeys.add(key);
-                sentCountForThisRequest++;
                 Platform.runLater(() -> {
-                    status.setText("Added & Sent ✅ " + menuName + " (" + sentCountForThisRequest + "/3)");
+                    status.setText(created
+                            ? "Added & Sent ✅ " + menuName + " (" + sentCountForLatest() + "/3)" + unpricedNote(priced)
+                            : "Already offered: " + menuName);
                     mainInput.clear(); priceInput.clear(); vendorInput.clear();
                     disableActions(false);
                     loadMenusFromFirestore(buyerTextFinal);
@@ -589,33 +814,17 @@ public class SellerWindow {
                     disableActions(false);
                 });
             }
-        }).start();
+        });
     }
 
     // ✅ NEW: build offerLines list from detected latestOrderItems
-    // If multi-item detected: creates one line per order item using the given unit price
-    // If single item: creates one line with qty=1
-    private List<Map<String, Object>> buildOfferLinesFromOrderItems(String menuName, int price) {
-        List<Map<String, Object>> lines = new ArrayList<>();
-
-        if (latestOrderItems != null && !latestOrderItems.isEmpty()) {
-            for (FirestoreService.OrderItem oi : latestOrderItems) {
-                Map<String, Object> line = new HashMap<>();
-                // use buyer's item name if available, else use seller's menu name
-                line.put("menuName", oi.name.isBlank() ? menuName : oi.name);
-                line.put("qty", (long) oi.qty);
-                line.put("price", (long) price);
-                lines.add(line);
-            }
-        } else {
-            Map<String, Object> line = new HashMap<>();
-            line.put("menuName", menuName);
-            line.put("qty", 1L);
-            line.put("price", (long) price);
-            lines.add(line);
-        }
+    // the chosen menu's item at its price, the others at this seller's menu for them; items without one are left out
+    private FirestoreService.PricedLines buildOfferLinesFromOrderItems(String menuName, int price) {
+        return FirestoreService.priceOrderItems(latestOrderItems, latestResolvedMenus, menuName, price);
+    }
 
-        return lines;
+    private static String unpricedNote(FirestoreService.PricedLines priced) {
+        return priced.unpriced.isEmpty() ? "" : " • no menu for: " + String.join(", ", priced.unpriced);
     }
 
     // ============================================================
@@ -652,11 +861,78 @@ public class SellerWindow {
 
     private void cleanup() {
         if (requestsListener != null) requestsListener.remove();
-        if (messagesListener != null) messagesListener.remove();
+        conversations.close();
     }
 
     private String safe(String s) { return s == null ? "" : s; }
 
+    private static class PendingChat {
+        final String id, requestId, text;
+        boolean failed = false;
+        PendingChat(String id, String requestId, String text) {
+            this.id = id;
+            this.requestId = requestId;
+            this.text = text;
+        }
+    }
+
+    // immutable view model of one menu card
+    private static final class MenuRow {
+        final FirestoreService.MenuItem menu;
+        final String offerId, title, offeredTitle, subtitle;
+        final boolean offered;
+
+        MenuRow(FirestoreService.MenuItem menu, String offerId, String subtitle, boolean offered) {
+            this(menu, offerId, menu.getName(), menu.getName() + " (DIPILIH)", subtitle, offered);
+        }
+
+        private MenuRow(FirestoreService.MenuItem menu, String offerId, String title, String offeredTitle,
+                        String subtitle, boolean offered) {
+            this.menu = menu;
+            this.offerId = offerId;
+            this.title = title;
+            this.offeredTitle = offeredTitle;
+            this.subtitle = subtitle;
+            this.offered = offered;
+        }
+
+        MenuRow withOffered(boolean offered) {
+            return new MenuRow(menu, offerId, title, offeredTitle, subtitle, offered);
+        }
+    }
+
+    // builds its card once and only swaps text and the :offered state on reuse
+    private class MenuCell extends ListCell<MenuRow> {
+        private final VBox card = UiKit.menuCard("", "");
+        private final Label titleLabel = (Label) card.getChildren().get(0);
+        private final Label subtitleLabel = (Label) card.getChildren().get(1);
+
+        MenuCell() {
+            card.setMaxWidth(Double.MAX_VALUE);
+            setText(null);
+            setOnMouseClicked(ev -> {
+                MenuRow r = getItem();
+                if (r == null || r.offered) return;
+                onSendOfferFromList(r.menu);
+                Platform.runLater(() -> menuListView.getSelectionModel().clearSelection());
+            });
+        }
+
+        @Override
+        protected void updateItem(MenuRow r, boolean empty) {
+            super.updateItem(r, empty);
+            if (empty || r == null) {
+                setGraphic(null);
+                return;
+            }
+            titleLabel.setText(r.offered ? r.offeredTitle : r.title);
+            subtitleLabel.setText(r.subtitle);
+            card.pseudoClassStateChanged(UiKit.OFFERED, r.offered);
+            card.setDisable(r.offered);
+            if (getGraphic() != card) setGraphic(card);
+        }
+    }
+
     private static class RequestItem {
         final String requestId, previewText;
         final long buyerRequestNo;
@@ -0,0 +1,119 @@
+package com.toptri.desktop;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.*;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operations for the sharded time index (see {@link TimeShards}).
+ *
+ *   TimeShardTool backfill
+ *       adds timeShard to requests created before sharding
+ *
+ *   TimeShardTool load [seconds=60] [shardCounts=1,8] [inFlight=500]
+ *       write load test: for each shard count, writes request-shaped documents
+ *       (status NEW, timeShard, createdAt = now) into the scratch collection
+ *       loadtestRequests as fast as Firestore accepts them and prints the
+ *       sustained writes/second. shardCounts=1 is the unsharded baseline that
+ *       runs into the sequential-index ceiling; the same composite index
+ *       (status, timeShard, createdAt) as on requests must exist on
+ *       loadtestRequests, with single-field createdAt indexing exempted.
+ */
+public class TimeShardTool {
+
+    static final String SCRATCH = "loadtestRequests";
+
+    private static final long WINDOW_MS = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "";
+        Firestore db = new FirestoreService().db();
+
+        switch (mode) {
+            case "backfill" -> System.out.println("[time-shards] backfilled " + TimeShards.backfill(db) + " requests");
+            case "load" -> {
+                int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+                String shardCounts = args.length > 2 ? args[2] : "1," + TimeShards.SHARDS;
+                int inFlight = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+                List<String> report = new ArrayList<>();
+                for (String n : shardCounts.split(",")) {
+                    report.add(runLoad(db, Integer.parseInt(n.trim()), seconds, inFlight));
+                }
+                System.out.println();
+                report.forEach(System.out::println);
+            }
+            default -> System.out.println("usage: TimeShardTool backfill | load [seconds] [shardCounts] [inFlight]");
+        }
+    }
+
+    // ============================================================
+    // LOAD TEST
+    // ============================================================
+
+    static String runLoad(Firestore db, int shards, int seconds, int inFlight) throws Exception {
+        BulkWriter writer = db.bulkWriter(BulkWriterOptions.builder().setThrottlingEnabled(false).build());
+        writer.addWriteErrorListener(e -> false); // count contention instead of hiding it behind retries
+
+        Semaphore slots = new Semaphore(inFlight);
+        AtomicLong ok = new AtomicLong(), failed = new AtomicLong();
+        List<Long> windowRates = new ArrayList<>();
+        List<DocumentReference> written = Collections.synchronizedList(new ArrayList<>());
+        String run = Long.toString(System.currentTimeMillis(), 36);
+
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long windowStart = start, windowOk = 0, seq = 0;
+
+        while (System.currentTimeMillis() < end) {
+            slots.acquire();
+            String id = run + "_" + (seq++);
+            DocumentReference ref = db.collection(SCRATCH).document(id);
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("status", "NEW");
+            doc.put(TimeShards.FIELD, Math.floorMod(id.hashCode(), shards));
+            doc.put("createdAt", Timestamp.now());
+
+            ApiFuture<WriteResult> f = writer.set(ref, doc);
+            ApiFutures.addCallback(f, new ApiFutureCallback<>() {
+                @Override public void onSuccess(WriteResult r) { ok.incrementAndGet(); written.add(ref); slots.release(); }
+                @Override public void onFailure(Throwable t) { failed.incrementAndGet(); slots.release(); }
+            }, Runnable::run);
+
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= WINDOW_MS) {
+                long done = ok.get();
+                long rate = (done - windowOk) * 1000 / (now - windowStart);
+                windowRates.add(rate);
+                System.out.println("[load shards=" + shards + "] " + rate + " writes/s, " + failed.get() + " failed");
+                windowStart = now;
+                windowOk = done;
+            }
+        }
+        writer.close();
+
+        // first window is the ramp-up; report the median of the rest
+        List<Long> steady = new ArrayList<>(windowRates.size() > 1 ? windowRates.subList(1, windowRates.size()) : windowRates);
+        Collections.sort(steady);
+        long median = steady.isEmpty() ? 0 : steady.get(steady.size() / 2);
+        long peak = steady.isEmpty() ? 0 : steady.get(steady.size() - 1);
+
+        cleanup(db, written);
+        return String.format(Locale.US, "shards=%-3d sustained %6d writes/s (peak %d), %d ok, %d failed",
+                shards, median, peak, ok.get(), failed.get());
+    }
+
+    private static void cleanup(Firestore db, List<DocumentReference> refs) throws Exception {
+        BulkWriter writer = db.bulkWriter();
+        synchronized (refs) {
+            for (DocumentReference r : refs) writer.delete(r);
+        }
+        writer.close();
+    }
+}
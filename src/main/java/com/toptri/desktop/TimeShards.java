@@ -0,0 +1,114 @@
+package com.toptri.desktop;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sharded time index for requests.
+ *
+ * Every request carries timeShard = hash(requestId) % {@link #SHARDS}, and the
+ * composite index behind the claim query leads with it
+ * (status, timeShard, createdAt). Index writes for "now" then land in SHARDS
+ * separate key ranges instead of one ever-growing tail, which is what caps the
+ * write rate of a monotonically increasing field.
+ *
+ * Readers run the query once per shard and k-way merge the sorted results.
+ */
+public final class TimeShards {
+
+    public static final int SHARDS = 8;
+    public static final String FIELD = "timeShard";
+
+    private TimeShards() {}
+
+    public static int shardOf(String requestId) {
+        // String.hashCode is specified, so every node and tool agrees on the shard
+        return Math.floorMod(requestId == null ? 0 : requestId.hashCode(), SHARDS);
+    }
+
+    /** Newest/oldest first by the timestamp field, document id as tie-break. */
+    public static Comparator<DocumentSnapshot> order(String field, Query.Direction direction) {
+        Comparator<DocumentSnapshot> byTime = Comparator.comparing(
+                (DocumentSnapshot d) -> d.getTimestamp(field), Comparator.nullsLast(Comparator.naturalOrder()));
+        if (direction == Query.Direction.DESCENDING) byTime = byTime.reversed();
+        return byTime.thenComparing(DocumentSnapshot::getId);
+    }
+
+    /** Merges lists that are each sorted by cmp into one sorted list of at most limit items. */
+    public static <T> List<T> merge(List<List<T>> sorted, Comparator<? super T> cmp, int limit) {
+        // heap of (list, position) keyed by the list's current head
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(sorted.size(), 1),
+                (a, b) -> cmp.compare(sorted.get(a[0]).get(a[1]), sorted.get(b[0]).get(b[1])));
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) heads.add(new int[]{i, 0});
+        }
+
+        List<T> out = new ArrayList<>();
+        while (!heads.isEmpty() && out.size() < limit) {
+            int[] h = heads.poll();
+            List<T> list = sorted.get(h[0]);
+            out.add(list.get(h[1]));
+            if (h[1] + 1 < list.size()) heads.add(new int[]{h[0], h[1] + 1});
+        }
+        return out;
+    }
+
+    private static Query forShard(Query base, int shard, String field, Query.Direction direction) {
+        return base.whereEqualTo(FIELD, shard).orderBy(field, direction);
+    }
+
+    // ============================================================
+    // READ
+    // ============================================================
+
+    /** One-shot read: the first limit documents of base ordered by field, across all shards. */
+    public static List<QueryDocumentSnapshot> get(Query base, String field, Query.Direction direction, int limit)
+            throws ExecutionException, InterruptedException {
+        List<ApiFuture<QuerySnapshot>> pending = new ArrayList<>(SHARDS);
+        for (int s = 0; s < SHARDS; s++) pending.add(forShard(base, s, field, direction).limit(limit).get());
+
+        List<List<QueryDocumentSnapshot>> perShard = new ArrayList<>(SHARDS);
+        for (ApiFuture<QuerySnapshot> f : pending) perShard.add(f.get().getDocuments());
+        return merge(perShard, order(field, direction), limit);
+    }
+
+    /** Same as {@link #get} inside a transaction. */
+    public static List<QueryDocumentSnapshot> get(Transaction tx, Query base, String field,
+                                                  Query.Direction direction, int limit)
+            throws ExecutionException, InterruptedException {
+        List<List<QueryDocumentSnapshot>> perShard = new ArrayList<>(SHARDS);
+        for (int s = 0; s < SHARDS; s++) {
+            perShard.add(tx.get(forShard(base, s, field, direction).limit(limit)).get().getDocuments());
+        }
+        return merge(perShard, order(field, direction), limit);
+    }
+
+    // ============================================================
+    // BACKFILL
+    // ============================================================
+
+    /** Adds timeShard to requests written before sharding; returns how many were updated. */
+    public static int backfill(Firestore db) throws Exception {
+        int updated = 0;
+        DocumentSnapshot cursor = null;
+        while (true) {
+            Query q = db.collection("requests").orderBy(FieldPath.documentId()).limit(500);
+            if (cursor != null) q = q.startAfter(cursor);
+            List<QueryDocumentSnapshot> page = q.get().get().getDocuments();
+            if (page.isEmpty()) break;
+
+            BulkWriter writer = db.bulkWriter();
+            for (QueryDocumentSnapshot d : page) {
+                if (d.contains(FIELD)) continue;
+                writer.update(d.getReference(), FIELD, shardOf(d.getId()));
+                updated++;
+            }
+            writer.close();
+            cursor = page.get(page.size() - 1);
+        }
+        return updated;
+    }
+}
@@ -1,6 +1,7 @@
 package com.toptri.desktop;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
@@ -8,14 +9,31 @@ import javafx.stage.Stage;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ToptriDesktopLauncher extends Application {
 
+    // listeners, background writes and clients of this process, drained in stop()
+    private final Lifecycle lifecycle = new Lifecycle("desktop");
+
+    private final ExecutorService startupExecutor = lifecycle.manage(Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "toptri-startup");
+        t.setDaemon(true);
+        return t;
+    }));
+
+    private volatile FirestoreService fs;
+
     @Override
     public void start(Stage stage) {
+        final long startNanos = System.nanoTime();
         try {
-            FirestoreService fs = new FirestoreService();
-
             Button buyerBtn = new Button("Open Buyer");
             buyerBtn.setOnAction(e -> BuyerWindow.open(fs));
 
@@ -25,17 +43,123 @@ public class ToptriDesktopLauncher extends Application {
             Button sellerB = new Button("Open Seller B");
             sellerB.setOnAction(e -> SellerWindow.open(fs, "Seller B"));
 
-            VBox root = new VBox(12, buyerBtn, sellerA, sellerB);
+            // ✅ buttons stay disabled until the Firestore service is ready
+            Button[] buttons = { buyerBtn, sellerA, sellerB };
+            for (Button b : buttons) b.setDisable(true);
+
+            Label status = UiKit.small("Connecting to Firestore...");
+
+            VBox root = new VBox(12, buyerBtn, sellerA, sellerB, status);
             root.setStyle("-fx-padding: 20;");
-            stage.setScene(new Scene(root, 320, 180));
+            Scene scene = new Scene(root, 320, 210);
+            UiKit.applyTheme(scene);
+            stage.setScene(scene);
             stage.setTitle("Toptri Chat - Desktop");
+
+            // first paint = first pulse after show() has laid out the scene
+            Runnable firstPaint = new Runnable() {
+                @Override
+                public void run() {
+                    scene.removePostLayoutPulseListener(this);
+                    long sinceStart = (System.nanoTime() - startNanos) / 1_000_000;
+                    long sinceJvm = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+                    System.out.println("[startup] first paint " + sinceStart + " ms after start(), "
+                            + sinceJvm + " ms after JVM start");
+                }
+            };
+            scene.addPostLayoutPulseListener(firstPaint);
             stage.show();
 
+            initServiceAsync(status, buttons, startNanos);
+
         } catch (Exception ex) {
             showCrash(ex);
         }
     }
 
+    // ============================================================
+    // BACKGROUND STARTUP
+    // ============================================================
+
+    private void initServiceAsync(Label status, Button[] buttons, long startNanos) {
+        CompletableFuture
+                .supplyAsync(() -> {
+                    FirestoreService service = new FirestoreService(lifecycle);
+                    try {
+                        service.warmUp();
+                    } catch (Exception e) {
+                        throw new RuntimeException("Firestore warm-up failed: " + e.getMessage(), e);
+                    }
+                    // -Dtoptri.gateway=ws://host:8081/gateway shares chat/offer/inbox listeners via the backend;
+                    // -Dtoptri.gatewaySecret must match the backend's toptri.gateway.secret
+                    String gateway = System.getProperty("toptri.gateway", System.getenv("TOPTRI_GATEWAY"));
+                    if (gateway != null && !gateway.isBlank()) {
+                        String secret = System.getProperty("toptri.gatewaySecret", System.getenv("TOPTRI_GATEWAY_SECRET"));
+                        if (secret == null || secret.isBlank()) {
+                            throw new RuntimeException("Gateway " + gateway + " needs -Dtoptri.gatewaySecret");
+                        }
+                        try {
+                            service.useGateway(URI.create(gateway.trim()), secret.trim());
+                            System.out.println("[startup] subscriptions via gateway " + gateway);
+                        } catch (Exception e) {
+                            throw new RuntimeException("Gateway " + gateway + " unreachable: " + e.getMessage(), e);
+                        }
+                    }
+                    // -Dtoptri.cost.reportMinutes / readBudgetPerMinute / writeBudgetPerMinute, see CostLedger
+                    CostLedger.startReporting(Long.getLong("toptri.cost.reportMinutes", 10), 10,
+                            Long.getLong("toptri.cost.readBudgetPerMinute", 0), Long.getLong("toptri.cost.writeBudgetPerMinute", 0));
+                    lifecycle.onShutdown(() -> System.out.print(CostLedger.report(10)));
+                    // -Dtoptri.trace=traces appends per-hop latency spans for TraceReport
+                    String traceDir = System.getProperty("toptri.trace", System.getenv("TOPTRI_TRACE"));
+                    if (traceDir != null && !traceDir.isBlank()) {
+                        Path file = Paths.get(traceDir.trim(), "desktop-" + ProcessHandle.current().pid() + ".jsonl");
+                        try {
+                            Tracing.exportTo(file, "toptri-desktop");
+                            lifecycle.onShutdown(Tracing::close);
+                            System.out.println("[startup] tracing to " + file);
+                        } catch (Exception e) {
+                            System.err.println("[startup] tracing disabled: " + e.getMessage());
+                        }
+                    }
+                    return service;
+                }, startupExecutor)
+                .whenComplete((service, err) -> Platform.runLater(() -> {
+                    if (err != null) {
+                        status.setText("Startup failed ❌");
+                        Throwable cause = err.getCause() != null ? err.getCause() : err;
+                        showCrash(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+                        return;
+                    }
+                    fs = service;
+                    for (Button b : buttons) b.setDisable(false);
+                    long readyMs = (System.nanoTime() - startNanos) / 1_000_000;
+                    status.setText("Ready ✅ (" + readyMs + " ms)");
+                    System.out.println("[startup] Firestore ready " + readyMs + " ms after start()");
+                    preloadCatalogAsync(service);
+                }));
+    }
+
+    private void preloadCatalogAsync(FirestoreService service) {
+        CompletableFuture
+                .runAsync(() -> {
+                    long t0 = System.nanoTime();
+                    try {
+                        int n = service.preloadMenuCatalog();
+                        System.out.println("[startup] menu catalog preloaded: " + n + " menus in "
+                                + (System.nanoTime() - t0) / 1_000_000 + " ms");
+                    } catch (Exception e) {
+                        // not fatal: sellers fall back to per-category queries
+                        System.out.println("[startup] menu catalog preload failed: " + e.getMessage());
+                    }
+                }, startupExecutor);
+    }
+
+    @Override
+    public void stop() {
+        // windows are gone: stop listeners, let accepted writes commit, then close Firebase
+        lifecycle.shutdown(Lifecycle.DEFAULT_DRAIN);
+    }
+
     private void showCrash(Exception ex) {
         StringWriter sw = new StringWriter();
         ex.printStackTrace(new PrintWriter(sw));
@@ -56,4 +180,4 @@ public class ToptriDesktopLauncher extends Application {
     public static void main(String[] args) {
         launch(args);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,151 @@
+package com.toptri.desktop;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Latency breakdown of the span files written by {@link Tracing}.
+ *
+ *   TraceReport [file or directory ...]      (default: traces/)
+ *
+ * Reads OTLP/JSON lines (as written by Tracing or an OpenTelemetry
+ * collector's file exporter), merges the spans of every buyer, seller and
+ * backend process by trace id
+ * and prints p50/p90/p99/max per hop, plus two derived hops:
+ *
+ *   seller.think   seller.receive end to that seller's first seller.offer start
+ *   end-to-end     buyer.send start to the first buyer.render end
+ *
+ * followed by the slowest complete turns hop by hop.
+ */
+public class TraceReport {
+
+    private static final List<String> HOPS = List.of(
+            Tracing.BUYER_SEND, Tracing.SELLER_RECEIVE, "seller.think", Tracing.SELLER_OFFER, Tracing.BUYER_RENDER);
+    private static final String END_TO_END = "end-to-end";
+    private static final int SLOWEST = 5;
+
+    private record Span(String name, long start, long end, String sellerId) {
+        double ms() { return (end - start) / 1_000_000.0; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Path> inputs = new ArrayList<>();
+        for (String a : args.length == 0 ? new String[]{"traces"} : args) inputs.add(Paths.get(a));
+
+        Map<String, List<Span>> traces = new HashMap<>();
+        for (Path p : inputs) {
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> files = Files.list(p)) {
+                    for (Path f : files.filter(f -> f.toString().endsWith(".jsonl")).toList()) read(f, traces);
+                }
+            } else {
+                read(p, traces);
+            }
+        }
+
+        Map<String, List<Double>> byHop = new LinkedHashMap<>();
+        for (String h : HOPS) byHop.put(h, new ArrayList<>());
+        byHop.put(END_TO_END, new ArrayList<>());
+        List<Map.Entry<Double, Map<String, Double>>> turns = new ArrayList<>();
+
+        for (List<Span> spans : traces.values()) {
+            Map<String, Double> turn = breakdown(spans);
+            for (Map.Entry<String, Double> e : turn.entrySet()) {
+                byHop.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(e.getValue());
+            }
+            if (turn.containsKey(END_TO_END)) turns.add(Map.entry(turn.get(END_TO_END), turn));
+        }
+
+        System.out.println("[trace] " + traces.size() + " turns");
+        System.out.printf(Locale.US, "%-16s %7s %10s %10s %10s %10s%n", "hop", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, List<Double>> e : byHop.entrySet()) {
+            List<Double> v = e.getValue();
+            Collections.sort(v);
+            System.out.printf(Locale.US, "%-16s %7d %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), v.size(),
+                    pct(v, 50), pct(v, 90), pct(v, 99), v.isEmpty() ? 0.0 : v.get(v.size() - 1));
+        }
+
+        turns.sort(Map.Entry.<Double, Map<String, Double>>comparingByKey().reversed());
+        if (!turns.isEmpty()) System.out.println();
+        for (int i = 0; i < Math.min(SLOWEST, turns.size()); i++) {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US, "slow turn %.0f ms:", turns.get(i).getKey()));
+            for (String h : HOPS) {
+                Double ms = turns.get(i).getValue().get(h);
+                if (ms != null) sb.append(String.format(Locale.US, "  %s %.0f", h, ms));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static void read(Path file, Map<String, List<Span>> traces) throws Exception {
+        ObjectMapper json = new ObjectMapper();
+        try (BufferedReader r = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                // one OTLP/JSON ExportTraceServiceRequest per line, see Tracing
+                for (JsonNode rs : json.readTree(line).path("resourceSpans")) {
+                    for (JsonNode ss : rs.path("scopeSpans")) {
+                        for (JsonNode n : ss.path("spans")) {
+                            traces.computeIfAbsent(n.path("traceId").asText(), k -> new ArrayList<>()).add(new Span(
+                                    n.path("name").asText(),
+                                    n.path("startTimeUnixNano").asLong(),
+                                    n.path("endTimeUnixNano").asLong(),
+                                    attribute(n, "toptri.sellerId")));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String attribute(JsonNode span, String key) {
+        for (JsonNode kv : span.path("attributes")) {
+            if (key.equals(kv.path("key").asText())) return kv.path("value").path("stringValue").asText("");
+        }
+        return "";
+    }
+
+    // hop -> ms for one turn; the first span of each hop counts (retries and later offers are not on the critical path)
+    private static Map<String, Double> breakdown(List<Span> spans) {
+        spans.sort(Comparator.comparingLong(Span::start));
+        Map<String, Span> first = new HashMap<>();
+        for (Span s : spans) first.putIfAbsent(s.name, s);
+
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (String h : HOPS) if (first.containsKey(h)) out.put(h, first.get(h).ms());
+
+        // think time of the seller whose offer came first
+        Span offer = first.get(Tracing.SELLER_OFFER);
+        if (offer != null) {
+            for (Span s : spans) {
+                if (s.name.equals(Tracing.SELLER_RECEIVE) && s.sellerId.equals(offer.sellerId) && s.end <= offer.start) {
+                    out.put("seller.think", (offer.start - s.end) / 1_000_000.0);
+                    break;
+                }
+            }
+        }
+
+        Span send = first.get(Tracing.BUYER_SEND);
+        Span render = spans.stream().filter(s -> s.name.equals(Tracing.BUYER_RENDER))
+                .min(Comparator.comparingLong(Span::end)).orElse(null);
+        if (send != null && render != null && render.end >= send.start) {
+            out.put(END_TO_END, (render.end - send.start) / 1_000_000.0);
+        }
+        return out;
+    }
+
+    private static double pct(List<Double> sorted, double p) {
+        if (sorted.isEmpty()) return 0.0;
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+    }
+}
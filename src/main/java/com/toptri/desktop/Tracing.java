@@ -0,0 +1,197 @@
+package com.toptri.desktop;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-hop spans of one conversation turn, keyed by the buyer message id:
+ *
+ *   buyer.send      sendBuyerMessage / createConversation, call to commit
+ *   seller.receive  message createdAt to the seller window receiving it
+ *   seller.offer    createOfferWithLines, call to commit
+ *   buyer.render    offer createdAt to the buyer's offer card laid out
+ *
+ * The buyer message id already travels with the turn (offers carry it as
+ * buyerMessageId), so every process derives the same trace id from it and
+ * nothing extra is written to Firestore. Hops that cross processes start at
+ * the Firestore createdAt written by the sender, so they include clock skew
+ * between machines.
+ *
+ * Spans are appended by a daemon thread in the OTLP/JSON file format: one
+ * ExportTraceServiceRequest per line ({resourceSpans: [{resource, scopeSpans:
+ * [{scope, spans}]}]}), attributes as {key, value: {stringValue | intValue |
+ * doubleValue | boolValue}} arrays and 64-bit integers as strings, so the
+ * files load into an OpenTelemetry collector (otlpjsonfile receiver) as is.
+ * {@link TraceReport} turns them into a latency breakdown. Disabled, and
+ * free, until {@link #exportTo} is called.
+ */
+public final class Tracing {
+
+    public static final String BUYER_SEND = "buyer.send";
+    public static final String SELLER_RECEIVE = "seller.receive";
+    public static final String SELLER_OFFER = "seller.offer";
+    public static final String BUYER_RENDER = "buyer.render";
+
+    // a cross-process hop longer than this is history being loaded, not a delivery
+    static final long MAX_HOP_MS = 10 * 60 * 1000L;
+
+    private static final int SEEN_LIMIT = 4096;
+
+    static final String SCOPE = "com.toptri.desktop.Tracing";
+    private static final int SPAN_KIND_INTERNAL = 1;
+
+    // queued after the last span by close(): the writer flushes and exits
+    private static final Map<String, Object> END = Map.of();
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final BlockingQueue<Map<String, Object>> QUEUE = new LinkedBlockingQueue<>(10_000);
+    private static volatile boolean enabled = false;
+    private static Thread writer;
+
+    // hop keys already recorded, so repeated snapshots of the same message/offer record once
+    private static final Map<String, Boolean> SEEN = Collections.synchronizedMap(
+            new LinkedHashMap<>(256, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) { return size() > SEEN_LIMIT; }
+            });
+
+    private Tracing() {}
+
+    /**
+     * Starts appending spans to file (created if missing), as resource
+     * service.name = serviceName. Later calls are ignored.
+     */
+    public static synchronized void exportTo(Path file, String serviceName) throws IOException {
+        if (enabled) return;
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Map<String, Object> resource = Map.of("attributes", attributes(Map.of(
+                "service.name", serviceName, "process.pid", ProcessHandle.current().pid())));
+
+        Thread t = new Thread(() -> {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            try {
+                boolean end = false;
+                while (!end) {
+                    batch.add(QUEUE.take());
+                    QUEUE.drainTo(batch);
+                    int endAt = batch.indexOf(END);
+                    if (endAt >= 0) {
+                        end = true;
+                        batch = new ArrayList<>(batch.subList(0, endAt));
+                    }
+                    // everything drained at once goes out as one request line
+                    if (!batch.isEmpty()) {
+                        out.write(JSON.writeValueAsString(Map.of("resourceSpans", List.of(Map.of(
+                                "resource", resource,
+                                "scopeSpans", List.of(Map.of("scope", Map.of("name", SCOPE), "spans", batch)))))));
+                        out.newLine();
+                        out.flush();
+                    }
+                    batch.clear();
+                }
+                out.close();
+            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                enabled = false;
+                System.err.println("[trace] export stopped: " + e.getMessage());
+            }
+        }, "toptri-trace");
+        t.setDaemon(true);
+        t.start();
+        writer = t;
+        enabled = true;
+    }
+
+    /** Stops recording and waits (bounded) for queued spans to reach the file. */
+    public static synchronized void close() throws InterruptedException {
+        if (!enabled) return;
+        enabled = false;
+        QUEUE.put(END);
+        writer.join(5_000);
+    }
+
+    public static boolean enabled() { return enabled; }
+
+    /** Wall clock in epoch nanoseconds (microsecond resolution on most platforms). */
+    public static long nowNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    public static long nanos(Timestamp t) {
+        return t.getSeconds() * 1_000_000_000L + t.getNanos();
+    }
+
+    /** 32 hex chars, the same in every process for the same buyer message. */
+    public static String traceId(String buyerMessageId) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(buyerMessageId.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(h, 0, 16);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records one span of the turn started by buyerMessageId; no-op when disabled. */
+    public static void span(String name, String buyerMessageId, long startNanos, long endNanos,
+                            Map<String, Object> attributes) {
+        if (!enabled || buyerMessageId == null || buyerMessageId.isBlank()) return;
+
+        Map<String, Object> attrs = new LinkedHashMap<>(attributes);
+        attrs.put("toptri.buyerMessageId", buyerMessageId);
+
+        Map<String, Object> span = new LinkedHashMap<>();
+        span.put("traceId", traceId(buyerMessageId));
+        span.put("spanId", HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextLong()));
+        span.put("name", name);
+        span.put("kind", SPAN_KIND_INTERNAL);
+        span.put("startTimeUnixNano", Long.toString(startNanos));
+        span.put("endTimeUnixNano", Long.toString(Math.max(endNanos, startNanos)));
+        span.put("attributes", attributes(attrs));
+        if (!QUEUE.offer(span)) System.err.println("[trace] queue full, span dropped");
+    }
+
+    // OTLP KeyValue list; int64 travels as a string in OTLP/JSON
+    private static List<Map<String, Object>> attributes(Map<String, Object> attrs) {
+        List<Map<String, Object>> out = new ArrayList<>(attrs.size());
+        for (Map.Entry<String, Object> e : attrs.entrySet()) {
+            Object v = e.getValue();
+            Map<String, Object> value;
+            if (v instanceof Boolean b) value = Map.of("boolValue", b);
+            else if (v instanceof Double || v instanceof Float) value = Map.of("doubleValue", ((Number) v).doubleValue());
+            else if (v instanceof Number n) value = Map.of("intValue", Long.toString(n.longValue()));
+            else value = Map.of("stringValue", String.valueOf(v));
+            out.add(Map.of("key", e.getKey(), "value", value));
+        }
+        return out;
+    }
+
+    /**
+     * Span of a hop that began in another process at sentAt and ends now;
+     * recorded once per key, and skipped for history older than {@link #MAX_HOP_MS}.
+     */
+    public static void received(String name, String key, String buyerMessageId, Timestamp sentAt,
+                                Map<String, Object> attributes) {
+        if (!enabled || sentAt == null) return;
+        long end = nowNanos();
+        long start = nanos(sentAt);
+        if ((end - start) / 1_000_000L > MAX_HOP_MS) return;
+        if (SEEN.putIfAbsent(name + "|" + key, Boolean.TRUE) != null) return;
+        span(name, buyerMessageId, start, end, attributes);
+    }
+}
@@ -1,15 +1,23 @@
 package com.toptri.desktop;
 
-import javafx.geometry.Insets;
+import javafx.css.PseudoClass;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
+import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.layout.*;
-import javafx.scene.paint.Color;
-import javafx.scene.text.Font;
-import javafx.scene.text.FontWeight;
 
+import java.util.Objects;
+
+/**
+ * Shared look of the desktop windows.
+ *
+ * All styling lives in toptri.css (next to this class on the classpath),
+ * added once per scene by {@link #applyTheme}. Factories here only attach
+ * style classes, and states are pseudo-classes, so building or re-rendering
+ * a chat does not parse any inline CSS per node.
+ */
 public class UiKit {
     public static final String PURPLE = "#5F5BFF";
     public static final String BG = "#EEF3FF";
@@ -21,109 +29,73 @@ public class UiKit {
     public static final String GREEN_BTN = "#16A34A";
     public static final String PILL_GREEN = "#D9FBE6";
 
-    public static Region headerBar(String title) {
-        HBox bar = new HBox();
-        bar.setPrefHeight(56);
-        bar.setPadding(new Insets(0, 18, 0, 18));
-        bar.setAlignment(Pos.CENTER_LEFT);
-        bar.setStyle("-fx-background-color: " + PURPLE + ";");
+    public static final PseudoClass OFFERED = PseudoClass.getPseudoClass("offered");
+    public static final PseudoClass COMPLETED = PseudoClass.getPseudoClass("completed");
+    public static final PseudoClass PENDING = PseudoClass.getPseudoClass("pending");
+    public static final PseudoClass FAILED = PseudoClass.getPseudoClass("failed");
 
-        Label t = new Label(title);
-        t.setTextFill(Color.web("#FFB020"));
-        t.setFont(Font.font("System", FontWeight.EXTRA_BOLD, 18));
+    private static final String STYLESHEET =
+            Objects.requireNonNull(UiKit.class.getResource("toptri.css"), "toptri.css missing").toExternalForm();
 
-        bar.getChildren().add(t);
+    public static void applyTheme(Scene scene) {
+        if (!scene.getStylesheets().contains(STYLESHEET)) scene.getStylesheets().add(STYLESHEET);
+    }
+
+    public static <T extends Node> T styled(T node, String... styleClasses) {
+        node.getStyleClass().addAll(styleClasses);
+        return node;
+    }
+
+    public static Region headerBar(String title) {
+        HBox bar = styled(new HBox(), "header-bar");
+        bar.getChildren().add(styled(new Label(title), "header-title"));
         return bar;
     }
 
     public static Region cardContainer(Node content) {
-        StackPane wrap = new StackPane(content);
-        wrap.setPadding(new Insets(18));
-        wrap.setStyle(
-                "-fx-background-color: " + CARD + ";" +
-                "-fx-background-radius: 18;" +
-                "-fx-effect: dropshadow(gaussian, rgba(0,0,0,0.08), 18, 0.2, 0, 6);"
-        );
-        return wrap;
+        return styled(new StackPane(content), "card-container");
     }
 
     public static void applyAppBackground(Pane root) {
-        root.setStyle("-fx-background-color: " + BG + ";");
+        root.getStyleClass().add("app-background");
     }
 
     public static Label h1(String text) {
-        Label l = new Label(text);
-        l.setFont(Font.font("System", FontWeight.EXTRA_BOLD, 28));
-        return l;
+        return styled(new Label(text), "h1");
     }
 
     public static Label small(String text) {
-        Label l = new Label(text);
-        l.setStyle("-fx-opacity: 0.75;");
-        return l;
+        return styled(new Label(text), "small");
     }
 
     public static Region divider() {
-        Region r = new Region();
-        r.setPrefHeight(1);
-        r.setStyle("-fx-background-color: rgba(0,0,0,0.08);");
-        return r;
+        return styled(new Region(), "divider");
     }
 
     public static Button primaryButton(String text) {
-        Button b = new Button(text);
-        b.setStyle(
-                "-fx-background-color: " + GREEN_BTN + ";" +
-                "-fx-text-fill: white;" +
-                "-fx-font-weight: 800;" +
-                "-fx-padding: 10 18;" +
-                "-fx-background-radius: 14;"
-        );
-        return b;
+        return styled(new Button(text), "primary-button");
     }
 
     public static Region bubbleRight(String text) {
-        Label l = new Label(text);
-        l.setWrapText(true);
-        l.setPadding(new Insets(10, 14, 10, 14));
-        l.setStyle("-fx-background-color: " + BUYER_BUBBLE + "; -fx-background-radius: 16;");
-        HBox row = new HBox(l);
+        HBox row = styled(new HBox(styled(new Label(text), "bubble", "bubble-buyer")), "bubble-row");
         row.setAlignment(Pos.CENTER_RIGHT);
         return row;
     }
 
     public static Region bubbleWait(String text) {
-        Label l = new Label(text);
-        l.setWrapText(true);
-        l.setPadding(new Insets(10, 14, 10, 14));
-        l.setStyle("-fx-background-color: " + WAIT_BG + "; -fx-background-radius: 16;");
-        HBox row = new HBox(l);
+        HBox row = styled(new HBox(styled(new Label(text), "bubble", "bubble-wait")), "bubble-row");
         row.setAlignment(Pos.CENTER_LEFT);
         return row;
     }
 
     public static Region offerCard(String title, String subtitle, Runnable onBuy) {
-        VBox box = new VBox(6);
-        box.setPadding(new Insets(14));
-        box.setStyle("-fx-background-color: " + OFFER_BG + "; -fx-background-radius: 18;");
-
-        Label t = new Label(title);
-        t.setFont(Font.font("System", FontWeight.EXTRA_BOLD, 22));
-
-        Label s = new Label(subtitle);
-        s.setStyle("-fx-opacity: 0.75;");
-
-        Button buy = new Button("Buy");
+        Button buy = styled(new Button("Buy"), "buy-button");
         buy.setOnAction(e -> onBuy.run());
-        buy.setStyle(
-                "-fx-background-color: " + GREEN_BTN + ";" +
-                "-fx-text-fill: white;" +
-                "-fx-font-weight: 800;" +
-                "-fx-padding: 8 18;" +
-                "-fx-background-radius: 14;"
-        );
 
-        box.getChildren().addAll(t, s, buy);
+        VBox box = styled(new VBox(
+                styled(new Label(title), "offer-title"),
+                small(subtitle),
+                buy), "offer-card");
 
         HBox row = new HBox(box);
         row.setAlignment(Pos.CENTER_LEFT);
@@ -132,36 +104,26 @@ public class UiKit {
     }
 
     public static Region messagePill(String text) {
-        Label l = new Label(text == null || text.isBlank() ? "-" : text);
-        l.setWrapText(true);
-        l.setPadding(new Insets(10, 14, 10, 14));
-        l.setStyle("-fx-background-color: " + PILL_GREEN + "; -fx-background-radius: 16;");
-
+        Label l = styled(new Label(text == null || text.isBlank() ? "-" : text), "bubble", "pill");
         HBox row = new HBox(l);
         row.setAlignment(Pos.CENTER_LEFT);
         return row;
     }
 
     public static VBox menuCard(String name, String subtitle) {
-        VBox box = new VBox(2);
-        box.setPadding(new Insets(12));
-        box.setStyle(
-                "-fx-background-color: white;" +
-                "-fx-background-radius: 14;" +
-                "-fx-border-radius: 14;" +
-                "-fx-border-color: rgba(0,0,0,0.08);"
-        );
-
-        Label t = new Label(name);
-        t.setStyle("-fx-font-weight: 800; -fx-font-size: 16;");
-
-        Label s = small(subtitle);
-
-        box.getChildren().addAll(t, s);
-        return box;
+        return styled(new VBox(styled(new Label(name), "menu-card-title"), small(subtitle)), "menu-card");
     }
 
     public static String rupiah(int n) {
         return "Rp" + String.format("%,d", n).replace(',', '.');
     }
-}
\ No newline at end of file
+
+    // a histogram bucket bound: "≤ 30 s", or "> 1 h" past the last one
+    public static String upTo(long ms) {
+        if (ms == Long.MAX_VALUE) return "> 1 h";
+        if (ms < 1000) return "≤ " + ms + " ms";
+        if (ms < 60_000) return "≤ " + ms / 1000 + " s";
+        if (ms < 3_600_000) return "≤ " + ms / 60_000 + " min";
+        return "≤ " + ms / 3_600_000 + " h";
+    }
+}
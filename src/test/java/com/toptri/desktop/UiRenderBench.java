@@ -0,0 +1,119 @@
+package com.toptri.desktop;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Render-time comparison of the chat: inline setStyle strings (how UiKit
+ * built nodes before toptri.css) against the style-class factories.
+ *
+ *   UiRenderBench [nodes=500] [rounds=30]
+ *
+ * Each round rebuilds a chat of the given number of bubbles/offer cards the
+ * way renderChat does (clear + add), then forces CSS and layout on the
+ * scene, which is the work of the next pulse. Prints the median and p90
+ * per variant. Needs a display (or -Dglass.platform=Monocle -Dmonocle.platform=Headless).
+ *
+ * Lives with the test sources so it stays out of the desktop jar: run
+ * mvn test-compile, then start it from a launcher class on the
+ * target/classes + target/test-classes + dependency classpath (JavaFX
+ * refuses an Application subclass as the main class from the classpath).
+ */
+public class UiRenderBench extends Application {
+
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+
+    @Override
+    public void start(Stage stage) {
+        List<String> args = getParameters().getRaw();
+        int nodes = args.size() > 0 ? Integer.parseInt(args.get(0)) : 500;
+        int rounds = args.size() > 1 ? Integer.parseInt(args.get(1)) : 30;
+
+        VBox chat = new VBox(12);
+        Scene scene = new Scene(chat, 900, 700);
+        UiKit.applyTheme(scene);
+        stage.setScene(scene);
+        stage.show();
+
+        String inline = run("inline setStyle", chat, nodes, rounds, UiRenderBench::inlineNode);
+        String classes = run("style classes", chat, nodes, rounds, UiRenderBench::styledNode);
+        System.out.println();
+        System.out.println(inline);
+        System.out.println(classes);
+        Platform.exit();
+    }
+
+    private static String run(String name, VBox chat, int nodes, int rounds, IntFunction<Region> factory) {
+        List<Long> micros = new ArrayList<>();
+        for (int r = 0; r < WARMUP + rounds; r++) {
+            long t0 = System.nanoTime();
+            chat.getChildren().clear();
+            for (int i = 0; i < nodes; i++) chat.getChildren().add(factory.apply(i));
+            chat.applyCss();
+            chat.layout();
+            if (r >= WARMUP) micros.add((System.nanoTime() - t0) / 1_000);
+        }
+        Collections.sort(micros);
+        return String.format(Locale.US, "%-16s %d nodes: median %.1f ms, p90 %.1f ms", name, nodes,
+                micros.get(micros.size() / 2) / 1000.0, micros.get(micros.size() * 9 / 10) / 1000.0);
+    }
+
+    // same mix as a busy conversation: buyer bubbles, seller replies, offer cards
+    private static Region styledNode(int i) {
+        return switch (i % 3) {
+            case 0 -> UiKit.bubbleRight("buyer message " + i);
+            case 1 -> UiKit.bubbleWait("seller reply " + i);
+            default -> UiKit.offerCard("Menu " + i, UiKit.rupiah(15_000 + i) + " • vendor • ETA 20 min", () -> {});
+        };
+    }
+
+    // the pre-stylesheet factories, kept only for this comparison
+    private static Region inlineNode(int i) {
+        return switch (i % 3) {
+            case 0 -> inlineBubble("buyer message " + i, UiKit.BUYER_BUBBLE);
+            case 1 -> inlineBubble("seller reply " + i, UiKit.WAIT_BG);
+            default -> {
+                VBox box = new VBox(6);
+                box.setPadding(new Insets(14));
+                box.setStyle("-fx-background-color: " + UiKit.OFFER_BG + "; -fx-background-radius: 18;");
+                Label t = new Label("Menu " + i);
+                t.setStyle("-fx-font-weight: 800; -fx-font-size: 22;");
+                Label s = new Label(UiKit.rupiah(15_000 + i) + " • vendor • ETA 20 min");
+                s.setStyle("-fx-opacity: 0.75;");
+                Button buy = new Button("Buy");
+                buy.setStyle(
+                        "-fx-background-color: " + UiKit.GREEN_BTN + ";" +
+                        "-fx-text-fill: white;" +
+                        "-fx-font-weight: 800;" +
+                        "-fx-padding: 8 18;" +
+                        "-fx-background-radius: 14;"
+                );
+                box.getChildren().addAll(t, s, buy);
+                yield new HBox(box);
+            }
+        };
+    }
+
+    private static Region inlineBubble(String text, String color) {
+        Label l = new Label(text);
+        l.setWrapText(true);
+        l.setPadding(new Insets(10, 14, 10, 14));
+        l.setStyle("-fx-background-color: " + color + "; -fx-background-radius: 16;");
+        return new HBox(l);
+    }
+}